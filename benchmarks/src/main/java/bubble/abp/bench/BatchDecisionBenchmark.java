@@ -0,0 +1,46 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockDecision;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding a page's worth of subresource requests: perCall makes one getDecision call per request, batch hands
+ * them all to getDecisions, which walks the domain index once per host. The decision cache is cleared before
+ * every invocation, so both decide every request from scratch.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class BatchDecisionBenchmark {
+
+    @Param({BenchmarkLists.ANTI_MALWARE, BenchmarkLists.SYNTHETIC}) public String list;
+    @Param({"500000"}) public int syntheticRules;
+    @Param({"200"}) public int pageRequests;
+    @Param({"10"}) public int pageHosts;
+
+    private CompiledBlockList compiled;
+    private List<DecisionRequest> requests;
+
+    @Setup public void setup() throws IOException {
+        compiled = BenchmarkLists.source(BenchmarkLists.list(list, syntheticRules)).download().getBlockList().compile();
+        requests = BenchmarkLists.requests(compiled, pageRequests, pageHosts, 1L);
+    }
+
+    @Setup(Level.Invocation) public void clearCache() { compiled.getDecisionCache().clear(); }
+
+    @Benchmark public void perCall(Blackhole bh) {
+        for (DecisionRequest r : requests) {
+            bh.consume(compiled.getDecision(r.getFqdn(), r.getPath(), r.getContentType(), r.getReferer(), r.isPrimary()));
+        }
+    }
+
+    @Benchmark public BlockDecision[] batch() { return compiled.getDecisions(requests); }
+
+}
@@ -0,0 +1,109 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockListSource;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Inputs shared by the benchmarks.
+ */
+public class BenchmarkLists {
+
+    public static final String ANTI_MALWARE_PROPERTY = "abp.bench.antimalware";
+    public static final String ANTI_MALWARE_DEFAULT = "src/test/resources/AntiMalwareABP.txt";
+
+    public static final String EASYLIST_PROPERTY = "abp.bench.easylist";
+
+    public static final String ANTI_MALWARE = "antimalware";
+    public static final String SYNTHETIC = "synthetic";
+
+    /**
+     * @return the bundled AntiMalwareABP.txt. Run from the project root, or set -Dabp.bench.antimalware=path
+     */
+    public static byte[] antiMalware() throws IOException {
+        final String path = System.getProperty(ANTI_MALWARE_PROPERTY, ANTI_MALWARE_DEFAULT);
+        if (Files.exists(Paths.get(path))) return Files.readAllBytes(Paths.get(path));
+        return Files.readAllBytes(Paths.get("..", path));
+    }
+
+    /**
+     * @return a generated list with ListGenerator's default mix of rule kinds
+     */
+    public static byte[] synthetic(int rules, long seed) {
+        return new ListGenerator().setSeed(seed).generate(rules).getBytes();
+    }
+
+    public static byte[] list(String name, int syntheticRules) throws IOException {
+        switch (name) {
+            case ANTI_MALWARE: return antiMalware();
+            case SYNTHETIC:    return synthetic(syntheticRules, 1L);
+            default: throw new IllegalArgumentException("list: unknown list: "+name);
+        }
+    }
+
+    public static BlockListSource source(byte[] data) {
+        return new BlockListSource() {
+            @Override public InputStream urlInputStream() { return new ByteArrayInputStream(data); }
+        };
+    }
+
+    /**
+     * @return count requests spread over hosts hosts, from TraceGenerator's default mix: about one in ten is a
+     * primary html page load, about 30% of the rest are aimed at the list's blocked hosts and paths and 5% at its
+     * whitelisted hosts (when it has any); the rest go to hosts not in the list. Hosts are Zipf-distributed.
+     */
+    public static List<DecisionRequest> requests(CompiledBlockList list, int count, int hosts, long seed) {
+        return new TraceGenerator().setHosts(hosts).setSeed(seed).generate(GeneratedList.of(list), count);
+    }
+
+    /**
+     * @return the selectors of the list's element hiding rules, as BlockSelector.buildSelector takes them
+     */
+    public static List<String> selectors(byte[] list) {
+        final List<String> selectors = new ArrayList<>();
+        for (String line : new String(list, UTF_8).split("\n")) {
+            final int start = line.indexOf("##");
+            if (start != -1 && !line.startsWith("!")) selectors.add(line.substring(start).trim());
+        }
+        return selectors;
+    }
+
+    /**
+     * @return the selectors of EasyList's element hiding rules, from the file named by -Dabp.bench.easylist,
+     * or, without it, count generated selectors in the same styles: classes, ids, tags with attribute matches,
+     * and combinators
+     */
+    public static List<String> easyListSelectors(int count, long seed) throws IOException {
+        final String path = System.getProperty(EASYLIST_PROPERTY);
+        if (path != null) return selectors(Files.readAllBytes(Paths.get(path)));
+
+        final Random random = new Random(seed);
+        final List<String> selectors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int n = random.nextInt(100000);
+            switch (random.nextInt(8)) {
+                case 0:  selectors.add("##.ad-banner-" + n); break;
+                case 1:  selectors.add("###sponsored_" + n); break;
+                case 2:  selectors.add("##div[id^=\"ad_" + n + "\"]"); break;
+                case 3:  selectors.add("##a[href*=\"/click/" + n + "\"]"); break;
+                case 4:  selectors.add("##.sidebar > .promo-" + n); break;
+                case 5:  selectors.add("##.story + .ad-" + n); break;
+                case 6:  selectors.add("##div[style*=\"width:300px;height:" + (n % 600) + "px\"]"); break;
+                default: selectors.add("##.adsbox-" + n + "[data-slot=\"top\"][data-size$=\"x90\"]"); break;
+            }
+        }
+        return selectors;
+    }
+
+}
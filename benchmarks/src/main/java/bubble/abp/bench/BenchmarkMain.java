@@ -0,0 +1,31 @@
+package bubble.abp.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Runs JMH as org.openjdk.jmh.Main does, but writes results as JSON by default, to
+ * results/jmh-yyyyMMdd-HHmmss.json, so runs can be kept and compared over time. Passing -rf or -rff
+ * overrides the format or file.
+ */
+public class BenchmarkMain {
+
+    public static final String RESULTS_DIR = "results";
+
+    public static void main(String[] args) throws Exception {
+        final List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+        if (!jmhArgs.contains("-rf")) jmhArgs.addAll(Arrays.asList("-rf", "json"));
+        if (!jmhArgs.contains("-rff")) {
+            final File dir = new File(RESULTS_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("main: error creating "+dir);
+            final String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            jmhArgs.addAll(Arrays.asList("-rff", new File(dir, "jmh-" + timestamp + ".json").getPath()));
+        }
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+
+}
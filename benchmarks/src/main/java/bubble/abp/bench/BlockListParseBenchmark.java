@@ -0,0 +1,91 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockListLineReader;
+import bubble.abp.BlockListSource;
+import bubble.abp.BlockSpec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static bubble.abp.BlockListSource.DESCRIPTION_PREFIX;
+import static bubble.abp.BlockListSource.TITLE_PREFIX;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * List loading. Run with -prof gc to see allocation per load.
+ *
+ * readLinesLegacy reproduces the old BufferedReader/trim/replace loop, readLines does the same classification
+ * with BlockListLineReader; the difference is the line-handling overhead removed from every download.
+ * parseSpecs runs BlockSpec.parse over the list's rule lines, without reading or indexing.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class BlockListParseBenchmark {
+
+    @Param({BenchmarkLists.ANTI_MALWARE, BenchmarkLists.SYNTHETIC}) public String list;
+    @Param({"500000"}) public int syntheticRules;
+
+    private byte[] data;
+    private List<String> rules;
+
+    @Setup public void setup() throws IOException {
+        data = BenchmarkLists.list(list, syntheticRules);
+        rules = new ArrayList<>();
+        try (BlockListLineReader r = new BlockListLineReader(new ByteArrayInputStream(data))) {
+            CharSequence line;
+            while ((line = r.nextLine()) != null) {
+                if (line.charAt(0) != '!' && line.charAt(0) != '[') rules.add(line.toString());
+            }
+        }
+    }
+
+    @Benchmark public BlockListSource download() throws IOException {
+        return BenchmarkLists.source(data).download();
+    }
+
+    @Benchmark public void parseSpecs(Blackhole bh) {
+        for (String rule : rules) {
+            try {
+                bh.consume(BlockSpec.parse(rule));
+            } catch (Exception e) {
+                bh.consume(e);
+            }
+        }
+    }
+
+    @Benchmark public void readLinesLegacy(Blackhole bh) throws IOException {
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), UTF_8))) {
+            String line;
+            int lineNumber = 1;
+            while ((line = r.readLine()) != null) {
+                if (line.isEmpty()) { lineNumber++; continue; }
+                line = line.trim();
+                final boolean metadata = lineNumber < 20
+                        && (line.replace(" ", "").startsWith(TITLE_PREFIX) || line.replace(" ", "").startsWith(DESCRIPTION_PREFIX));
+                bh.consume(metadata || line.startsWith("!") ? null : line);
+                lineNumber++;
+            }
+        }
+    }
+
+    @Benchmark public void readLines(Blackhole bh) throws IOException {
+        try (BlockListLineReader r = new BlockListLineReader(new ByteArrayInputStream(data))) {
+            CharSequence line;
+            while ((line = r.nextLine()) != null) {
+                final boolean metadata = r.getLineNumber() < 20
+                        && (BlockListLineReader.startsWithIgnoringSpaces(line, TITLE_PREFIX)
+                        || BlockListLineReader.startsWithIgnoringSpaces(line, DESCRIPTION_PREFIX));
+                bh.consume(metadata || line.charAt(0) == '!' ? null : line.toString());
+            }
+        }
+    }
+
+}
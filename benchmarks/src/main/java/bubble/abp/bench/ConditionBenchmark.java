@@ -0,0 +1,91 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockList;
+import bubble.abp.BlockSpec;
+import bubble.abp.BubbleBlockCondition;
+import bubble.abp.BubbleBlockConditionPlan;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+import bubble.abp.cache.DecisionCacheConfig;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bubble conditional rules (~host~["field operation value", ...]). matchConditions evaluates one
+ * BubbleBlockCondition of each field and operation against every request; matchPlan evaluates the same
+ * conditions as one BubbleBlockConditionPlan, cheapest first, up to the first that fails; decide makes uncached
+ * decisions for the same requests with a list of conditional rules, each with two conditions. The match benchmarks
+ * pass the DecisionRequests themselves, which keep their derived fields between evaluations, as they do across the
+ * specs of one decision.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class ConditionBenchmark {
+
+    private static final String[] CONDITIONS = {
+            "host eq host1.example.com",
+            "path re_find ^/ads/[0-9]+",
+            "url re_exact .*[.]example[.]com/track/.*",
+            "content_type contains text/html",
+            "referer_host ne example.org",
+            "referer_url re_find [?&]utm_source=",
+    };
+
+    @Param({"200"}) public int rules;
+    @Param({"1000"}) public int requestCount;
+
+    private BubbleBlockCondition[] conditions;
+    private BubbleBlockConditionPlan plan;
+    private CompiledBlockList compiled;
+    private List<DecisionRequest> requests;
+
+    @Setup public void setup() {
+        conditions = BubbleBlockCondition.parse(CONDITIONS);
+        plan = new BubbleBlockConditionPlan(conditions, null);
+
+        final Random random = new Random(1L);
+        final BlockList blockList = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+        for (int i = 0; i < rules; i++) {
+            final String first = CONDITIONS[1 + random.nextInt(CONDITIONS.length - 1)];
+            final String second = CONDITIONS[1 + random.nextInt(CONDITIONS.length - 1)];
+            blockList.addToBlacklist(BlockSpec.parse("~host" + i + ".example.com~[\"" + first + "\", \"" + second + "\"]"));
+        }
+        compiled = blockList.compile();
+
+        requests = new ArrayList<>(requestCount);
+        for (int i = 0; i < requestCount; i++) {
+            requests.add(new DecisionRequest("host" + random.nextInt(rules * 2) + ".example.com",
+                    random.nextBoolean() ? "/ads/" + random.nextInt(1000) : "/track/" + random.nextInt(1000),
+                    random.nextBoolean() ? "text/html" : "image/png",
+                    random.nextBoolean() ? "https://example.org/?utm_source=x" : "https://www.example.net/page",
+                    false));
+        }
+    }
+
+    @Benchmark public void matchConditions(Blackhole bh) {
+        for (DecisionRequest r : requests) {
+            for (BubbleBlockCondition condition : conditions) {
+                bh.consume(condition.matches(r));
+            }
+        }
+    }
+
+    @Benchmark public void matchPlan(Blackhole bh) {
+        for (DecisionRequest r : requests) {
+            bh.consume(plan.matches(r));
+        }
+    }
+
+    @Benchmark public void decide(Blackhole bh) {
+        for (DecisionRequest r : requests) {
+            bh.consume(compiled.getDecision(r.getFqdn(), r.getPath(), r.getContentType(), r.getReferer(), r.isPrimary()));
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockDecision;
+import bubble.abp.BlockList;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+import bubble.abp.cache.DecisionCacheConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One getDecision (or getFqdnDecision) call per operation, cycling through a fixed mix of requests, see
+ * BenchmarkLists.requests. The cache param picks the decision cache:
+ *
+ * off:  maxSize zero, so every call walks the indexes and matches candidates
+ * cold: a cache a tenth the size of the request set, so every lookup misses and every decision is put
+ * warm: a cache larger than the request set, so after the first pass every lookup hits
+ *
+ * getFqdnDecision does not use the cache. Run with -prof gc: with the cache off, gc.alloc.rate.norm is the
+ * allocation per decision.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class DecisionBenchmark {
+
+    @Param({BenchmarkLists.ANTI_MALWARE, BenchmarkLists.SYNTHETIC}) public String list;
+    @Param({"500000"}) public int syntheticRules;
+    @Param({"1000"}) public int requestCount;
+    @Param({"50"}) public int hosts;
+    @Param({"off", "cold", "warm"}) public String cache;
+
+    private CompiledBlockList compiled;
+    private DecisionRequest[] requests;
+
+    @State(Scope.Thread)
+    public static class Cursor { int next; }
+
+    @Setup public void setup() throws IOException {
+        final BlockList blockList = BenchmarkLists.source(BenchmarkLists.list(list, syntheticRules)).download().getBlockList();
+        compiled = blockList.setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(cacheSize())).compile();
+        final List<DecisionRequest> generated = BenchmarkLists.requests(compiled, requestCount, hosts, 1L);
+        requests = generated.toArray(new DecisionRequest[0]);
+    }
+
+    private int cacheSize() {
+        switch (cache) {
+            case "off":  return 0;
+            case "cold": return requestCount / 10;
+            case "warm": return requestCount * 2;
+            default: throw new IllegalArgumentException("cacheSize: unknown cache: "+cache);
+        }
+    }
+
+    @Benchmark public BlockDecision decide(Cursor cursor) {
+        final DecisionRequest r = requests[cursor.next];
+        cursor.next = (cursor.next + 1) % requests.length;
+        return compiled.getDecision(r.getFqdn(), r.getPath(), r.getContentType(), r.getReferer(), r.isPrimary());
+    }
+
+    @Benchmark public BlockDecision fqdnDecision(Cursor cursor) {
+        final DecisionRequest r = requests[cursor.next];
+        cursor.next = (cursor.next + 1) % requests.length;
+        return compiled.getFqdnDecision(r.getFqdn());
+    }
+
+}
@@ -0,0 +1,40 @@
+package bubble.abp.bench;
+
+import bubble.abp.DecisionRequest;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a generated list and a request trace aimed at it, for load tests outside JMH:
+ *
+ *     java -cp benchmarks/target/benchmarks.jar bubble.abp.bench.GenerateMain rules requests dir [seed]
+ *
+ * writes dir/list.txt (see ListGenerator) and dir/trace.tsv (see TraceGenerator.write), with default settings.
+ */
+public class GenerateMain {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: GenerateMain rules requests dir [seed]");
+            System.exit(2);
+        }
+        final int rules = Integer.parseInt(args[0]);
+        final int count = Integer.parseInt(args[1]);
+        final File dir = new File(args[2]);
+        final long seed = args.length > 3 ? Long.parseLong(args[3]) : 1L;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IllegalStateException("main: error creating "+dir);
+
+        final GeneratedList list = new ListGenerator().setSeed(seed).generate(rules);
+        Files.write(new File(dir, "list.txt").toPath(), list.getBytes());
+        final List<DecisionRequest> requests = new TraceGenerator().setSeed(seed).generate(list, count);
+        try (Writer out = Files.newBufferedWriter(new File(dir, "trace.tsv").toPath(), UTF_8)) {
+            TraceGenerator.write(requests, out);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockSpec;
+import bubble.abp.BlockTarget;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.index.BlockSpecIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A list's text, with the hosts and paths a TraceGenerator needs to aim requests at its rules:
+ *
+ * blockedHosts: any request to these is blocked
+ * blockedPaths: paths blocked on any host
+ * whitelistedHosts: any request to these is allowed by a whitelist rule
+ * cosmeticHosts: hosts with element hiding rules, so their pages get filter decisions
+ */
+public class GeneratedList {
+
+    private static final String UNLISTED_HOST = "www.unlisted.example.org";
+
+    private final String text;
+    private final List<String> blockedHosts;
+    private final List<String> blockedPaths;
+    private final List<String> whitelistedHosts;
+    private final List<String> cosmeticHosts;
+
+    public GeneratedList(String text, List<String> blockedHosts, List<String> blockedPaths,
+                         List<String> whitelistedHosts, List<String> cosmeticHosts) {
+        this.text = text;
+        this.blockedHosts = Collections.unmodifiableList(blockedHosts);
+        this.blockedPaths = Collections.unmodifiableList(blockedPaths);
+        this.whitelistedHosts = Collections.unmodifiableList(whitelistedHosts);
+        this.cosmeticHosts = Collections.unmodifiableList(cosmeticHosts);
+    }
+
+    /**
+     * @return the targets of an existing list: the domains of its host-wide rules, the paths of its plain path
+     * rules (with * filled in) that the rule blocks on any host, and the hosts of its element hiding rules
+     */
+    public static GeneratedList of(CompiledBlockList list) {
+        final List<String> blockedHosts = new ArrayList<>();
+        final List<String> blockedPaths = new ArrayList<>();
+        final List<String> cosmeticHosts = new ArrayList<>();
+        for (BlockSpec spec : list.getBlacklist()) {
+            final BlockTarget target = spec.getTarget();
+            if (BlockSpecIndex.isHostWide(spec)) {
+                blockedHosts.add(target.getDomain());
+            } else if (spec.hasSelector()) {
+                // host##selector is parsed as a regex target whose literal is the host
+                final String host = target.hasDomain() ? target.getDomain() : target.getLiteral();
+                if (host != null && host.indexOf('.') != -1 && host.indexOf('/') == -1) cosmeticHosts.add(host);
+            } else if (BlockSpecIndex.isLiteralIndexable(spec)) {
+                final String line = spec.getLine();
+                if (line.startsWith("/") && !line.endsWith("/") && line.indexOf('$') == -1) {
+                    final String path = line.replace("*", "x");
+                    if (spec.matches(UNLISTED_HOST, path, null, null)) blockedPaths.add(path);
+                }
+            }
+        }
+        final List<String> whitelistedHosts = new ArrayList<>();
+        for (BlockSpec spec : list.getWhitelist()) {
+            if (BlockSpecIndex.isHostWide(spec)) whitelistedHosts.add(spec.getTarget().getDomain());
+        }
+        return new GeneratedList(null, blockedHosts, blockedPaths, whitelistedHosts, cosmeticHosts);
+    }
+
+    /**
+     * @return the list's text, or null for a list made with GeneratedList.of
+     */
+    public String getText() { return text; }
+    public byte[] getBytes() { return text == null ? null : text.getBytes(UTF_8); }
+
+    public List<String> getBlockedHosts() { return blockedHosts; }
+    public List<String> getBlockedPaths() { return blockedPaths; }
+    public List<String> getWhitelistedHosts() { return whitelistedHosts; }
+    public List<String> getCosmeticHosts() { return cosmeticHosts; }
+
+}
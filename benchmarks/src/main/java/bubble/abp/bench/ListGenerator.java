@@ -0,0 +1,130 @@
+package bubble.abp.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates ABP lists of any size with a configurable mix of rule kinds. Each kind has a weight; a rule's kind is
+ * drawn in proportion to the weights. The same seed and settings always give the same list. The default weights
+ * are per mille; regex and conditional rules are rare, as in real lists.
+ *
+ * Hosts are drawn from separate namespaces per role (blocked, whitelisted, element hiding, excluded), so a
+ * TraceGenerator can aim requests at rules of each kind; see GeneratedList.
+ */
+public class ListGenerator {
+
+    private long seed = 1L;
+
+    private int domainWeight = 520;         // ||host^
+    private int exactWeight = 40;           // |host/path|
+    private int wildcardWeight = 100;       // /path*pixel.gif
+    private int regexWeight = 1;            // /regex/
+    private int domainOptionWeight = 60;    // ||host^$script,domain=~excluded
+    private int cosmeticWeight = 100;       // host##selector, and a few generic ##selector
+    private int bubbleWeight = 1;           // ~host/path~["conditions"]
+    private int whitelistWeight = 80;       // @@||host^
+    private int commentWeight = 98;         // ! comment
+
+    public ListGenerator setSeed(long seed) { this.seed = seed; return this; }
+    public ListGenerator setDomainWeight(int weight) { domainWeight = weight; return this; }
+    public ListGenerator setExactWeight(int weight) { exactWeight = weight; return this; }
+    public ListGenerator setWildcardWeight(int weight) { wildcardWeight = weight; return this; }
+    public ListGenerator setRegexWeight(int weight) { regexWeight = weight; return this; }
+    public ListGenerator setDomainOptionWeight(int weight) { domainOptionWeight = weight; return this; }
+    public ListGenerator setCosmeticWeight(int weight) { cosmeticWeight = weight; return this; }
+    public ListGenerator setBubbleWeight(int weight) { bubbleWeight = weight; return this; }
+    public ListGenerator setWhitelistWeight(int weight) { whitelistWeight = weight; return this; }
+    public ListGenerator setCommentWeight(int weight) { commentWeight = weight; return this; }
+
+    /**
+     * @param rules the number of lines to generate, comments included
+     */
+    public GeneratedList generate(int rules) {
+        final int[] weights = {domainWeight, exactWeight, wildcardWeight, regexWeight, domainOptionWeight,
+                cosmeticWeight, bubbleWeight, whitelistWeight, commentWeight};
+        int total = 0;
+        for (int w : weights) {
+            if (w < 0) throw new IllegalArgumentException("generate: negative weight");
+            total += w;
+        }
+        if (total == 0) throw new IllegalArgumentException("generate: all weights are zero");
+
+        final Random random = new Random(seed);
+        final List<String> blockedHosts = new ArrayList<>();
+        final List<String> blockedPaths = new ArrayList<>();
+        final List<String> whitelistedHosts = new ArrayList<>();
+        final List<String> cosmeticHosts = new ArrayList<>();
+        final int spread = Math.max(1, rules);
+        final StringBuilder b = new StringBuilder("[Adblock Plus 2.0]\n! Title: synthetic\n");
+        for (int i = 0; i < rules; i++) {
+            int pick = random.nextInt(total);
+            int kind = 0;
+            while (pick >= weights[kind]) pick -= weights[kind++];
+            final int n = random.nextInt(spread);
+            switch (kind) {
+                case 0: {
+                    final String host = "ads" + n + ".tracker" + (i % 97) + ".com";
+                    blockedHosts.add(host);
+                    b.append("||").append(host).append('^');
+                    break;
+                }
+                case 1: {
+                    final String host = "dl" + n + ".files" + (i % 53) + ".net";
+                    final String path = "/get/" + random.nextInt(1000) + "/setup.exe";
+                    b.append('|').append(host).append(path).append('|');
+                    break;
+                }
+                case 2: {
+                    final String dir = "/track/" + random.nextInt(1000) + "/";
+                    final String file = "pixel" + random.nextInt(1000) + ".gif";
+                    blockedPaths.add(dir + file);
+                    b.append(dir).append('*').append(file);
+                    break;
+                }
+                case 3: {
+                    final int size = random.nextInt(1000);
+                    blockedPaths.add("/banner" + size + "x90.gif");
+                    b.append("/banner(").append(size).append('|').append(size + 1).append(")x90\\.gif/");
+                    break;
+                }
+                case 4: {
+                    // blocks scripts only, so its host is not a sure hit
+                    final String host = "cdn" + n + ".adserver" + (i % 89) + ".com";
+                    b.append("||").append(host).append("^$script,domain=~excluded").append(i % 13).append(".example.org");
+                    break;
+                }
+                case 5: {
+                    if (random.nextInt(50) == 0) {
+                        b.append("##.sponsored-").append(n);
+                    } else {
+                        final String host = "news" + n + ".site" + (i % 71) + ".com";
+                        cosmeticHosts.add(host);
+                        b.append(host).append("##").append(random.nextBoolean()
+                                ? ".ad-slot-" + random.nextInt(1000)
+                                : "div[id^=\"ad_" + random.nextInt(1000) + "\"]");
+                    }
+                    break;
+                }
+                case 6: {
+                    final String host = "app" + n + ".widgets" + (i % 61) + ".com";
+                    blockedHosts.add(host);
+                    b.append('~').append(host).append("~[\"referer_host ne ").append(host).append("\"]");
+                    break;
+                }
+                case 7: {
+                    final String host = "cdn" + n + ".partner" + (i % 43) + ".com";
+                    whitelistedHosts.add(host);
+                    b.append("@@||").append(host).append('^');
+                    break;
+                }
+                default:
+                    b.append("! comment ").append(i);
+                    break;
+            }
+            b.append('\n');
+        }
+        return new GeneratedList(b.toString(), blockedHosts, blockedPaths, whitelistedHosts, cosmeticHosts);
+    }
+
+}
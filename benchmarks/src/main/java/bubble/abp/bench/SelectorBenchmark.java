@@ -0,0 +1,45 @@
+package bubble.abp.bench;
+
+import bubble.abp.selector.BlockSelector;
+import bubble.abp.selector.SelectorParseError;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BlockSelector.buildSelector over every element hiding rule of a list: the AntiMalwareABP.txt selectors, or
+ * EasyList's (set -Dabp.bench.easylist=path to use the real list; otherwise selectors in the same styles are
+ * generated). Reports the time to build all of them.
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class SelectorBenchmark {
+
+    public static final String EASYLIST = "easylist";
+
+    @Param({BenchmarkLists.ANTI_MALWARE, EASYLIST}) public String list;
+    @Param({"20000"}) public int generatedSelectors;
+
+    private List<String> selectors;
+
+    @Setup public void setup() throws IOException {
+        selectors = list.equals(EASYLIST)
+                ? BenchmarkLists.easyListSelectors(generatedSelectors, 1L)
+                : BenchmarkLists.selectors(BenchmarkLists.antiMalware());
+    }
+
+    @Benchmark public void buildSelectors(Blackhole bh) {
+        for (String selector : selectors) {
+            try {
+                bh.consume(BlockSelector.buildSelector(selector));
+            } catch (SelectorParseError e) {
+                bh.consume(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package bubble.abp.bench;
+
+import bubble.abp.BlockList;
+import bubble.abp.BlockSpec;
+import bubble.abp.BlockTarget;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+import bubble.abp.regex.LinearRegexMatcher;
+import bubble.abp.regex.LiteralRegexMatcher;
+import bubble.abp.regex.RegexMatcher;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * One target matched against one request, as BlockSpec.matches does it: domain targets search the fqdn, the
+ * rest search the path and then fqdn+path. The shape param picks targets of the synthetic list by the matcher
+ * BlockTarget gave them (LiteralRegexMatcher's shapes, or regex for the rest), paired with requests from
+ * BenchmarkLists.requests.
+ *
+ * pattern: java.util.regex, concatenating fqdn and path as BlockSpec.matches used to
+ * linear:  the regex on LinearRegexMatcher, which scans fqdn and path without joining them
+ * target:  the target's own matcher, a literal comparison for every shape but regex
+ */
+@BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3) @Measurement(iterations = 5) @Fork(1)
+@State(Scope.Benchmark)
+public class TargetMatchBenchmark {
+
+    private static final int PAIRS = 1000;
+
+    @Param({"prefix", "exact", "suffix", "wildcard", "regex"}) public String shape;
+    @Param({"100000"}) public int syntheticRules;
+
+    private boolean domain;
+    private Pattern[] patterns;
+    private RegexMatcher[] linear;
+    private RegexMatcher[] targets;
+    private String[] fqdns;
+    private String[] paths;
+
+    @Setup public void setup() throws IOException {
+        final BlockList blockList = BenchmarkLists.source(BenchmarkLists.synthetic(syntheticRules, 1L)).download().getBlockList();
+        domain = shape.equals(LiteralRegexMatcher.Shape.suffix.name());
+        final List<RegexMatcher> found = new ArrayList<>();
+        for (BlockSpec spec : blockList.getBlacklist()) {
+            final BlockTarget target = spec.getTarget();
+            if (target.hasConditions()) continue;
+            final RegexMatcher matcher = domain ? target.getDomainMatcher() : target.getRegexMatcher();
+            if (matcher != null && shapeOf(matcher).equals(shape)) found.add(matcher);
+        }
+        if (found.isEmpty()) throw new IllegalStateException("setup: no targets of shape "+shape);
+
+        final CompiledBlockList compiled = blockList.compile();
+        final List<DecisionRequest> requests = BenchmarkLists.requests(compiled, PAIRS, 50, 1L);
+        patterns = new Pattern[PAIRS];
+        linear = new RegexMatcher[PAIRS];
+        targets = new RegexMatcher[PAIRS];
+        fqdns = new String[PAIRS];
+        paths = new String[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            targets[i] = found.get(i % found.size());
+            patterns[i] = Pattern.compile(targets[i].pattern());
+            linear[i] = LinearRegexMatcher.compile(targets[i].pattern());
+            fqdns[i] = requests.get(i).getFqdn();
+            paths[i] = requests.get(i).getPath();
+        }
+    }
+
+    private static String shapeOf(RegexMatcher matcher) {
+        return matcher instanceof LiteralRegexMatcher ? ((LiteralRegexMatcher) matcher).getShape().name() : "regex";
+    }
+
+    @Benchmark @OperationsPerInvocation(PAIRS) public int pattern() {
+        int found = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            final Pattern p = patterns[i];
+            if (domain ? p.matcher(fqdns[i]).find()
+                    : p.matcher(paths[i]).find() || p.matcher(fqdns[i] + paths[i]).find()) found++;
+        }
+        return found;
+    }
+
+    @Benchmark @OperationsPerInvocation(PAIRS) public int linear() { return run(linear); }
+
+    @Benchmark @OperationsPerInvocation(PAIRS) public int target() { return run(targets); }
+
+    private int run(RegexMatcher[] matchers) {
+        int found = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            final RegexMatcher m = matchers[i];
+            if (domain ? m.find(fqdns[i]) : m.find(paths[i]) || m.find(fqdns[i], paths[i])) found++;
+        }
+        return found;
+    }
+
+}
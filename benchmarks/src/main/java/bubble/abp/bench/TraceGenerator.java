@@ -0,0 +1,173 @@
+package bubble.abp.bench;
+
+import bubble.abp.DecisionRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates request traces aimed at the rules of a GeneratedList. The same seed, settings and list always give
+ * the same trace.
+ *
+ * A primaryRatio share of requests are html page loads, to pages on hosts with element hiding rules and on
+ * unlisted hosts. Of the rest, hitRatio are aimed at a blocked host or a blocked path, whitelistRatio at a
+ * whitelisted host, and the remainder at unlisted hosts with ordinary paths. Within each group, hosts and
+ * paths are drawn from a Zipf distribution, so a few are very popular and most are rare, as in real traffic.
+ */
+public class TraceGenerator {
+
+    private static final String[] PATHS = {
+            "/", "/index.html", "/static/app.%d.js", "/img/%d.png", "/api/v1/items?page=%d", "/css/site.%d.css",
+    };
+    private static final String[] SUBRESOURCE_TYPES = {"image/png", "application/javascript", "text/css", null};
+
+    private long seed = 1L;
+    private int hosts = 1000;
+    private double zipfExponent = 1.0;
+    private double hitRatio = 0.3;
+    private double whitelistRatio = 0.05;
+    private double primaryRatio = 0.1;
+
+    public TraceGenerator setSeed(long seed) { this.seed = seed; return this; }
+
+    /**
+     * @param hosts the number of distinct hosts in the trace, split between the groups by their ratios
+     */
+    public TraceGenerator setHosts(int hosts) {
+        if (hosts < 1) throw new IllegalArgumentException("setHosts: hosts must be positive");
+        this.hosts = hosts;
+        return this;
+    }
+
+    /**
+     * @param zipfExponent 0 draws hosts and paths uniformly; 1 (the default) is classic Zipf
+     */
+    public TraceGenerator setZipfExponent(double zipfExponent) { this.zipfExponent = zipfExponent; return this; }
+    public TraceGenerator setHitRatio(double hitRatio) { this.hitRatio = ratio(hitRatio); return this; }
+    public TraceGenerator setWhitelistRatio(double whitelistRatio) { this.whitelistRatio = ratio(whitelistRatio); return this; }
+    public TraceGenerator setPrimaryRatio(double primaryRatio) { this.primaryRatio = ratio(primaryRatio); return this; }
+
+    private static double ratio(double r) {
+        if (r < 0 || r > 1) throw new IllegalArgumentException("ratio: must be between 0 and 1: "+r);
+        return r;
+    }
+
+    public List<DecisionRequest> generate(GeneratedList list, int count) {
+        if (hitRatio + whitelistRatio > 1) throw new IllegalArgumentException("generate: hitRatio + whitelistRatio > 1");
+        final Random random = new Random(seed);
+        final List<String> blocked = sample(list.getBlockedHosts(), hosts * hitRatio, random);
+        final List<String> whitelisted = sample(list.getWhitelistedHosts(), hosts * whitelistRatio, random);
+        final List<String> cosmetic = sample(list.getCosmeticHosts(), hosts * primaryRatio, random);
+        final List<String> blockedPaths = sample(list.getBlockedPaths(), list.getBlockedPaths().size(), random);
+        final List<String> unlisted = new ArrayList<>();
+        final int unlistedCount = Math.max(1, hosts - blocked.size() - whitelisted.size() - cosmetic.size());
+        for (int i = 0; i < unlistedCount; i++) unlisted.add("www" + i + ".unlisted" + (i % 31) + ".org");
+        final List<String> pages = new ArrayList<>(cosmetic);
+        pages.addAll(unlisted.subList(0, Math.min(unlisted.size(), Math.max(1, cosmetic.size()))));
+
+        final Zipf blockedZipf = new Zipf(blocked.size(), zipfExponent);
+        final Zipf whitelistedZipf = new Zipf(whitelisted.size(), zipfExponent);
+        final Zipf pathZipf = new Zipf(blockedPaths.size(), zipfExponent);
+        final Zipf unlistedZipf = new Zipf(unlisted.size(), zipfExponent);
+        final Zipf pageZipf = new Zipf(pages.size(), zipfExponent);
+
+        final List<DecisionRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (random.nextDouble() < primaryRatio) {
+                requests.add(new DecisionRequest(pages.get(pageZipf.next(random)), path(random), "text/html", null, true));
+                continue;
+            }
+            final double r = random.nextDouble();
+            final String fqdn;
+            final String path;
+            if (r < hitRatio && (!blocked.isEmpty() || !blockedPaths.isEmpty())) {
+                if (!blockedPaths.isEmpty() && (blocked.isEmpty() || random.nextBoolean())) {
+                    fqdn = unlisted.get(unlistedZipf.next(random));
+                    path = blockedPaths.get(pathZipf.next(random));
+                } else {
+                    fqdn = blocked.get(blockedZipf.next(random));
+                    path = path(random);
+                }
+            } else if (r < hitRatio + whitelistRatio && !whitelisted.isEmpty()) {
+                fqdn = whitelisted.get(whitelistedZipf.next(random));
+                path = path(random);
+            } else {
+                fqdn = unlisted.get(unlistedZipf.next(random));
+                path = path(random);
+            }
+            requests.add(new DecisionRequest(fqdn, path, SUBRESOURCE_TYPES[random.nextInt(SUBRESOURCE_TYPES.length)],
+                    "https://" + pages.get(pageZipf.next(random)) + "/", false));
+        }
+        return requests;
+    }
+
+    private static String path(Random random) {
+        return String.format(PATHS[random.nextInt(PATHS.length)], random.nextInt(1000));
+    }
+
+    // a random subset of about count items, ordered randomly: the order is the Zipf rank
+    private static List<String> sample(List<String> items, double count, Random random) {
+        final List<String> shuffled = new ArrayList<>(items);
+        Collections.shuffle(shuffled, random);
+        final int n = count <= 0 ? 0 : (int) Math.max(1, Math.round(count));
+        return shuffled.subList(0, Math.min(n, shuffled.size()));
+    }
+
+    /**
+     * Write requests one per line: fqdn, path, content type, referer and primary, tab-separated, with - for null
+     */
+    public static void write(List<DecisionRequest> requests, Appendable out) throws IOException {
+        for (DecisionRequest r : requests) {
+            out.append(r.getFqdn()).append('\t')
+                    .append(r.getPath()).append('\t')
+                    .append(r.getContentType() == null ? "-" : r.getContentType()).append('\t')
+                    .append(r.getReferer() == null ? "-" : r.getReferer()).append('\t')
+                    .append(String.valueOf(r.isPrimary())).append('\n');
+        }
+    }
+
+    /**
+     * Read requests written by write
+     */
+    public static List<DecisionRequest> read(List<String> lines) {
+        final List<DecisionRequest> requests = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (line.isEmpty()) continue;
+            final String[] f = line.split("\t", -1);
+            if (f.length != 5) throw new IllegalArgumentException("read: invalid trace line: "+line);
+            requests.add(new DecisionRequest(f[0], f[1], f[2].equals("-") ? null : f[2],
+                    f[3].equals("-") ? null : f[3], Boolean.parseBoolean(f[4])));
+        }
+        return requests;
+    }
+
+    // draws ranks 0..n-1 with probability proportional to 1/(rank+1)^exponent
+    private static final class Zipf {
+        private final double[] cdf;
+
+        Zipf(int n, double exponent) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < n; k++) cdf[k] /= sum;
+        }
+
+        int next(Random random) {
+            final double u = random.nextDouble();
+            int lo = 0;
+            int hi = cdf.length - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+}
@@ -0,0 +1,418 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCache;
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.cache.DecisionCacheKey;
+import bubble.abp.cache.DecisionCacheStats;
+import bubble.abp.index.BlockSpecIndex;
+import bubble.abp.metrics.BlockListMetrics;
+import bubble.abp.metrics.SpecProfiler;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes and caches block decisions from the specs a subclass provides: a CompiledBlockList provides its own,
+ * a BlockListView the specs of its lists in a shared BlockListStore plus its private rules.
+ *
+ * Deciding allocates as little as possible. Candidates are collected into per-thread scratch lists, and every
+ * decision returned is an immutable, shared BlockDecision: BLOCK, ALLOW, NO_MATCH, the decision holding every
+ * selector, or a filter decision looked up by the exact specs that matched. A request to a host whose selector
+ * rules have been seen before gets the same instance, with its selector set already built.
+ *
+ * Specs are matched against a DecisionRequest, which computes what they derive from the request once for all of
+ * them. A request given as strings is set on a per-thread DecisionRequest.
+ */
+public abstract class BlockDecider {
+
+    // filter decisions kept for reuse, per decider; past this, new spec combinations get a decision of their own
+    public static final int MAX_SHARED_DECISIONS = 4096;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final Map<SpecList, BlockDecision> sharedDecisions = new ConcurrentHashMap<>();
+    private volatile BlockDecision allSelectorsDecision;
+
+    // a CompiledBlockList gets the metrics of the BlockList it was compiled from
+    private volatile BlockListMetrics metrics = BlockListMetrics.NONE;
+    @JsonIgnore public BlockListMetrics getMetrics() { return metrics; }
+    public BlockDecider setMetrics(BlockListMetrics metrics) {
+        this.metrics = metrics == null ? BlockListMetrics.NONE : metrics;
+        return this;
+    }
+
+    // when set, a sample of spec evaluations is timed and counted; see SpecProfiler
+    private volatile SpecProfiler profiler;
+    @JsonIgnore public SpecProfiler getProfiler() { return profiler; }
+    public BlockDecider setProfiler(SpecProfiler profiler) {
+        this.profiler = profiler;
+        return this;
+    }
+
+    public abstract DecisionCacheConfig getDecisionCacheConfig();
+    public abstract DecisionCache getDecisionCache();
+
+    /**
+     * Add to into the whitelist specs that could match some request to the fqdn, whatever its path: the domain
+     * specs whose domain is a suffix of the fqdn. Shared by every request to the fqdn in a batch.
+     */
+    protected abstract void whitelistHostCandidates(String fqdn, List<BlockSpec> into);
+
+    /**
+     * Add to into the other whitelist specs that could match the request
+     * @param path the path of the request, null when deciding on the fqdn alone
+     */
+    protected abstract void whitelistPathCandidates(String fqdn, String path, List<BlockSpec> into);
+
+    /**
+     * Add to into the blacklist specs that could match some request to the fqdn, whatever its path
+     */
+    protected abstract void blacklistHostCandidates(String fqdn, List<BlockSpec> into);
+
+    /**
+     * Add to into the other blacklist specs that could match the request
+     * @param path the path of the request, null when deciding on the fqdn alone
+     */
+    protected abstract void blacklistPathCandidates(String fqdn, String path, List<BlockSpec> into);
+
+    /**
+     * @return every blacklist spec with a selector
+     */
+    protected abstract List<BlockSpec> selectorSpecs();
+
+    /**
+     * @return true if every whitelist spec is host-wide, see BlockSpecIndex.isHostWide
+     */
+    protected abstract boolean isWhitelistHostWide();
+
+    @JsonIgnore public DecisionCacheStats getDecisionCacheStats() { return getDecisionCache().getStats(); }
+
+    public BlockDecision getDecision(String fqdn, String path) { return getDecision(fqdn, path, null, null, false); }
+
+    public BlockDecision getDecision(String fqdn, String path, boolean primary) {
+        return getDecision(fqdn, path, null, null, primary);
+    }
+
+    public BlockDecision getDecision(String fqdn, String path, String contentType, String referer, boolean primary) {
+        final Scratch scratch = SCRATCH.get();
+        return getDecision(scratch.request.set(fqdn, path, contentType, referer, primary), scratch);
+    }
+
+    /**
+     * As above, for a request the caller keeps; what the decision derives from it stays cached on it
+     */
+    public BlockDecision getDecision(DecisionRequest request) { return getDecision(request, SCRATCH.get()); }
+
+    private BlockDecision getDecision(DecisionRequest request, Scratch scratch) {
+        final BlockListMetrics metrics = this.metrics;
+        if (metrics == BlockListMetrics.NONE) return decideOrGetCached(request, scratch);
+        final long start = System.nanoTime();
+        final BlockDecision decision = decideOrGetCached(request, scratch);
+        metrics.decision(decision, scratch.cached, scratch.scanned, System.nanoTime() - start);
+        return decision;
+    }
+
+    private BlockDecision decideOrGetCached(DecisionRequest request, Scratch scratch) {
+        final String fqdn = request.getFqdn();
+        scratch.cached = true;
+        scratch.scanned = 0;
+        final DecisionCacheConfig cacheConfig = getDecisionCacheConfig();
+        if (!cacheConfig.enabled()) {
+            scratch.cached = false;
+            scratch.collectHost(this, fqdn);
+            return decide(request, scratch);
+        }
+        final DecisionCache decisionCache = getDecisionCache();
+        final boolean fqdnKeys = cacheConfig.fqdnKeys();
+        final DecisionCacheKey fqdnKey = fqdnKeys ? DecisionCacheKey.fqdnKey(fqdn) : null;
+        if (fqdnKeys) {
+            final BlockDecision cached = decisionCache.get(fqdnKey);
+            if (cached != null) return cached;
+        }
+        final DecisionCacheKey urlKey = DecisionCacheKey.urlKey(fqdn, request.getPath(), request.getContentType(),
+                request.getReferer(), request.isPrimary());
+        final BlockDecision cached = decisionCache.get(urlKey);
+        if (cached != null) return cached;
+
+        scratch.cached = false;
+        scratch.collectHost(this, fqdn);
+        final BlockDecision decision = decide(request, scratch);
+        decisionCache.put(fqdnKeys && isHostWide(fqdn, decision, scratch) ? fqdnKey : urlKey, decision);
+        return decision;
+    }
+
+    /**
+     * Decide many requests in one call. Requests are grouped by fqdn: the fqdn cache key is checked and the domain
+     * index walked once per host, then each request of the host only looks up its own path candidates.
+     * @return the decisions, aligned with requests; each is the one getDecision would return for its request
+     */
+    public BlockDecision[] getDecisions(List<DecisionRequest> requests) {
+        final int n = requests.size();
+        final BlockDecision[] decisions = new BlockDecision[n];
+
+        // chain the requests of each host together, keeping the first request of each host in order
+        final int[] next = new int[n];
+        final int[] heads = new int[n];
+        int hostCount = 0;
+        final Map<String, Integer> last = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            next[i] = -1;
+            final Integer previous = last.put(requests.get(i).getFqdn(), i);
+            if (previous == null) {
+                heads[hostCount++] = i;
+            } else {
+                next[previous] = i;
+            }
+        }
+
+        final Scratch scratch = SCRATCH.get();
+        final DecisionCache decisionCache = getDecisionCache();
+        final boolean cacheEnabled = getDecisionCacheConfig().enabled();
+        final boolean fqdnKeys = cacheEnabled && getDecisionCacheConfig().fqdnKeys();
+        final BlockListMetrics metrics = this.metrics;
+        final boolean timed = metrics != BlockListMetrics.NONE;
+        for (int h = 0; h < hostCount; h++) {
+            final String fqdn = requests.get(heads[h]).getFqdn();
+            final DecisionCacheKey fqdnKey = fqdnKeys ? DecisionCacheKey.fqdnKey(fqdn) : null;
+            BlockDecision hostDecision = fqdnKeys ? decisionCache.get(fqdnKey) : null;
+            boolean collected = false;
+            for (int i = heads[h]; i != -1; i = next[i]) {
+                final long start = timed ? System.nanoTime() : 0L;
+                boolean cached = true;
+                scratch.scanned = 0;
+                BlockDecision decision = hostDecision;
+                if (decision == null) {
+                    final DecisionRequest request = requests.get(i);
+                    final DecisionCacheKey urlKey = cacheEnabled ? DecisionCacheKey.urlKey(fqdn, request.getPath(),
+                            request.getContentType(), request.getReferer(), request.isPrimary()) : null;
+                    decision = cacheEnabled ? decisionCache.get(urlKey) : null;
+                    if (decision == null) {
+                        cached = false;
+                        if (!collected) {
+                            scratch.collectHost(this, fqdn);
+                            collected = true;
+                        }
+                        decision = decide(request, scratch);
+                        if (fqdnKeys && isHostWide(fqdn, decision, scratch)) {
+                            // the rest of this host's requests would find it under the fqdn key
+                            decisionCache.put(fqdnKey, decision);
+                            hostDecision = decision;
+                        } else if (cacheEnabled) {
+                            decisionCache.put(urlKey, decision);
+                        }
+                    }
+                }
+                decisions[i] = decision;
+                if (timed) metrics.decision(decision, cached, scratch.scanned, System.nanoTime() - start);
+            }
+        }
+        return decisions;
+    }
+
+    // expects scratch to hold the host candidates for the request's fqdn
+    private BlockDecision decide(DecisionRequest request, Scratch scratch) {
+        final String fqdn = request.getFqdn();
+        final String path = request.getPath();
+        final List<BlockSpec> pathCandidates = scratch.pathCandidates;
+        final SpecProfiler profiler = this.profiler;
+        scratch.scanned += scratch.hostWhitelist.size();
+        if (anyMatches(scratch.hostWhitelist, request, profiler, scratch)) return BlockDecision.ALLOW;
+        pathCandidates.clear();
+        whitelistPathCandidates(fqdn, path, pathCandidates);
+        scratch.scanned += pathCandidates.size();
+        if (anyMatches(pathCandidates, request, profiler, scratch)) return BlockDecision.ALLOW;
+
+        // for non-primary and html requests, every selector applies, whether or not its target matches
+        final boolean allSelectors = !request.isPrimary() || request.isHtml();
+        final SpecList matched = scratch.matched.clear();
+        scratch.scanned += scratch.hostBlacklist.size();
+        if (addMatches(matched, scratch.hostBlacklist, allSelectors, request, profiler, scratch)) {
+            return BlockDecision.BLOCK;
+        }
+        pathCandidates.clear();
+        blacklistPathCandidates(fqdn, path, pathCandidates);
+        scratch.scanned += pathCandidates.size();
+        if (addMatches(matched, pathCandidates, allSelectors, request, profiler, scratch)) {
+            return BlockDecision.BLOCK;
+        }
+
+        // with allSelectors, nothing was added: selectors are skipped, anything else that matched was a block
+        return allSelectors ? getAllSelectorsDecision() : sharedDecision(matched);
+    }
+
+    private static boolean matches(BlockSpec spec, DecisionRequest request, SpecProfiler profiler, Scratch scratch) {
+        if (profiler == null || --scratch.untilSample > 0) return spec.matches(request);
+        scratch.untilSample = profiler.getSampleRate();
+        return profiler.matches(spec, request);
+    }
+
+    private static boolean anyMatches(List<BlockSpec> specs, DecisionRequest request, SpecProfiler profiler, Scratch scratch) {
+        for (int i = 0; i < specs.size(); i++) {
+            if (matches(specs.get(i), request, profiler, scratch)) return true;
+        }
+        return false;
+    }
+
+    // returns true as soon as a spec without a selector matches; otherwise adds the matching selector specs
+    private static boolean addMatches(SpecList matched, List<BlockSpec> specs, boolean allSelectors,
+                                      DecisionRequest request, SpecProfiler profiler, Scratch scratch) {
+        for (int i = 0; i < specs.size(); i++) {
+            final BlockSpec block = specs.get(i);
+            if (allSelectors && block.hasSelector()) continue;
+            if (matches(block, request, profiler, scratch)) {
+                if (!block.hasSelector()) return true;
+                matched.add(block);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the decision for a request that every selector applies to, built once
+     */
+    private BlockDecision getAllSelectorsDecision() {
+        BlockDecision decision = allSelectorsDecision;
+        if (decision == null) allSelectorsDecision = decision = BlockDecision.of(selectorSpecs());
+        return decision;
+    }
+
+    private BlockDecision sharedDecision(SpecList matched) {
+        if (matched.size == 0) return BlockDecision.NO_MATCH;
+        final BlockDecision shared = sharedDecisions.get(matched);
+        if (shared != null) return shared;
+        final BlockDecision decision = BlockDecision.of(matched.toList());
+        if (sharedDecisions.size() >= MAX_SHARED_DECISIONS) return decision;
+        final BlockDecision existing = sharedDecisions.putIfAbsent(new SpecList(matched), decision);
+        return existing != null ? existing : decision;
+    }
+
+    // an allow or block decision holds for every request to the fqdn when a host-wide spec made it,
+    // and (for a block) no whitelist spec could allow some other path
+    private boolean isHostWide(String fqdn, BlockDecision decision, Scratch scratch) {
+        if (decision == BlockDecision.ALLOW) return hasHostWideMatch(fqdn, scratch.hostWhitelist);
+        if (decision == BlockDecision.BLOCK) return isWhitelistHostWide() && hasHostWideMatch(fqdn, scratch.hostBlacklist);
+        return false;
+    }
+
+    // host-wide specs are domain specs, so they are all among the host candidates
+    private static boolean hasHostWideMatch(String fqdn, List<BlockSpec> hostCandidates) {
+        for (int i = 0; i < hostCandidates.size(); i++) {
+            final BlockSpec spec = hostCandidates.get(i);
+            if (BlockSpecIndex.isHostWide(spec) && spec.matchesFqdn(fqdn)) return true;
+        }
+        return false;
+    }
+
+    public BlockDecision getFqdnDecision(String fqdn) {
+        final Scratch scratch = SCRATCH.get();
+        final BlockListMetrics metrics = this.metrics;
+        if (metrics == BlockListMetrics.NONE) return getFqdnDecision(fqdn, scratch);
+        final long start = System.nanoTime();
+        final BlockDecision decision = getFqdnDecision(fqdn, scratch);
+        metrics.fqdnDecision(decision, scratch.scanned, System.nanoTime() - start);
+        return decision;
+    }
+
+    private BlockDecision getFqdnDecision(String fqdn, Scratch scratch) {
+        scratch.collectHost(this, fqdn);
+        final List<BlockSpec> pathCandidates = scratch.pathCandidates;
+        pathCandidates.clear();
+        whitelistPathCandidates(fqdn, null, pathCandidates);
+        scratch.scanned = scratch.hostWhitelist.size() + pathCandidates.size();
+        if (anyMatchesFqdn(scratch.hostWhitelist, fqdn) || anyMatchesFqdn(pathCandidates, fqdn)) {
+            return BlockDecision.ALLOW;
+        }
+        final SpecList matched = scratch.matched.clear();
+        scratch.scanned += scratch.hostBlacklist.size();
+        if (addFqdnMatches(matched, scratch.hostBlacklist, fqdn)) return BlockDecision.BLOCK;
+        pathCandidates.clear();
+        blacklistPathCandidates(fqdn, null, pathCandidates);
+        scratch.scanned += pathCandidates.size();
+        if (addFqdnMatches(matched, pathCandidates, fqdn)) return BlockDecision.BLOCK;
+        return sharedDecision(matched);
+    }
+
+    private static boolean anyMatchesFqdn(List<BlockSpec> specs, String fqdn) {
+        for (int i = 0; i < specs.size(); i++) {
+            if (specs.get(i).matchesFqdn(fqdn)) return true;
+        }
+        return false;
+    }
+
+    private static boolean addFqdnMatches(SpecList matched, List<BlockSpec> specs, String fqdn) {
+        for (int i = 0; i < specs.size(); i++) {
+            final BlockSpec block = specs.get(i);
+            if (block.matchesFqdn(fqdn)) {
+                if (!block.hasSelector()) return true;
+                matched.add(block);
+            }
+        }
+        return false;
+    }
+
+    // candidate lists and a request reused by every decision on a thread; deciding never re-enters, so one set is enough
+    private static final class Scratch {
+        final List<BlockSpec> hostWhitelist = new ArrayList<>();
+        final List<BlockSpec> hostBlacklist = new ArrayList<>();
+        final List<BlockSpec> pathCandidates = new ArrayList<>();
+        final SpecList matched = new SpecList();
+        // the request being decided, when it was given as strings
+        final DecisionRequest request = new DecisionRequest();
+
+        // for metrics: how the last decision was made
+        boolean cached;
+        int scanned;
+
+        // evaluations left before the next one a SpecProfiler samples
+        int untilSample;
+
+        void collectHost(BlockDecider decider, String fqdn) {
+            hostWhitelist.clear();
+            hostBlacklist.clear();
+            decider.whitelistHostCandidates(fqdn, hostWhitelist);
+            decider.blacklistHostCandidates(fqdn, hostBlacklist);
+        }
+    }
+
+    // the specs that matched a request, compared by identity: the key of a shared decision
+    private static final class SpecList {
+        private BlockSpec[] specs;
+        private int size;
+        private int hash;
+
+        SpecList() { specs = new BlockSpec[8]; }
+
+        SpecList(SpecList other) {
+            specs = Arrays.copyOf(other.specs, other.size);
+            size = other.size;
+            hash = other.hash;
+        }
+
+        SpecList clear() {
+            Arrays.fill(specs, 0, size, null);
+            size = 0;
+            hash = 1;
+            return this;
+        }
+
+        void add(BlockSpec spec) {
+            if (size == specs.length) specs = Arrays.copyOf(specs, size * 2);
+            specs[size++] = spec;
+            hash = 31 * hash + System.identityHashCode(spec);
+        }
+
+        List<BlockSpec> toList() { return Arrays.asList(Arrays.copyOf(specs, size)); }
+
+        @Override public int hashCode() { return hash; }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof SpecList)) return false;
+            final SpecList other = (SpecList) o;
+            if (other.size != size || other.hash != hash) return false;
+            for (int i = 0; i < size; i++) if (other.specs[i] != specs[i]) return false;
+            return true;
+        }
+    }
+
+}
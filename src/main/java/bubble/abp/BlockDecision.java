@@ -4,26 +4,72 @@ import bubble.abp.selector.BlockSelector;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
-import lombok.Setter;
 import lombok.experimental.Accessors;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
 
+/**
+ * The outcome of a block decision. Decisions returned by a BlockDecider are immutable and may be shared between
+ * requests and threads: BLOCK, ALLOW, NO_MATCH, or a filter decision whose selector set is computed once.
+ * A decision created with the no-arg constructor stays mutable; BlockDecision.of(specs) builds an immutable one.
+ */
 @NoArgsConstructor @Accessors(chain=true)
 public class BlockDecision {
 
-    public static final BlockDecision BLOCK = new BlockDecision().setDecisionType(BlockDecisionType.block);
-    public static final BlockDecision ALLOW = new BlockDecision().setDecisionType(BlockDecisionType.allow);
+    public static final BlockDecision BLOCK = new BlockDecision().setDecisionType(BlockDecisionType.block).freeze();
+    public static final BlockDecision ALLOW = new BlockDecision().setDecisionType(BlockDecisionType.allow).freeze();
 
-    @Getter @Setter BlockDecisionType decisionType = BlockDecisionType.allow;
-    @Getter @Setter List<BlockSpec> specs;
+    // nothing matched: the request is allowed, but unlike ALLOW no whitelist rule allowed it
+    public static final BlockDecision NO_MATCH = new BlockDecision().freeze();
+
+    @Getter BlockDecisionType decisionType = BlockDecisionType.allow;
+    @Getter List<BlockSpec> specs;
     public boolean hasSpecs () { return !empty(specs); }
 
+    @JsonIgnore @Getter private boolean immutable;
+    private Set<BlockSelector> selectors;
+
+    /**
+     * @return an immutable decision holding specs, typed as if each had been added in turn
+     */
+    public static BlockDecision of(Collection<BlockSpec> specs) {
+        if (empty(specs)) return NO_MATCH;
+        final BlockDecision decision = new BlockDecision();
+        for (BlockSpec spec : specs) decision.add(spec);
+        return decision.freeze();
+    }
+
+    private BlockDecision freeze() {
+        if (specs != null) specs = Collections.unmodifiableList(specs);
+        selectors = Collections.unmodifiableSet(BlockSelector.getSelectors(specs));
+        immutable = true;
+        return this;
+    }
+
+    private void checkMutable() {
+        if (immutable) throw new IllegalStateException("BlockDecision is immutable: "+this);
+    }
+
+    public BlockDecision setDecisionType(BlockDecisionType decisionType) {
+        checkMutable();
+        this.decisionType = decisionType;
+        return this;
+    }
+
+    public BlockDecision setSpecs(List<BlockSpec> specs) {
+        checkMutable();
+        this.specs = specs;
+        return this;
+    }
+
     public BlockDecision add(BlockSpec spec) {
+        checkMutable();
         if (specs == null) specs = new ArrayList<>();
         specs.add(spec);
         if (decisionType != BlockDecisionType.block && (spec.hasTypeMatches() || spec.hasSelector())) {
@@ -32,7 +78,9 @@ public class BlockDecision {
         return this;
     }
 
-    @JsonIgnore public Set<BlockSelector> getSelectors() { return BlockSelector.getSelectors(specs); }
+    @JsonIgnore public Set<BlockSelector> getSelectors() {
+        return selectors != null ? selectors : BlockSelector.getSelectors(specs);
+    }
 
     @Override public String toString () {
         return "BlockDecision{"+decisionType+(hasSpecs() ? ", "+specs.size()+" specs" : "")+"}";
@@ -1,37 +1,108 @@
 package bubble.abp;
 
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.cache.DecisionCacheStats;
+import bubble.abp.index.BlockSpecIndex;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.metrics.BlockListMetrics;
+import bubble.abp.metrics.SpecProfiler;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.collection.ExpirationEvictionPolicy;
-import org.cobbzilla.util.collection.ExpirationMap;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static java.util.concurrent.TimeUnit.MINUTES;
-import static org.cobbzilla.util.daemon.ZillaRuntime.hashOf;
-import static org.cobbzilla.util.http.HttpContentTypes.isHtml;
-
 @NoArgsConstructor @Accessors(chain=true) @Slf4j
 public class BlockList {
 
-    @Getter private final Set<String> rejectList = new HashSet<>();
-    @Getter private final Set<BlockSpec> blacklist = new HashSet<>();
-    @Getter private final Set<BlockSpec> whitelist = new HashSet<>();
+    // insertion-ordered, so decisions and snapshots do not depend on hash iteration order
+    private final Set<String> rejectList = new LinkedHashSet<>();
+    private final Set<BlockSpec> blacklist = new LinkedHashSet<>();
+    private final Set<BlockSpec> whitelist = new LinkedHashSet<>();
+
+    // read-only views: a change must go through the mutators below, which discard the compiled snapshot.
+    // like any read of this list, iterating a view while another thread changes the list needs its lock
+    public Set<String> getRejectList() { return Collections.unmodifiableSet(rejectList); }
+    public Set<BlockSpec> getBlacklist() { return Collections.unmodifiableSet(blacklist); }
+    public Set<BlockSpec> getWhitelist() { return Collections.unmodifiableSet(whitelist); }
+
+    // compiled lazily on the first decision, discarded whenever the list changes
+    private volatile CompiledBlockList compiled;
+
+    @Getter private BlockSpecIndexMode indexMode = BlockSpecIndexMode.automaton;
+    public synchronized BlockList setIndexMode(BlockSpecIndexMode mode) {
+        indexMode = mode;
+        compiled = null;
+        return this;
+    }
+
+    // to use a different DecisionCache implementation, override DecisionCacheConfig.newCache
+    @JsonIgnore @Getter private DecisionCacheConfig decisionCacheConfig = new DecisionCacheConfig();
+    public synchronized BlockList setDecisionCacheConfig(DecisionCacheConfig config) {
+        decisionCacheConfig = config;
+        compiled = null;
+        return this;
+    }
+
+    // when set, specs are interned as they are added, so lists merged from overlapping sources share their rules
+    @JsonIgnore @Getter @Setter private BlockSpecInterner interner;
+
+    // passed on to every compiled snapshot; see BlockListMetrics
+    @JsonIgnore @Getter private BlockListMetrics metrics = BlockListMetrics.NONE;
+    public synchronized BlockList setMetrics(BlockListMetrics metrics) {
+        this.metrics = metrics == null ? BlockListMetrics.NONE : metrics;
+        if (compiled != null) compiled.setMetrics(this.metrics);
+        return this;
+    }
 
-    public void addToRejectList(String domain) { rejectList.add(domain); }
-    public void addToRejectList(Collection<String> domains) { rejectList.addAll(domains); }
+    // when set, decisions through this list and its snapshots profile the specs they evaluate; null to stop
+    @JsonIgnore @Getter private SpecProfiler profiler;
+    public synchronized BlockList setProfiler(SpecProfiler profiler) {
+        this.profiler = profiler;
+        if (compiled != null) compiled.setProfiler(profiler);
+        return this;
+    }
 
-    public void addToBlacklist(BlockSpec spec) { blacklist.add(spec); }
-    public void addToBlacklist(Collection<BlockSpec> specs) { blacklist.addAll(specs); }
+    private BlockSpec intern(BlockSpec spec) { return interner == null ? spec : interner.intern(spec); }
+    private Collection<BlockSpec> intern(Collection<BlockSpec> specs) {
+        return interner == null ? specs : interner.intern(new ArrayList<>(specs));
+    }
 
-    public void addToWhitelist(BlockSpec spec) { whitelist.add(spec); }
-    public void addToWhitelist(Collection<BlockSpec> specs) { whitelist.addAll(specs); }
+    public synchronized void addToRejectList(String domain) { rejectList.add(domain); compiled = null; }
+    public synchronized void addToRejectList(Collection<String> domains) { rejectList.addAll(domains); compiled = null; }
+
+    public synchronized void addToBlacklist(BlockSpec spec) { blacklist.add(intern(spec)); compiled = null; }
+    public synchronized void addToBlacklist(Collection<BlockSpec> specs) { blacklist.addAll(intern(specs)); compiled = null; }
+
+    public synchronized void addToWhitelist(BlockSpec spec) { whitelist.add(intern(spec)); compiled = null; }
+    public synchronized void addToWhitelist(Collection<BlockSpec> specs) { whitelist.addAll(intern(specs)); compiled = null; }
+
+    // removed one by one: Set.removeAll calls contains on its argument when that is the larger collection
+    public synchronized void removeFromRejectList(Collection<String> domains) { for (String d : domains) rejectList.remove(d); compiled = null; }
+    public synchronized void removeFromBlacklist(Collection<BlockSpec> specs) { for (BlockSpec s : specs) blacklist.remove(s); compiled = null; }
+    public synchronized void removeFromWhitelist(Collection<BlockSpec> specs) { for (BlockSpec s : specs) whitelist.remove(s); compiled = null; }
+
+    /**
+     * Apply an incremental update: removals first, so a spec that was both removed and added stays.
+     */
+    public synchronized void apply(BlockListChanges changes) {
+        removeFromWhitelist(changes.getRemovedWhitelist());
+        removeFromBlacklist(changes.getRemovedBlacklist());
+        removeFromRejectList(changes.getRemovedRejectList());
+        whitelist.addAll(intern(changes.getAddedWhitelist()));
+        blacklist.addAll(intern(changes.getAddedBlacklist()));
+        rejectList.addAll(changes.getAddedRejectList());
+        compiled = null;
+    }
 
     public void merge(BlockList other) {
         addToWhitelist(other.getWhitelist());
@@ -39,50 +110,55 @@ public class BlockList {
         addToRejectList(other.getRejectList());
     }
 
+    /**
+     * @return a new immutable snapshot of this list, with all indexes built. Later changes to this list
+     * do not affect the snapshot.
+     */
+    public synchronized CompiledBlockList compile() {
+        final long start = System.nanoTime();
+        final CompiledBlockList c = new CompiledBlockList(rejectList, blacklist, whitelist, indexMode, decisionCacheConfig);
+        final long nanos = System.nanoTime() - start;
+        c.setProfiler(profiler);
+        if (metrics == BlockListMetrics.NONE) return c;
+        c.setMetrics(metrics);
+        metrics.compiled(c.getBlacklistIndex().getStats(), c.getWhitelistIndex().getStats(), nanos);
+        return c;
+    }
+
+    /**
+     * @return the snapshot used for decisions made through this list, compiled on demand
+     */
+    @JsonIgnore public CompiledBlockList getCompiled() {
+        CompiledBlockList c = compiled;
+        if (c == null) {
+            synchronized (this) {
+                c = compiled;
+                if (c == null) compiled = c = compile();
+            }
+        }
+        return c;
+    }
+
+    @JsonIgnore public BlockSpecIndex getBlacklistIndex() { return getCompiled().getBlacklistIndex(); }
+    @JsonIgnore public BlockSpecIndex getWhitelistIndex() { return getCompiled().getWhitelistIndex(); }
+
+    @JsonIgnore public DecisionCacheStats getDecisionCacheStats() { return getCompiled().getDecisionCacheStats(); }
+
     public BlockDecision getDecision(String fqdn, String path) { return getDecision(fqdn, path, null, null, false); }
 
     public BlockDecision getDecision(String fqdn, String path, boolean primary) {
         return getDecision(fqdn, path, null, null, primary);
     }
 
-    private final ExpirationMap<String, BlockDecision> decisionCache
-            = new ExpirationMap<>(100, MINUTES.toMillis(10), ExpirationEvictionPolicy.atime);
-
     public BlockDecision getDecision(String fqdn, String path, String contentType, String referer, boolean primary) {
-        final String cacheKey = hashOf(fqdn, path, contentType, referer, primary);
-        return decisionCache.computeIfAbsent(cacheKey, k -> {
-            for (BlockSpec allow : whitelist) {
-                if (allow.matches(fqdn, path, contentType, referer)) {
-                    return BlockDecision.ALLOW;
-                }
-            }
-            final BlockDecision decision = new BlockDecision();
-            for (BlockSpec block : blacklist) {
-                if (block.matches(fqdn, path, contentType, referer)) {
-                    if (!block.hasSelector()) return BlockDecision.BLOCK;
-                    decision.add(block);
-
-                } else if (block.hasSelector() && (!primary || isHtml(contentType))) {
-                    decision.add(block);
-                }
-            }
-            return decision;
-        });
+        return getCompiled().getDecision(fqdn, path, contentType, referer, primary);
     }
 
-    public BlockDecision getFqdnDecision(String fqdn) {
-        for (BlockSpec allow : whitelist) {
-            if (allow.matchesFqdn(fqdn)) return BlockDecision.ALLOW;
-        }
-        final BlockDecision decision = new BlockDecision();
-        for (BlockSpec block : blacklist) {
-            if (block.matchesFqdn(fqdn)) {
-                if (!block.hasSelector()) return BlockDecision.BLOCK;
-                decision.add(block);
-            }
-        }
-        return decision;
-    }
+    public BlockDecision getDecision(DecisionRequest request) { return getCompiled().getDecision(request); }
+
+    public BlockDecision[] getDecisions(List<DecisionRequest> requests) { return getCompiled().getDecisions(requests); }
+
+    public BlockDecision getFqdnDecision(String fqdn) { return getCompiled().getFqdnDecision(fqdn); }
 
     @JsonIgnore public Set<BlockSpec> getBlacklistDomains() {
         return blacklist.stream().filter(BlockSpec::hasNoSelector).collect(Collectors.toSet());
@@ -92,31 +168,11 @@ public class BlockList {
         return whitelist.stream().filter(BlockSpec::hasNoSelector).collect(Collectors.toSet());
     }
 
-    public Set<String> getWhitelistDomainNames() {
-        return getWhitelistDomains().stream()
-                .filter(m -> m.getTarget().hasFullDomainBlock() || m.getTarget().hasPartialDomainBlock())
-                .map(m -> m.getTarget().hasFullDomainBlock() ? m.getTarget().getFullDomainBlock() : m.getTarget().getPartialDomainBlock())
-                .collect(Collectors.toSet());
-    }
+    // packed into DomainSets once per compiled snapshot, rather than rebuilt from the specs on every call
+    public Set<String> getWhitelistDomainNames() { return getCompiled().getWhitelistDomainNames(); }
 
-    @JsonIgnore public Set<String> getFullyBlockedDomains() {
-        final Set<String> blockedDomains = new HashSet<>();
-        final Set<BlockSpec> whitelistDomains = getWhitelistDomains();
-        for (BlockSpec spec : getBlacklistDomains()) {
-            if (whitelistDomains.contains(spec) || !spec.getTarget().hasFullDomainBlock()) continue;
-            if (!spec.getTarget().hasConditions()) blockedDomains.add(spec.getTarget().getFullDomainBlock());
-        }
-        return blockedDomains;
-    }
+    @JsonIgnore public Set<String> getFullyBlockedDomains() { return getCompiled().getFullyBlockedDomains(); }
 
-    @JsonIgnore public Set<String> getPartiallyBlockedDomains() {
-        final Set<String> blockedDomains = new HashSet<>();
-        final Set<BlockSpec> whitelistDomains = getWhitelistDomains();
-        for (BlockSpec spec : getBlacklistDomains()) {
-            if (whitelistDomains.contains(spec) || !spec.getTarget().hasPartialDomainBlock()) continue;
-            blockedDomains.add(spec.getTarget().getPartialDomainBlock());
-        }
-        return blockedDomains;
-    }
+    @JsonIgnore public Set<String> getPartiallyBlockedDomains() { return getCompiled().getPartiallyBlockedDomains(); }
 
 }
@@ -0,0 +1,90 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCacheKey;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static bubble.abp.index.BlockSpecIndex.isDomainIndexable;
+import static bubble.abp.index.BlockSpecIndex.isLiteralIndexable;
+
+/**
+ * The specs an incremental update added to and removed from a BlockList.
+ * Used to carry over the cached decisions that none of the changes could affect.
+ */
+@NoArgsConstructor
+public class BlockListChanges {
+
+    @Getter private final List<BlockSpec> addedWhitelist = new ArrayList<>();
+    @Getter private final List<BlockSpec> removedWhitelist = new ArrayList<>();
+    @Getter private final List<BlockSpec> addedBlacklist = new ArrayList<>();
+    @Getter private final List<BlockSpec> removedBlacklist = new ArrayList<>();
+    @Getter private final List<String> addedRejectList = new ArrayList<>();
+    @Getter private final List<String> removedRejectList = new ArrayList<>();
+
+    public int size () {
+        return addedWhitelist.size() + removedWhitelist.size()
+                + addedBlacklist.size() + removedBlacklist.size()
+                + addedRejectList.size() + removedRejectList.size();
+    }
+
+    public boolean isEmpty () { return size() == 0; }
+
+    public BlockListChanges add (BlockListChanges other) {
+        addedWhitelist.addAll(other.addedWhitelist);
+        removedWhitelist.addAll(other.removedWhitelist);
+        addedBlacklist.addAll(other.addedBlacklist);
+        removedBlacklist.addAll(other.removedBlacklist);
+        addedRejectList.addAll(other.addedRejectList);
+        removedRejectList.addAll(other.removedRejectList);
+        return this;
+    }
+
+    /**
+     * @param fqdnKeysAffected true if every fqdn-only key must go, because whether the whitelist is host-wide changed
+     * @return a test that is true for decision cache keys whose cached decision no change could have altered.
+     * Domain specs only affect fqdns ending with their domain, and literal specs only urls containing their literal;
+     * blacklist selectors apply to every html or non-primary request, and any other spec could affect anything.
+     */
+    public Predicate<DecisionCacheKey> unaffected (boolean fqdnKeysAffected) {
+        final List<String> domains = new ArrayList<>();
+        final List<String> literals = new ArrayList<>();
+        boolean allUrlKeys = false;
+        for (List<BlockSpec> specs : List.of(addedWhitelist, removedWhitelist, addedBlacklist, removedBlacklist)) {
+            final boolean blacklist = specs == addedBlacklist || specs == removedBlacklist;
+            for (BlockSpec spec : specs) {
+                if (blacklist && spec.hasSelector()) {
+                    allUrlKeys = true;
+                } else if (isDomainIndexable(spec)) {
+                    domains.add(spec.getTarget().getDomain());
+                } else if (isLiteralIndexable(spec)) {
+                    literals.add(spec.getTarget().getLiteral());
+                } else {
+                    return key -> false;
+                }
+            }
+        }
+        // a literal may match any path, so fqdn-only keys cannot be checked against it
+        final boolean allFqdnKeys = fqdnKeysAffected || !literals.isEmpty();
+        final boolean urlKeys = allUrlKeys;
+        return key -> {
+            if (key.isFqdnOnly() ? allFqdnKeys : urlKeys) return false;
+            final String fqdn = key.getFqdn();
+            if (fqdn == null) return false;
+            for (String domain : domains) {
+                if (fqdn.endsWith(domain)) return false;
+            }
+            if (!literals.isEmpty()) {
+                final String url = key.getPath() == null ? fqdn : fqdn + key.getPath();
+                for (String literal : literals) {
+                    if (url.contains(literal)) return false;
+                }
+            }
+            return true;
+        };
+    }
+
+}
@@ -0,0 +1,27 @@
+package bubble.abp;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.InputStream;
+
+/**
+ * The result of a conditional fetch: either notModified, or a stream of the new contents with its validators.
+ */
+@AllArgsConstructor
+public class BlockListFetchResult {
+
+    private static final BlockListFetchResult NOT_MODIFIED = new BlockListFetchResult(true, null, null, null);
+
+    @Getter private final boolean notModified;
+    @Getter private final InputStream stream;
+    @Getter private final String etag;
+    @Getter private final String lastModified;
+
+    public static BlockListFetchResult notModified () { return NOT_MODIFIED; }
+
+    public static BlockListFetchResult modified (InputStream stream, String etag, String lastModified) {
+        return new BlockListFetchResult(false, stream, etag, lastModified);
+    }
+
+}
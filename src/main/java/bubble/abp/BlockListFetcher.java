@@ -0,0 +1,25 @@
+package bubble.abp;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the contents of a block list or an included file.
+ * The default fetches over the network and supports conditional HTTP requests; tests can serve lists from a local directory instead.
+ */
+@FunctionalInterface
+public interface BlockListFetcher {
+
+    BlockListFetcher DEFAULT = new HttpBlockListFetcher();
+
+    InputStream fetch(String url) throws IOException;
+
+    /**
+     * Fetch url unless it is unchanged since the response that returned etag/lastModified (either may be null).
+     * Fetchers that cannot tell always return the contents.
+     */
+    default BlockListFetchResult fetchIfModified(String url, String etag, String lastModified) throws IOException {
+        return BlockListFetchResult.modified(fetch(url), null, null);
+    }
+
+}
@@ -0,0 +1,111 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.metrics.BlockListMetrics;
+import bubble.abp.metrics.SpecProfiler;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Holds the active CompiledBlockList and replaces it atomically.
+ *
+ * A request should call get() once and use the returned snapshot for all of its decisions. A refresh builds and
+ * compiles the new list off to the side, then swaps it in; requests that already hold the old snapshot keep using it.
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class BlockListHolder {
+
+    @Getter @Setter private BlockSpecIndexMode indexMode = BlockSpecIndexMode.automaton;
+    @Getter @Setter private DecisionCacheConfig decisionCacheConfig = new DecisionCacheConfig();
+    @Getter @Setter private BlockListFetcher fetcher = BlockListFetcher.DEFAULT;
+    @Getter @Setter private int includeThreads = BlockListIncludes.DEFAULT_THREADS;
+
+    // given to every source refreshed and every snapshot compiled; see BlockListMetrics
+    @Getter @Setter private BlockListMetrics metrics = BlockListMetrics.NONE;
+
+    // given to every snapshot compiled, when set; see SpecProfiler
+    @Getter @Setter private SpecProfiler profiler;
+
+    // off by default, as interning adds about a third to parse time. set it (BlockSpecInterner.SHARED, for every
+    // holder in the process) when several tenants load overlapping lists, so they share one copy of each rule
+    @Getter @Setter private BlockSpecInterner interner;
+
+    private List<BlockListSource> lastSources;
+
+    private final AtomicReference<CompiledBlockList> active = new AtomicReference<>(new BlockList().compile());
+
+    public BlockListHolder(CompiledBlockList initial) { active.set(initial); }
+
+    public CompiledBlockList get() { return active.get(); }
+
+    /**
+     * @return the snapshot that was replaced
+     */
+    public CompiledBlockList swap(CompiledBlockList next) { return active.getAndSet(next); }
+
+    public CompiledBlockList refresh(BlockListSource source) throws IOException { return refresh(singletonList(source)); }
+
+    /**
+     * Refresh every source (see BlockListSource.refresh), merge them, compile the result and make it active.
+     * Includes are fetched once per refresh and shared between sources.
+     * If no source changed since the last refresh of the same sources, the active snapshot is kept as it is;
+     * if they only changed incrementally, the new snapshot keeps the cached decisions the changes cannot affect.
+     * If any download fails, the active snapshot is left as it was.
+     * @return the new active snapshot
+     */
+    public CompiledBlockList refresh(Collection<BlockListSource> sources) throws IOException {
+        // forgotten until this refresh succeeds, so a source that changed before a failure is merged next time
+        final List<BlockListSource> previous = lastSources;
+        lastSources = null;
+        boolean changed = false;
+        // when every changed source was updated incrementally, cached decisions they cannot affect are kept
+        BlockListChanges changes = new BlockListChanges();
+        try (BlockListIncludes includes = new BlockListIncludes(fetcher, includeThreads)) {
+            for (BlockListSource source : sources) {
+                if (source.setFetcher(fetcher).setIncludes(includes).setInterner(interner).setMetrics(metrics).refresh()) {
+                    changed = true;
+                    if (changes != null && source.getLastChanges() != null) {
+                        changes.add(source.getLastChanges());
+                    } else {
+                        changes = null;
+                    }
+                }
+            }
+        } finally {
+            for (BlockListSource source : sources) source.setIncludes(null);
+        }
+        final List<BlockListSource> current = new ArrayList<>(sources);
+        if (!changed && current.equals(previous)) {
+            lastSources = current;
+            if (log.isDebugEnabled()) log.debug("refresh: no source changed, keeping active snapshot");
+            return get();
+        }
+        final BlockList merged = new BlockList()
+                .setIndexMode(indexMode)
+                .setDecisionCacheConfig(decisionCacheConfig)
+                .setInterner(interner)
+                .setMetrics(metrics)
+                .setProfiler(profiler);
+        for (BlockListSource source : sources) merged.merge(source.getBlockList());
+        lastSources = current;
+
+        final CompiledBlockList next = merged.compile();
+        if (changes != null && current.equals(previous)) next.inheritDecisions(get(), changes);
+        swap(next);
+        if (log.isDebugEnabled()) log.debug("refresh: swapped in "+next.getBlacklistSize()+" blacklist and "+next.getWhitelistSize()+" whitelist specs");
+        return next;
+    }
+
+}
@@ -0,0 +1,119 @@
+package bubble.abp;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static bubble.abp.BlockListLineReader.startsWith;
+import static bubble.abp.BlockListSource.INCLUDE_PREFIX;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.shortError;
+import static org.cobbzilla.util.io.FileUtil.basename;
+
+/**
+ * Fetches !#include files on a bounded pool.
+ *
+ * Each include URL is fetched at most once for the lifetime of this object, so a single instance shared by all
+ * the sources of a refresh downloads a common include only once. A fetch starts as soon as its !#include line is
+ * read, and nested includes start as soon as their parent has been read; the caller then expands the results in
+ * file order, which is also where include cycles are detected.
+ */
+@Slf4j
+public class BlockListIncludes implements Closeable {
+
+    public static final int DEFAULT_THREADS = 4;
+
+    @Getter private final BlockListFetcher fetcher;
+    private final ExecutorService pool;
+    private final Map<String, CompletableFuture<List<BlockListSource.RuleLine>>> files = new ConcurrentHashMap<>();
+    private final AtomicInteger fetchCount = new AtomicInteger();
+
+    public BlockListIncludes () { this(BlockListFetcher.DEFAULT, DEFAULT_THREADS); }
+
+    public BlockListIncludes (BlockListFetcher fetcher, int threads) {
+        this.fetcher = fetcher;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            final Thread t = new Thread(r, "BlockListIncludes-"+threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return how many include files have actually been fetched
+     */
+    public int getFetchCount () { return fetchCount.get(); }
+
+    public static String includeUrl (String url, CharSequence line) {
+        final String includePath = line.subSequence(INCLUDE_PREFIX.length(), line.length()).toString().trim();
+        final String base = basename(url);
+        return url.substring(0, url.length() - base.length()) + includePath;
+    }
+
+    public static boolean isInclude (String url, CharSequence line) {
+        return !empty(url) && startsWith(line, INCLUDE_PREFIX);
+    }
+
+    /**
+     * Start fetching url, unless it has already been started
+     */
+    public CompletableFuture<List<BlockListSource.RuleLine>> prefetch (String url) {
+        final CompletableFuture<List<BlockListSource.RuleLine>> existing = files.get(url);
+        if (existing != null) return existing;
+        final CompletableFuture<List<BlockListSource.RuleLine>> future = new CompletableFuture<>();
+        final CompletableFuture<List<BlockListSource.RuleLine>> raced = files.putIfAbsent(url, future);
+        if (raced != null) return raced;
+        try {
+            pool.execute(() -> {
+                try {
+                    future.complete(read(url));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("prefetch: closed, cannot fetch "+url));
+        }
+        return future;
+    }
+
+    private List<BlockListSource.RuleLine> read (String url) throws IOException {
+        fetchCount.incrementAndGet();
+        if (log.isDebugEnabled()) log.debug("read: fetching include "+url);
+        final List<BlockListSource.RuleLine> lines = new ArrayList<>();
+        try (BlockListLineReader r = new BlockListLineReader(fetcher.fetch(url))) {
+            CharSequence line;
+            while ((line = r.nextLine()) != null) BlockListSource.readLine(url, r.getLineNumber(), line, lines, this);
+        }
+        return lines;
+    }
+
+    /**
+     * Wait for an include started with prefetch
+     * @param chain the include chain that led here, outermost first; if url is already on it, that is a cycle
+     */
+    public List<BlockListSource.RuleLine> get (String url, List<String> chain) throws IOException {
+        if (chain.contains(url)) {
+            throw new IOException("get: include cycle: "+String.join(" -> ", chain)+" -> "+url);
+        }
+        try {
+            return prefetch(url).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("get: interrupted including path: "+url);
+        } catch (ExecutionException e) {
+            throw new IOException("get: error including path: "+url+": "+shortError(e.getCause()));
+        }
+    }
+
+    @Override public void close () { pool.shutdownNow(); }
+
+}
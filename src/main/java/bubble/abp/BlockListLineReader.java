@@ -0,0 +1,142 @@
+package bubble.abp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads a block list one line at a time without creating a String per line.
+ *
+ * Each line is returned as a trimmed CharSequence view over the reader's buffer. The view is reused, and is only
+ * valid until the next call to nextLine; callers call toString() on the lines they keep. Blank lines are skipped.
+ */
+public class BlockListLineReader implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+    private char[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private final Line line = new Line();
+    private int lineNumber = 0;
+
+    public BlockListLineReader(InputStream in) { this(new InputStreamReader(in, UTF_8)); }
+
+    public BlockListLineReader(Reader reader) { this(reader, DEFAULT_BUFFER_SIZE); }
+
+    public BlockListLineReader(Reader reader, int bufferSize) {
+        this.reader = reader;
+        this.buf = new char[bufferSize];
+    }
+
+    /**
+     * @return the number of the line last returned by nextLine, starting at 1. Skipped blank lines are counted.
+     */
+    public int getLineNumber() { return lineNumber; }
+
+    /**
+     * @return the next non-blank line, trimmed, or null at the end of input
+     */
+    public CharSequence nextLine() throws IOException {
+        while (true) {
+            int eol = findEol();
+            if (eol == -1) {
+                if (eof) {
+                    if (pos == limit) return null;
+                    eol = limit;
+                } else {
+                    fill();
+                    continue;
+                }
+            }
+            lineNumber++;
+            int start = pos;
+            int end = eol;
+            pos = eol < limit ? eol + 1 : eol;
+            // handle \r\n
+            if (eol < limit && buf[eol] == '\r' && pos < limit && buf[pos] == '\n') pos++;
+            while (start < end && buf[start] <= ' ') start++;
+            while (end > start && buf[end - 1] <= ' ') end--;
+            if (start == end) continue;
+            return line.set(start, end);
+        }
+    }
+
+    private int findEol() {
+        for (int i = pos; i < limit; i++) {
+            final char c = buf[i];
+            if (c == '\n' || c == '\r') {
+                // a lone \r at the end of the buffer may be followed by \n in the next read
+                if (c == '\r' && i == limit - 1 && !eof) return -1;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+        final int read = reader.read(buf, limit, buf.length - limit);
+        if (read == -1) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    @Override public void close() throws IOException { reader.close(); }
+
+    public static boolean startsWith(CharSequence s, String prefix) {
+        if (s.length() < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if s starts with prefix once all spaces are removed from s
+     */
+    public static boolean startsWithIgnoringSpaces(CharSequence s, String prefix) {
+        int j = 0;
+        for (int i = 0; i < s.length() && j < prefix.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == ' ') continue;
+            if (c != prefix.charAt(j++)) return false;
+        }
+        return j == prefix.length();
+    }
+
+    private class Line implements CharSequence {
+        private int start;
+        private int end;
+
+        Line set(int start, int end) {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override public int length() { return end - start; }
+
+        @Override public char charAt(int index) { return buf[start + index]; }
+
+        @Override public CharSequence subSequence(int from, int to) { return new String(buf, start + from, to - from); }
+
+        @Override public String toString() { return new String(buf, start, end - start); }
+    }
+
+}
@@ -0,0 +1,253 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.index.BlockSpecIndex;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.index.BlockSpecTable;
+import bubble.abp.index.DomainSet;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
+import static bubble.abp.index.SnapshotIO.*;
+import static bubble.abp.selector.BlockSelector.buildSelector;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A binary snapshot of a CompiledBlockList: its reject list, every spec (target, options, conditions and selector)
+ * and both built indexes. Loading a snapshot maps the file and reads the indexes, but no line is parsed and no
+ * regex is compiled. The reject list is used in place, off the heap; each spec is decoded from the mapped file
+ * the first time a lookup touches it, and its patterns compile on first use.
+ *
+ * Layout, big-endian:
+ *   magic (int), FORMAT_VERSION (int), CRC32 of the payload (long), payload length (long), then the payload:
+ *   index mode, reject list, whitelist specs and index, blacklist specs and index.
+ * A spec section is a count, an offset per spec, then the spec records. A file with another format version,
+ * or whose checksum does not match, is rejected with an IOException.
+ */
+@Slf4j
+public class BlockListSnapshot {
+
+    public static final int MAGIC = 0x41425053; // "ABPS"
+
+    // bump whenever the layout or the meaning of any field changes
+    public static final int FORMAT_VERSION = 3;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    private static final int FLAG_LITERAL_AT_START = 1;
+    private static final int FLAG_LITERAL_AT_END = 2;
+    private static final int FLAG_SELECTOR = 4;
+
+    public static void write(BlockList list, File file) throws IOException { write(list.compile(), file); }
+
+    public static void write(CompiledBlockList list, File file) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            writeString(out, list.getBlacklistIndex().getMode().name());
+            list.getRejectList().write(out);
+            writeSpecs(out, list.getWhitelistTable());
+            list.getWhitelistIndex().write(out);
+            writeSpecs(out, list.getBlacklistTable());
+            list.getBlacklistIndex().write(out);
+        }
+        final byte[] bytes = payload.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        // write next to the target and move it into place atomically, so a reader never maps a partial file
+        final File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(crc.getValue());
+            out.writeLong(bytes.length);
+            out.write(bytes);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw new IOException("write: error moving "+temp+" to "+file+": "+e, e);
+        }
+    }
+
+    private static void writeSpecs(DataOutputStream out, BlockSpecTable table) throws IOException {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream recordOut = new DataOutputStream(records);
+        final int[] offsets = new int[table.size()];
+        for (int id = 0; id < offsets.length; id++) {
+            offsets[id] = recordOut.size();
+            writeSpec(recordOut, table.get(id));
+        }
+        recordOut.flush();
+        writeInts(out, offsets);
+        out.writeInt(records.size());
+        records.writeTo(out);
+    }
+
+    private static void writeSpec(DataOutput out, BlockSpec spec) throws IOException {
+        final BlockTarget target = spec.getTarget();
+        writeString(out, spec.getLine());
+        out.writeByte((target.isLiteralAtStart() ? FLAG_LITERAL_AT_START : 0)
+                | (target.isLiteralAtEnd() ? FLAG_LITERAL_AT_END : 0)
+                | (spec.hasSelector() ? FLAG_SELECTOR : 0));
+        writeString(out, target.getFullDomainBlock());
+        writeString(out, target.getPartialDomainBlock());
+        writeString(out, target.getDomain());
+        writeString(out, target.getDomainRegex());
+        writeString(out, target.getRegex());
+        writeString(out, target.getLiteral());
+        if (target.hasConditions()) {
+            out.writeInt(target.getConditions().length);
+            for (BubbleBlockCondition condition : target.getConditions()) {
+                writeString(out, condition.getField().name());
+                writeString(out, condition.getOperation().name());
+                writeString(out, condition.getValue());
+            }
+        } else {
+            out.writeInt(-1);
+        }
+        writeStrings(out, options(spec).toArray(new String[0]));
+    }
+
+    // the options BlockSpec's constructor turns back into the same domain exclusions, types and other options
+    private static List<String> options(BlockSpec spec) {
+        final List<String> options = new ArrayList<>();
+        if (!empty(spec.getDomainExclusions())) {
+            final StringBuilder b = new StringBuilder(BlockSpec.OPT_DOMAIN_PREFIX);
+            for (String domain : spec.getDomainExclusions()) {
+                if (b.length() > BlockSpec.OPT_DOMAIN_PREFIX.length()) b.append('|');
+                b.append('~').append(domain);
+            }
+            options.add(b.toString());
+        }
+        if (spec.getTypeMatches() != null) options.addAll(spec.getTypeMatches());
+        if (spec.getTypeExclusions() != null) {
+            for (String type : spec.getTypeExclusions()) options.add("~" + type);
+        }
+        if (spec.getOtherOptions() != null) options.addAll(spec.getOtherOptions());
+        return options;
+    }
+
+    public static CompiledBlockList load(File file) throws IOException { return load(file, new DecisionCacheConfig()); }
+
+    /**
+     * Map a snapshot written by write. Only the indexes are read up front; specs are decoded as they are touched.
+     */
+    public static CompiledBlockList load(File file, DecisionCacheConfig decisionCacheConfig) throws IOException {
+        final long start = now();
+        final MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.capacity() < HEADER_SIZE) throw new IOException("load("+file+"): not a snapshot, too short");
+        final int magic = mapped.getInt();
+        if (magic != MAGIC) throw new IOException("load("+file+"): not a snapshot, bad magic");
+        final int version = mapped.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("load("+file+"): stale snapshot, format version "+version+" but expected "+FORMAT_VERSION);
+        }
+        final long checksum = mapped.getLong();
+        final long length = mapped.getLong();
+        if (length != mapped.capacity() - HEADER_SIZE) throw new IOException("load("+file+"): truncated snapshot");
+
+        final ByteBuffer payload = mapped.slice();
+        final CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != checksum) throw new IOException("load("+file+"): corrupt snapshot, checksum mismatch");
+
+        try {
+            final BlockSpecIndexMode mode = BlockSpecIndexMode.valueOf(readString(payload));
+            final DomainSet rejectList = DomainSet.read(payload);
+            final BlockSpecTable whitelist = readSpecs(payload);
+            final BlockSpecIndex whitelistIndex = BlockSpecIndex.read(payload, whitelist, mode);
+            final BlockSpecTable blacklist = readSpecs(payload);
+            final BlockSpecIndex blacklistIndex = BlockSpecIndex.read(payload, blacklist, mode);
+            if (log.isDebugEnabled()) log.debug("load("+file+"): loaded "+blacklist.size()+" blacklist and "+whitelist.size()+" whitelist specs in "+(now()-start)+"ms");
+            return new CompiledBlockList(rejectList, blacklist, whitelist, blacklistIndex, whitelistIndex, decisionCacheConfig);
+
+        } catch (RuntimeException e) {
+            throw new IOException("load("+file+"): invalid snapshot: "+e, e);
+        }
+    }
+
+    private static BlockSpecTable readSpecs(ByteBuffer in) {
+        final int[] offsets = readInts(in);
+        final int recordsLength = in.getInt();
+        final ByteBuffer records = in.slice();
+        records.limit(recordsLength);
+        in.position(in.position() + recordsLength);
+        return new MappedSpecTable(records, offsets);
+    }
+
+    /**
+     * Decodes each spec from the mapped file the first time it is looked up
+     */
+    private static class MappedSpecTable implements BlockSpecTable {
+
+        private final ByteBuffer records;
+        private final int[] offsets;
+        private final AtomicReferenceArray<BlockSpec> specs;
+
+        MappedSpecTable(ByteBuffer records, int[] offsets) {
+            this.records = records;
+            this.offsets = offsets;
+            this.specs = new AtomicReferenceArray<>(offsets.length);
+        }
+
+        @Override public int size() { return offsets.length; }
+
+        @Override public BlockSpec get(int id) {
+            final BlockSpec spec = specs.get(id);
+            if (spec != null) return spec;
+            // a race decodes the spec twice; either copy is equal, and the first one stored wins
+            specs.compareAndSet(id, null, decode(id));
+            return specs.get(id);
+        }
+
+        private BlockSpec decode(int id) {
+            final ByteBuffer in = records.duplicate();
+            in.position(offsets[id]);
+            final String line = readString(in);
+            final int flags = in.get();
+            final BlockTarget target = new BlockTarget()
+                    .setFullDomainBlock(readString(in))
+                    .setPartialDomainBlock(readString(in))
+                    .setDomain(readString(in))
+                    .setDomainRegex(readString(in))
+                    .setRegex(readString(in))
+                    .setLiteral(readString(in))
+                    .setLiteralAtStart((flags & FLAG_LITERAL_AT_START) != 0)
+                    .setLiteralAtEnd((flags & FLAG_LITERAL_AT_END) != 0);
+            final int conditionCount = in.getInt();
+            if (conditionCount >= 0) {
+                final BubbleBlockCondition[] conditions = new BubbleBlockCondition[conditionCount];
+                for (int i = 0; i < conditionCount; i++) {
+                    conditions[i] = new BubbleBlockCondition()
+                            .setField(BubbleBlockConditionField.valueOf(readString(in)))
+                            .setOperation(BubbleBlockConditionOperation.valueOf(readString(in)))
+                            .setValue(readString(in));
+                }
+                target.setConditions(conditions);
+            }
+            final List<String> options = List.of(readStrings(in));
+            // the parser takes the selector from the first '#' of the line
+            final String selector = (flags & FLAG_SELECTOR) != 0 ? line.substring(line.indexOf('#')) : null;
+            return new BlockSpec(line, target, options.isEmpty() ? null : options, buildSelector(selector));
+        }
+    }
+
+}
@@ -1,19 +1,26 @@
 package bubble.abp;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import bubble.abp.metrics.BlockListMetrics;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 
+import static bubble.abp.BlockListLineReader.startsWithIgnoringSpaces;
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
-import static org.cobbzilla.util.http.HttpUtil.getUrlInputStream;
-import static org.cobbzilla.util.io.FileUtil.basename;
 
 @NoArgsConstructor @Accessors(chain=true) @Slf4j
 public class BlockListSource {
@@ -21,6 +28,7 @@ public class BlockListSource {
     public static final String INCLUDE_PREFIX = "!#include ";
     public static final String TITLE_PREFIX = "!Title:";
     public static final String DESCRIPTION_PREFIX = "!Description:";
+    public static final String EXPIRES_PREFIX = "!Expires:";
     public static final String WHITELIST_PREFIX = "@@";
     public static final String REJECT_LIST_PREFIX = "~~";
 
@@ -37,78 +45,439 @@ public class BlockListSource {
     @Getter @Setter private Long lastDownloaded;
     public long age () { return lastDownloaded == null ? Long.MAX_VALUE : now() - lastDownloaded; }
 
+    // from the list's "! Expires:" header, in millis
+    @Getter @Setter private Long expires;
+    public boolean isExpired () { return expires == null || age() >= expires; }
+
+    // validators from the last fetch, sent back by refresh so an unchanged list is not downloaded again
+    @Getter @Setter private String etag;
+    @Getter @Setter private String lastModified;
+
+    // sha256 of the last body parsed by refresh, so an unchanged list is not parsed again
+    @Getter @Setter private String contentHash;
+
+    // number of !#include lines expanded by the last download; their contents are not covered by the validators above
+    @Getter @Setter private int includeCount;
+
     @Getter @Setter private BlockList blockList = new BlockList();
 
-    public InputStream urlInputStream() throws IOException { return getUrlInputStream(url); }
-
-    public BlockListSource download() throws IOException {
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(urlInputStream()))) {
-            String line;
-            boolean firstLine = true;
-            int lineNumber = 1;
-            while ( (line = r.readLine()) != null ) {
-                if (empty(line)) {
-                    lineNumber++;
-                    continue;
-                }
-                line = line.trim();
-                if (firstLine && line.startsWith("[") && line.endsWith("]")) {
-                    format = line.substring(1, line.length()-1);
-                }
-                firstLine = false;
-                addLine(url, lineNumber, line);
-                lineNumber++;
+    // the body of the last list parsed by refresh, diffed against the next one so only changed lines are parsed
+    @JsonIgnore private byte[] parsedBody;
+
+    // what the last incremental refresh added and removed; null if it parsed the whole list
+    @JsonIgnore @Getter private BlockListChanges lastChanges;
+
+    // for each spec (or reject entry) produced by more than one distinct line, how many lines beyond the first:
+    // an incremental update only removes what no remaining line still produces
+    @JsonIgnore private Duplicates duplicates = new Duplicates();
+
+    private static class Duplicates {
+        final Map<BlockSpec, Integer> whitelist = new HashMap<>();
+        final Map<BlockSpec, Integer> blacklist = new HashMap<>();
+        final Map<String, Integer> rejectList = new HashMap<>();
+
+        Duplicates copy() {
+            final Duplicates copy = new Duplicates();
+            copy.whitelist.putAll(whitelist);
+            copy.blacklist.putAll(blacklist);
+            copy.rejectList.putAll(rejectList);
+            return copy;
+        }
+    }
+
+    // rule lines are parsed in chunks of parseChunkSize lines, on parseThreads threads
+    public static final int DEFAULT_PARSE_CHUNK_SIZE = 4096;
+    @JsonIgnore @Getter @Setter private int parseThreads = 1;
+    @JsonIgnore @Getter @Setter private int parseChunkSize = DEFAULT_PARSE_CHUNK_SIZE;
+
+    // fetches the list and its includes; a shared BlockListIncludes lets several sources fetch a common include once
+    @JsonIgnore @Getter @Setter private BlockListFetcher fetcher = BlockListFetcher.DEFAULT;
+    @JsonIgnore @Getter @Setter private BlockListIncludes includes;
+
+    // when set, parsed specs are interned, sharing their parts with the specs of other lists
+    @JsonIgnore @Getter @Setter private BlockSpecInterner interner;
+    @JsonIgnore @Getter @Setter private int includeThreads = BlockListIncludes.DEFAULT_THREADS;
+
+    // told of each download and parse, and of every line that fails to parse; see BlockListMetrics
+    @JsonIgnore @Getter private BlockListMetrics metrics = BlockListMetrics.NONE;
+    public BlockListSource setMetrics(BlockListMetrics metrics) {
+        this.metrics = metrics == null ? BlockListMetrics.NONE : metrics;
+        return this;
+    }
+
+    public InputStream urlInputStream() throws IOException { return fetcher.fetch(url); }
+
+    public BlockListSource download() throws IOException { return download(urlInputStream()); }
+
+    /**
+     * Download and parse the list again only if it has changed: not before it expires, not if the server
+     * answers 304 Not Modified, and not if the body hashes the same as last time.
+     *
+     * When the list has changed, only the lines added or removed since the last refresh are parsed, and the
+     * resulting specs are added to or removed from blockList (see lastChanges). If more than half the lines
+     * changed, or there was no previous refresh, blockList is replaced with a new BlockList holding the new contents.
+     * Lists with includes are always fetched and parsed in full once expired, since an include may change on its own.
+     *
+     * If reading or parsing the new list fails, the source is left as it was: the same blockList, and the same
+     * validators and hash, so the next refresh fetches and parses the list again.
+     * @return true if blockList changed
+     */
+    public boolean refresh() throws IOException {
+        if (lastDownloaded != null && !isExpired()) return false;
+
+        final boolean conditional = lastDownloaded != null && includeCount == 0;
+        final BlockListFetchResult result = conditional
+                ? fetcher.fetchIfModified(url, etag, lastModified)
+                : fetcher.fetchIfModified(url, null, null);
+        if (result.isNotModified()) {
+            lastDownloaded = now();
+            return false;
+        }
+        final byte[] body;
+        try (InputStream in = result.getStream()) {
+            body = in.readAllBytes();
+        }
+
+        final String hash = sha256(body);
+        if (conditional && hash.equals(contentHash)) {
+            if (log.isDebugEnabled()) log.debug("refresh("+url+"): content unchanged, not parsing");
+            etag = result.getEtag();
+            lastModified = result.getLastModified();
+            lastDownloaded = now();
+            return false;
+        }
+
+        // build the new state in locals; if anything below throws, this source is left as it was
+        final long start = System.nanoTime();
+        final ReadList read = readRules(new ByteArrayInputStream(body));
+        Duplicates nextDuplicates = parsedBody == null || read.includeCount > 0 ? null : duplicates.copy();
+        final BlockListChanges changes = nextDuplicates == null ? null : update(parsedBody, read.rules, nextDuplicates, start);
+        BlockList next = blockList;
+        if (changes == null) {
+            next = new BlockList()
+                    .setIndexMode(blockList.getIndexMode())
+                    .setDecisionCacheConfig(blockList.getDecisionCacheConfig())
+                    .setMetrics(blockList.getMetrics())
+                    .setProfiler(blockList.getProfiler())
+                    .setInterner(blockList.getInterner());
+            nextDuplicates = new Duplicates();
+            final int errors = parseRules(read.rules, next, nextDuplicates);
+            metrics.listLoaded(url, read.rules.size(), errors, System.nanoTime() - start);
+        } else {
+            if (log.isDebugEnabled()) log.debug("refresh("+url+"): applying "+changes.size()+" changes");
+            blockList.apply(changes);
+        }
+
+        blockList = next;
+        duplicates = nextDuplicates;
+        lastChanges = changes;
+        etag = result.getEtag();
+        lastModified = result.getLastModified();
+        contentHash = hash;
+        expires = read.expires;
+        includeCount = read.includeCount;
+        parsedBody = includeCount == 0 ? body : null;
+        lastDownloaded = now();
+        return true;
+    }
+
+    // parse only the lines added to or removed from previous, updating duplicates; null if a full parse is needed
+    private BlockListChanges update(byte[] previous, List<RuleLine> rules, Duplicates duplicates, long start) throws IOException {
+        final Set<String> before = ruleLines(previous);
+        final Set<String> after = new HashSet<>();
+        final List<RuleLine> addedLines = new ArrayList<>();
+        for (RuleLine rule : rules) {
+            if (after.add(rule.line) && !before.contains(rule.line)) addedLines.add(rule);
+        }
+        final List<RuleLine> removedLines = new ArrayList<>();
+        for (String line : before) {
+            if (!after.contains(line)) removedLines.add(new RuleLine(url, 0, line, null));
+        }
+        // past this point a full parse costs about the same, and keeps the specs in file order
+        if (addedLines.size() + removedLines.size() > after.size() / 2) return null;
+
+        final ParsedRules added = parseChunk(addedLines, interner, metrics);
+        // these parsed once already, so any errors were reported then
+        final ParsedRules removed = parseChunk(removedLines, null, BlockListMetrics.NONE);
+        final BlockListChanges changes = new BlockListChanges();
+        diff(removed.whitelist, added.whitelist, blockList.getWhitelist(), duplicates.whitelist,
+                changes.getRemovedWhitelist(), changes.getAddedWhitelist());
+        diff(removed.blacklist, added.blacklist, blockList.getBlacklist(), duplicates.blacklist,
+                changes.getRemovedBlacklist(), changes.getAddedBlacklist());
+        diff(removed.rejectList, added.rejectList, blockList.getRejectList(), duplicates.rejectList,
+                changes.getRemovedRejectList(), changes.getAddedRejectList());
+        metrics.listLoaded(url, addedLines.size() + removedLines.size(), added.errors, System.nanoTime() - start);
+        return changes;
+    }
+
+    private static <T> void diff(List<T> removedItems, List<T> addedItems, Set<T> current, Map<T, Integer> duplicates,
+                                 List<T> removed, List<T> added) {
+        for (T item : removedItems) {
+            final Integer count = duplicates.get(item);
+            if (count == null) {
+                removed.add(item);
+            } else if (count == 1) {
+                duplicates.remove(item);
+            } else {
+                duplicates.put(item, count - 1);
+            }
+        }
+        final Set<T> gone = new HashSet<>(removed);
+        final Set<T> fresh = new HashSet<>();
+        for (T item : addedItems) {
+            if ((current.contains(item) && !gone.contains(item)) || !fresh.add(item)) {
+                duplicates.merge(item, 1, Integer::sum);
+            } else {
+                added.add(item);
             }
         }
+    }
+
+    // the distinct rule lines of a body read by a previous refresh, which had no includes
+    private Set<String> ruleLines(byte[] body) throws IOException {
+        final List<RuleLine> lines = new ArrayList<>();
+        try (BlockListLineReader r = new BlockListLineReader(new ByteArrayInputStream(body))) {
+            CharSequence line;
+            while ( (line = r.nextLine()) != null ) readLine(url, r.getLineNumber(), line, lines, null);
+        }
+        final Set<String> rules = new LinkedHashSet<>();
+        for (RuleLine line : lines) {
+            if (!startsWithIgnoringSpaces(line.line, EXPIRES_PREFIX)) rules.add(line.line);
+        }
+        return rules;
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            final StringBuilder b = new StringBuilder(digest.length*2);
+            for (byte d : digest) b.append(Character.forDigit((d >> 4) & 0xf, 16)).append(Character.forDigit(d & 0xf, 16));
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("sha256: "+shortError(e), e);
+        }
+    }
+
+    private BlockListSource download(InputStream in) throws IOException {
+        final long start = System.nanoTime();
+        final ReadList read = readRules(in);
+        final int errors = parseRules(read.rules, blockList, duplicates);
+        includeCount = read.includeCount;
+        if (expires == null) expires = read.expires;
         lastDownloaded = now();
+        metrics.listLoaded(url, read.rules.size(), errors, System.nanoTime() - start);
         return this;
     }
 
-    private void addLine(String url, int lineNumber, String line) throws IOException {
-        if (line.startsWith(INCLUDE_PREFIX) && !empty(url)) {
-            final String includePath = line.substring(INCLUDE_PREFIX.length()).trim();
-            final String base = basename(url);
-            final String urlPrefix = url.substring(0, url.length() - base.length());
-            final String includeUrl = urlPrefix + includePath;
-            try (BufferedReader r = new BufferedReader(new InputStreamReader(getUrlInputStream(includeUrl)))) {
-                String includeLine;
-                int includeLineNumber = 1;
-                while ((includeLine = r.readLine()) != null) {
-                    addLine(includeUrl, includeLineNumber, includeLine);
-                    includeLineNumber++;
+    // what reading a list found, kept apart from this source until the list has parsed
+    private static class ReadList {
+        List<RuleLine> rules = new ArrayList<>();
+        int includeCount;
+        Long expires;
+    }
+
+    // read the list and its includes; the rules are its distinct rule lines in file order
+    private ReadList readRules(InputStream in) throws IOException {
+        final BlockListIncludes inc = includes != null ? includes : new BlockListIncludes(fetcher, includeThreads);
+        try {
+            final List<RuleLine> lines = new ArrayList<>();
+            try (BlockListLineReader r = new BlockListLineReader(in)) {
+                CharSequence line;
+                boolean firstLine = true;
+                while ( (line = r.nextLine()) != null ) {
+                    if (firstLine && line.charAt(0) == '[' && line.charAt(line.length()-1) == ']') {
+                        format = line.subSequence(1, line.length()-1).toString();
+                    }
+                    firstLine = false;
+                    readLine(url, r.getLineNumber(), line, lines, inc);
                 }
-            } catch (Exception e) {
-                throw new IOException("addLine: error including path: " + includeUrl + ": " + shortError(e));
             }
-        } else if (lineNumber < 20 && empty(title) && line.replace(" ", "").startsWith(TITLE_PREFIX)) {
-            title = getMetadata(line);
+            final ReadList read = new ReadList();
+            addLines(url, lines, read, inc, new ArrayList<>());
+            read.rules = distinct(read.rules);
+            return read;
+        } finally {
+            if (includes == null) inc.close();
+        }
+    }
 
-        } else if (lineNumber < 20 && empty(description) && line.replace(" ", "").startsWith(DESCRIPTION_PREFIX)) {
-            description = getMetadata(line);
+    // identical lines produce identical specs, so each distinct line is parsed once
+    private static List<RuleLine> distinct(List<RuleLine> rules) {
+        final Set<String> seen = new HashSet<>(rules.size() * 2);
+        final List<RuleLine> distinct = new ArrayList<>(rules.size());
+        for (RuleLine rule : rules) {
+            if (seen.add(rule.line)) distinct.add(rule);
+        }
+        return distinct;
+    }
+
+    // first pass, while reading: drop comments and start fetching includes (only rule lines become Strings)
+    static void readLine(String url, int lineNumber, CharSequence line, List<RuleLine> lines, BlockListIncludes includes) {
+        if (BlockListIncludes.isInclude(url, line)) {
+            final String includeUrl = BlockListIncludes.includeUrl(url, line);
+            includes.prefetch(includeUrl);
+            lines.add(new RuleLine(url, lineNumber, line.toString(), includeUrl));
 
-        } else if (line.startsWith("!")) {
+        } else if (line.length() > 0 && line.charAt(0) == '!' && !isMetadata(lineNumber, line)) {
             // comment, nothing to add
             return;
+
+        } else {
+            lines.add(new RuleLine(url, lineNumber, line.toString(), null));
         }
+    }
+
+    private static boolean isMetadata(int lineNumber, CharSequence line) {
+        return lineNumber < 20 && (startsWithIgnoringSpaces(line, TITLE_PREFIX)
+                || startsWithIgnoringSpaces(line, DESCRIPTION_PREFIX)
+                || startsWithIgnoringSpaces(line, EXPIRES_PREFIX));
+    }
+
+    // second pass, in file order: expand includes, pick up metadata and collect rule lines
+    private void addLines(String url, List<RuleLine> lines, ReadList read, BlockListIncludes includes, List<String> chain) throws IOException {
+        if (!empty(url)) chain.add(url);
+        for (RuleLine line : lines) {
+            if (line.includeUrl != null) {
+                read.includeCount++;
+                addLines(line.includeUrl, includes.get(line.includeUrl, chain), read, includes, chain);
+                continue;
+
+            } else if (line.lineNumber < 20 && empty(title) && startsWithIgnoringSpaces(line.line, TITLE_PREFIX)) {
+                title = getMetadata(line.line);
+
+            } else if (line.lineNumber < 20 && empty(description) && startsWithIgnoringSpaces(line.line, DESCRIPTION_PREFIX)) {
+                description = getMetadata(line.line);
+
+            } else if (startsWithIgnoringSpaces(line.line, EXPIRES_PREFIX)) {
+                // a comment to everything but refresh
+                if (read.expires == null) read.expires = parseExpires(getMetadata(line.line));
+                continue;
+            }
+            read.rules.add(line);
+        }
+        if (!empty(url)) chain.remove(chain.size()-1);
+    }
+
+    @AllArgsConstructor
+    static class RuleLine {
+        final String url;
+        final int lineNumber;
+        final String line;
+        final String includeUrl;
+    }
+
+    private static class ParsedRules {
+        final List<BlockSpec> whitelist = new ArrayList<>();
+        final List<BlockSpec> blacklist = new ArrayList<>();
+        final List<String> rejectList = new ArrayList<>();
+        int errors;
+    }
+
+    // adds the specs to into; returns the number of lines that failed to parse
+    private int parseRules(List<RuleLine> rules, BlockList into, Duplicates duplicates) throws IOException {
+        if (parseThreads <= 1 || rules.size() <= parseChunkSize) {
+            return addParsedRules(parseChunk(rules, interner, metrics), into, duplicates);
+        }
+        final ForkJoinPool pool = new ForkJoinPool(parseThreads);
+        try {
+            final List<ForkJoinTask<ParsedRules>> chunks = new ArrayList<>();
+            for (int start=0; start<rules.size(); start+=parseChunkSize) {
+                final List<RuleLine> chunk = rules.subList(start, Math.min(start+parseChunkSize, rules.size()));
+                chunks.add(pool.submit(() -> parseChunk(chunk, interner, metrics)));
+            }
+            // merge in chunk order, so the result does not depend on which chunk finished first
+            int errors = 0;
+            for (ForkJoinTask<ParsedRules> chunk : chunks) errors += addParsedRules(chunk.join(), into, duplicates);
+            return errors;
+        } catch (Exception e) {
+            throw new IOException("parseRules: error parsing "+url+": "+shortError(e), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int addParsedRules(ParsedRules parsed, BlockList into, Duplicates duplicates) {
+        for (BlockSpec spec : parsed.whitelist) {
+            if (into.getWhitelist().contains(spec)) duplicates.whitelist.merge(spec, 1, Integer::sum);
+            else into.addToWhitelist(spec);
+        }
+        for (BlockSpec spec : parsed.blacklist) {
+            if (into.getBlacklist().contains(spec)) duplicates.blacklist.merge(spec, 1, Integer::sum);
+            else into.addToBlacklist(spec);
+        }
+        for (String domain : parsed.rejectList) {
+            if (into.getRejectList().contains(domain)) duplicates.rejectList.merge(domain, 1, Integer::sum);
+            else into.addToRejectList(domain);
+        }
+        return parsed.errors;
+    }
+
+    private static ParsedRules parseChunk(List<RuleLine> rules, BlockSpecInterner interner, BlockListMetrics metrics) {
+        final ParsedRules parsed = new ParsedRules();
+        for (RuleLine rule : rules) parseRule(rule, parsed, interner, metrics);
+        return parsed;
+    }
+
+    private static void parseRule(RuleLine rule, ParsedRules parsed, BlockSpecInterner interner, BlockListMetrics metrics) {
+        String line = rule.line;
         try {
             if (line.startsWith(WHITELIST_PREFIX)) {
-                blockList.addToWhitelist(BlockSpec.parse(line.substring(WHITELIST_PREFIX.length())));
+                parsed.whitelist.addAll(parse(line.substring(WHITELIST_PREFIX.length()), interner));
 
             } else if (line.startsWith(REJECT_LIST_PREFIX)) {
                 line = line.substring(REJECT_LIST_PREFIX.length());
-                blockList.addToBlacklist(BlockSpec.parse(line));
-                blockList.addToRejectList(line.trim());
+                parsed.blacklist.addAll(parse(line, interner));
+                parsed.rejectList.add(line.trim());
 
             } else {
-                blockList.addToBlacklist(BlockSpec.parse(line));
+                parsed.blacklist.addAll(parse(line, interner));
             }
         } catch (Exception e) {
-            log.warn("download("+url+"): error parsing line (skipping due to "+shortError(e)+"): " + line);
+            log.warn("download("+rule.url+"): error parsing line "+rule.lineNumber+" (skipping due to "+shortError(e)+"): " + line);
+            parsed.errors++;
+            metrics.parseError(rule.url, rule.lineNumber, rule.line, e);
+        }
+    }
+
+    private static List<BlockSpec> parse(String line, BlockSpecInterner interner) {
+        final List<BlockSpec> specs = BlockSpec.parse(line);
+        return interner == null ? specs : interner.intern(specs);
+    }
+
+    private String getMetadata(CharSequence line) {
+        int colon = -1;
+        for (int i=0; i<line.length(); i++) {
+            if (line.charAt(i) == ':') { colon = i; break; }
         }
+        return line.subSequence(colon+1, line.length()).toString().trim();
     }
 
-    private String getMetadata(String line) { return line.substring(line.indexOf(":")+1).trim(); }
+    // "4 days (update frequency)", "12 hours", "1 day"; a number without a unit is in days
+    private static Long parseExpires(String value) {
+        int i = 0;
+        while (i < value.length() && Character.isDigit(value.charAt(i))) i++;
+        if (i == 0) return null;
+        final long n;
+        try {
+            n = Long.parseLong(value.substring(0, i));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final String unit = value.substring(i).trim().toLowerCase();
+        return unit.startsWith("h") ? TimeUnit.HOURS.toMillis(n)
+                : unit.startsWith("m") ? TimeUnit.MINUTES.toMillis(n)
+                : TimeUnit.DAYS.toMillis(n);
+    }
 
-    public void addEntries(String[] entries) throws IOException { for (String entry : entries) addLine(null, 1, entry); }
+    public void addEntries(String[] entries) throws IOException {
+        final List<RuleLine> lines = new ArrayList<>();
+        for (String entry : entries) readLine(null, 1, entry, lines, null);
+        final ReadList read = new ReadList();
+        addLines(null, lines, read, null, new ArrayList<>());
+        if (expires == null) expires = read.expires;
+        final long start = System.nanoTime();
+        final int errors = parseRules(read.rules, blockList, duplicates);
+        metrics.listLoaded(null, read.rules.size(), errors, System.nanoTime() - start);
+    }
 
 }
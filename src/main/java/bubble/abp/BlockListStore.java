@@ -0,0 +1,150 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.index.BlockSpecIndex;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.index.BlockSpecTable;
+import bubble.abp.index.DomainSet;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * The specs of many named lists, each distinct spec stored and indexed once, for tenants that each subscribe
+ * to some combination of the lists. A tenant decides through a BlockListView: a bitmap of the lists it uses,
+ * plus its own private rules. Every spec records which lists contain it, and a view skips index hits that are
+ * in none of its lists. Memory grows with the number of distinct specs, not with the number of tenants.
+ *
+ * Immutable; to pick up list changes, build a new store and move views onto it with BlockListView.forStore.
+ */
+@Slf4j
+public class BlockListStore {
+
+    @Getter private final List<String> listNames;
+    @JsonIgnore @Getter private final BlockSpecTable blacklistTable;
+    @JsonIgnore @Getter private final BlockSpecTable whitelistTable;
+    @JsonIgnore @Getter private final BlockSpecIndex blacklistIndex;
+    @JsonIgnore @Getter private final BlockSpecIndex whitelistIndex;
+    @JsonIgnore @Getter private final DecisionCacheConfig decisionCacheConfig;
+
+    private final Map<String, Integer> listBits = new HashMap<>();
+    // spec ids by spec, so a view can tell which of its private rules are already in the store
+    private final Map<BlockSpec, Integer> blacklistIds;
+    private final Map<BlockSpec, Integer> whitelistIds;
+    private final DomainSet[] rejectLists;
+
+    // words longs per spec: bit n is set if list n contains the spec
+    private final int words;
+    private final long[] blacklistLists;
+    private final long[] whitelistLists;
+
+    public BlockListStore(Map<String, BlockList> lists) {
+        this(lists, BlockSpecIndexMode.automaton, new DecisionCacheConfig());
+    }
+
+    /**
+     * @param lists the lists by name; a list's bit in a view's bitmap is its position in this map
+     * @param decisionCacheConfig the default for views of this store
+     */
+    public BlockListStore(Map<String, BlockList> lists, BlockSpecIndexMode indexMode, DecisionCacheConfig decisionCacheConfig) {
+        final long start = now();
+        this.listNames = Collections.unmodifiableList(new ArrayList<>(lists.keySet()));
+        this.words = Math.max(1, (listNames.size() + 63) / 64);
+        this.rejectLists = new DomainSet[listNames.size()];
+        this.decisionCacheConfig = decisionCacheConfig;
+
+        // equal specs from different lists share an id, as they would in a merged BlockList
+        final Map<BlockSpec, Integer> blacklistIds = new LinkedHashMap<>();
+        final Map<BlockSpec, Integer> whitelistIds = new LinkedHashMap<>();
+        this.blacklistIds = blacklistIds;
+        this.whitelistIds = whitelistIds;
+        final List<long[]> blacklistBits = new ArrayList<>();
+        final List<long[]> whitelistBits = new ArrayList<>();
+        int bit = 0;
+        for (Map.Entry<String, BlockList> list : lists.entrySet()) {
+            listBits.put(list.getKey(), bit);
+            synchronized (list.getValue()) {
+                for (BlockSpec spec : list.getValue().getBlacklist()) addSpec(spec, bit, blacklistIds, blacklistBits);
+                for (BlockSpec spec : list.getValue().getWhitelist()) addSpec(spec, bit, whitelistIds, whitelistBits);
+                rejectLists[bit] = DomainSet.of(list.getValue().getRejectList());
+            }
+            bit++;
+        }
+        this.blacklistTable = BlockSpecTable.of(blacklistIds.keySet().toArray(new BlockSpec[0]));
+        this.whitelistTable = BlockSpecTable.of(whitelistIds.keySet().toArray(new BlockSpec[0]));
+        this.blacklistLists = flatten(blacklistBits);
+        this.whitelistLists = flatten(whitelistBits);
+        this.blacklistIndex = new BlockSpecIndex(blacklistTable, indexMode);
+        this.whitelistIndex = new BlockSpecIndex(whitelistTable, indexMode);
+        if (log.isDebugEnabled()) log.debug("BlockListStore: indexed "+blacklistTable.size()+" blacklist and "+whitelistTable.size()+" whitelist specs from "+listNames.size()+" lists in "+(now()-start)+"ms");
+    }
+
+    private void addSpec(BlockSpec spec, int bit, Map<BlockSpec, Integer> ids, List<long[]> bits) {
+        final Integer id = ids.computeIfAbsent(spec, s -> {
+            bits.add(new long[words]);
+            return ids.size();
+        });
+        bits.get(id)[bit / 64] |= 1L << (bit % 64);
+    }
+
+    private long[] flatten(List<long[]> bits) {
+        final long[] flat = new long[bits.size() * words];
+        for (int id = 0; id < bits.size(); id++) System.arraycopy(bits.get(id), 0, flat, id * words, words);
+        return flat;
+    }
+
+    public BlockListView view(Collection<String> lists) { return view(lists, null); }
+
+    /**
+     * @param lists the names of the lists the view uses
+     * @param custom private rules of the view, may be null
+     */
+    public BlockListView view(Collection<String> lists, BlockList custom) {
+        return new BlockListView(this, bitmap(lists), custom == null ? null : custom.compile(), decisionCacheConfig);
+    }
+
+    long[] bitmap(Collection<String> lists) {
+        final long[] bitmap = new long[words];
+        for (String name : lists) {
+            final Integer bit = listBits.get(name);
+            if (bit == null) throw new IllegalArgumentException("bitmap: unknown list: "+name);
+            bitmap[bit / 64] |= 1L << (bit % 64);
+        }
+        return bitmap;
+    }
+
+    List<String> listNames(long[] bitmap) {
+        final List<String> names = new ArrayList<>();
+        for (int bit = 0; bit < listNames.size(); bit++) {
+            if ((bitmap[bit / 64] & (1L << (bit % 64))) != 0) names.add(listNames.get(bit));
+        }
+        return names;
+    }
+
+    // the id of an equal spec in the store, or -1
+    int blacklistId(BlockSpec spec) { return blacklistIds.getOrDefault(spec, -1); }
+    int whitelistId(BlockSpec spec) { return whitelistIds.getOrDefault(spec, -1); }
+
+    boolean isBlacklistEnabled(int id, long[] bitmap) { return intersects(blacklistLists, id, bitmap); }
+    boolean isWhitelistEnabled(int id, long[] bitmap) { return intersects(whitelistLists, id, bitmap); }
+
+    private boolean intersects(long[] lists, int id, long[] bitmap) {
+        final int base = id * words;
+        for (int w = 0; w < words; w++) {
+            if ((lists[base + w] & bitmap[w]) != 0) return true;
+        }
+        return false;
+    }
+
+    boolean isRejected(String domain, long[] bitmap) {
+        for (int bit = 0; bit < rejectLists.length; bit++) {
+            if ((bitmap[bit / 64] & (1L << (bit % 64))) != 0 && rejectLists[bit].contains(domain)) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,112 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCache;
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.index.BlockSpecTable;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * One tenant's block list: the lists it uses from a shared BlockListStore, plus private rules of its own.
+ * Makes the same decisions, with the same specs, as a CompiledBlockList merged from those lists and rules, but
+ * holds only a bitmap of lists, its compiled private rules and its own decision cache. The specs of a decision
+ * are ordered by their position in the store, then private rules, so a merged list may list them in another order.
+ */
+public class BlockListView extends BlockDecider {
+
+    @JsonIgnore @Getter private final BlockListStore store;
+    private final long[] lists;
+    @JsonIgnore @Getter private final CompiledBlockList custom;
+    @JsonIgnore @Getter private final DecisionCacheConfig decisionCacheConfig;
+    @JsonIgnore @Getter private final DecisionCache decisionCache;
+
+    private final IntPredicate blacklistEnabled;
+    private final IntPredicate whitelistEnabled;
+    // private specs that do not repeat a shared spec of this view, null if none repeat
+    private final IntPredicate customBlacklistEnabled;
+    private final IntPredicate customWhitelistEnabled;
+
+    BlockListView(BlockListStore store, long[] lists, CompiledBlockList custom, DecisionCacheConfig decisionCacheConfig) {
+        this.store = store;
+        this.lists = lists;
+        this.custom = custom;
+        this.decisionCacheConfig = decisionCacheConfig;
+        this.decisionCache = decisionCacheConfig.newCache();
+        this.blacklistEnabled = id -> store.isBlacklistEnabled(id, lists);
+        this.whitelistEnabled = id -> store.isWhitelistEnabled(id, lists);
+        this.customBlacklistEnabled = custom == null ? null : notShared(custom.getBlacklistTable(), store::blacklistId, blacklistEnabled);
+        this.customWhitelistEnabled = custom == null ? null : notShared(custom.getWhitelistTable(), store::whitelistId, whitelistEnabled);
+    }
+
+    // a merged list holds a rule once, where it was first added; a private rule that a shared list of this
+    // view already has is found there, so it is skipped in the private index
+    private static IntPredicate notShared(BlockSpecTable table, ToIntFunction<BlockSpec> sharedId, IntPredicate sharedEnabled) {
+        BitSet shared = null;
+        for (int id = 0; id < table.size(); id++) {
+            final int sid = sharedId.applyAsInt(table.get(id));
+            if (sid != -1 && sharedEnabled.test(sid)) {
+                if (shared == null) shared = new BitSet(table.size());
+                shared.set(id);
+            }
+        }
+        if (shared == null) return null;
+        final BitSet skip = shared;
+        return id -> !skip.get(id);
+    }
+
+    public List<String> getListNames() { return store.listNames(lists); }
+
+    /**
+     * @return a view of the same lists and private rules in next, with the same metrics and profiler, and an empty decision cache
+     */
+    public BlockListView forStore(BlockListStore next) {
+        final BlockListView view = new BlockListView(next, next.bitmap(getListNames()), custom, decisionCacheConfig);
+        view.setMetrics(getMetrics()).setProfiler(getProfiler());
+        return view;
+    }
+
+    public boolean isRejected(String domain) {
+        return store.isRejected(domain, lists) || (custom != null && custom.getRejectList().contains(domain));
+    }
+
+    // shared specs first, then private ones, as if the private rules were merged in last
+    @Override protected void whitelistHostCandidates(String fqdn, List<BlockSpec> into) {
+        store.getWhitelistIndex().collectHostCandidates(fqdn, whitelistEnabled, into);
+        if (custom != null) custom.getWhitelistIndex().collectHostCandidates(fqdn, customWhitelistEnabled, into);
+    }
+
+    @Override protected void whitelistPathCandidates(String fqdn, String path, List<BlockSpec> into) {
+        store.getWhitelistIndex().collectPathCandidates(fqdn, path, whitelistEnabled, into);
+        if (custom != null) custom.getWhitelistIndex().collectPathCandidates(fqdn, path, customWhitelistEnabled, into);
+    }
+
+    @Override protected void blacklistHostCandidates(String fqdn, List<BlockSpec> into) {
+        store.getBlacklistIndex().collectHostCandidates(fqdn, blacklistEnabled, into);
+        if (custom != null) custom.getBlacklistIndex().collectHostCandidates(fqdn, customBlacklistEnabled, into);
+    }
+
+    @Override protected void blacklistPathCandidates(String fqdn, String path, List<BlockSpec> into) {
+        store.getBlacklistIndex().collectPathCandidates(fqdn, path, blacklistEnabled, into);
+        if (custom != null) custom.getBlacklistIndex().collectPathCandidates(fqdn, path, customBlacklistEnabled, into);
+    }
+
+    @Override protected List<BlockSpec> selectorSpecs() {
+        final List<BlockSpec> shared = store.getBlacklistIndex().getSelectorSpecs(blacklistEnabled);
+        if (custom == null) return shared;
+        final List<BlockSpec> found = new ArrayList<>(shared);
+        found.addAll(custom.getBlacklistIndex().getSelectorSpecs(customBlacklistEnabled));
+        return found;
+    }
+
+    // the store-wide answer is safe for a view: a subset of host-wide specs is host-wide
+    @Override protected boolean isWhitelistHostWide() {
+        return store.getWhitelistIndex().isHostWide() && (custom == null || custom.getWhitelistIndex().isHostWide());
+    }
+
+}
@@ -1,13 +1,12 @@
 package bubble.abp;
 
+import bubble.abp.regex.RegexMatcher;
 import bubble.abp.selector.BlockSelector;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.collection.SingletonList;
-import org.cobbzilla.util.http.HttpContentTypes;
-import org.cobbzilla.util.string.StringUtil;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -38,6 +37,10 @@ public class BlockSpec {
     @Getter private List<String> typeExclusions;
     @Getter private List<String> otherOptions;
 
+    // typeMatches and typeExclusions as DecisionRequest.CONTENT_ bits
+    private int typeMatchMask;
+    private int typeExclusionMask;
+
     @Getter private final BlockSelector selector;
     public boolean hasSelector() { return selector != null; }
     public boolean hasNoSelector() { return !hasSelector(); }
@@ -52,13 +55,12 @@ public class BlockSpec {
         if (options != null) {
             for (String opt : options) {
                 if (opt.startsWith(OPT_DOMAIN_PREFIX)) {
-                    processDomainOptions(opt.substring(OPT_DOMAIN_PREFIX.length()));
+                    processDomainOptions(opt, OPT_DOMAIN_PREFIX.length());
 
                 } else if (opt.startsWith("~")) {
-                    final String type = opt.substring(1);
-                    if (isTypeOption(type)) {
+                    if (isTypeOption(opt, 1)) {
                         if (typeExclusions == null) typeExclusions = new ArrayList<>();
-                        typeExclusions.add(type);
+                        typeExclusions.add(opt.substring(1));
                     } else {
                         if (otherOptions == null) otherOptions = new ArrayList<>();
                         otherOptions.add(opt);
@@ -75,22 +77,64 @@ public class BlockSpec {
                 }
             }
         }
+        typeMatchMask = typeMask(typeMatches);
+        typeExclusionMask = typeMask(typeExclusions);
+    }
+
+    // a copy of spec that uses canonical parts, for BlockSpecInterner
+    BlockSpec(BlockSpec spec, BlockTarget target, BlockSelector selector, List<String> domainExclusions,
+              List<String> typeMatches, List<String> typeExclusions, List<String> otherOptions) {
+        this.line = spec.line;
+        this.target = target;
+        this.selector = selector;
+        this.conditionsHash = spec.conditionsHash;
+        this.domainExclusions = domainExclusions;
+        this.typeMatches = typeMatches;
+        this.typeExclusions = typeExclusions;
+        this.otherOptions = otherOptions;
+        this.typeMatchMask = spec.typeMatchMask;
+        this.typeExclusionMask = spec.typeExclusionMask;
     }
 
-    private void processDomainOptions(String option) {
-        final String[] parts = option.split("\\|");
-        for (String domainOption : parts) {
-            if (domainOption.startsWith("~")) {
+    // the '|'-separated domains of a domain= option, which starts at from. only excluded domains are kept
+    private void processDomainOptions(String option, int from) {
+        while (from <= option.length()) {
+            int end = option.indexOf('|', from);
+            if (end == -1) end = option.length();
+            if (from < end && option.charAt(from) == '~') {
                 if (domainExclusions == null) domainExclusions = new ArrayList<>();
-                domainExclusions.add(domainOption.substring(1));
-            } else {
-                log.debug("ignoring included domain: "+domainOption);
+                domainExclusions.add(option.substring(from + 1, end));
+            } else if (log.isDebugEnabled()) {
+                log.debug("ignoring included domain: "+option.substring(from, end));
             }
+            from = end + 1;
         }
     }
 
-    public boolean isTypeOption(String type) {
-        return type.equals(OPT_SCRIPT) || type.equals(OPT_IMAGE) || type.equals(OPT_STYLESHEET);
+    public boolean isTypeOption(String type) { return isTypeOption(type, 0); }
+
+    // true if type, from offset to its end, is a type option
+    private static boolean isTypeOption(String type, int offset) {
+        final int len = type.length() - offset;
+        return isOption(type, offset, len, OPT_SCRIPT) || isOption(type, offset, len, OPT_IMAGE) || isOption(type, offset, len, OPT_STYLESHEET);
+    }
+
+    private static boolean isOption(String s, int offset, int len, String option) {
+        return len == option.length() && s.startsWith(option, offset);
+    }
+
+    private static int typeMask(List<String> types) {
+        int mask = 0;
+        if (types != null) {
+            for (String type : types) {
+                switch (type) {
+                    case OPT_SCRIPT:     mask |= DecisionRequest.CONTENT_SCRIPT; break;
+                    case OPT_IMAGE:      mask |= DecisionRequest.CONTENT_IMAGE; break;
+                    case OPT_STYLESHEET: mask |= DecisionRequest.CONTENT_STYLESHEET; break;
+                }
+            }
+        }
+        return mask;
     }
 
     public static List<BlockSpec> parse(String line) {
@@ -125,90 +169,88 @@ public class BlockSpec {
             if (selectorStartPos == -1) {
                 // no selector, split into target + options
                 targets = BlockTarget.parse(line.substring(0, optionStartPos));
-                options = StringUtil.splitAndTrim(line.substring(optionStartPos+1), ",");
+                options = parseOptions(line, optionStartPos+1, line.length());
                 selector = null;
             } else {
                 // all 3 elements present
                 targets = BlockTarget.parse(line.substring(0, optionStartPos));
-                options = StringUtil.splitAndTrim(line.substring(optionStartPos + 1, selectorStartPos), ",");
+                options = parseOptions(line, optionStartPos + 1, selectorStartPos);
                 selector = line.substring(selectorStartPos);
             }
         }
-        final List<BlockSpec> specs = new ArrayList<>();
+        final List<BlockSpec> specs = new ArrayList<>(targets.size());
         for (BlockTarget target : targets) specs.add(new BlockSpec(line, target, options, buildSelector(selector)));
         return specs;
     }
 
+    // the trimmed, non-empty ','-separated options in line between from and to. only the options become Strings
+    private static List<String> parseOptions(String line, int from, int to) {
+        final List<String> options = new ArrayList<>();
+        while (from <= to) {
+            int end = line.indexOf(',', from);
+            if (end == -1 || end > to) end = to;
+            int start = from, last = end;
+            while (start < last && line.charAt(start) <= ' ') start++;
+            while (last > start && line.charAt(last - 1) <= ' ') last--;
+            if (start < last) options.add(line.substring(start, last));
+            from = end + 1;
+        }
+        return options;
+    }
+
     public boolean matches(String fqdn, String path, String contentType, String referer) {
+        return matches(new DecisionRequest(fqdn, path, contentType, referer, false));
+    }
 
-        if (target.hasConditions()) return target.conditionsMatch(fqdn, path, contentType, referer);
+    public boolean matches(DecisionRequest request) {
 
-        if (target.hasDomainRegex() && target.getDomainPattern().matcher(fqdn).find()) {
-            return checkDomainExclusionsAndType(fqdn, contentType);
+        if (target.hasConditions()) return target.conditionsMatch(request);
+
+        final String fqdn = request.getFqdn();
+        if (target.hasDomainRegex() && target.getDomainMatcher().find(fqdn)) {
+            return checkDomainExclusionsAndType(request);
 
         } else if (target.hasRegex()) {
-            if (target.getRegexPattern().matcher(path).find()) {
-                return checkDomainExclusionsAndType(fqdn, contentType);
+            final RegexMatcher regex = target.getRegexMatcher();
+            final String path = request.getPath();
+            if (regex.find(path) || regex.find(fqdn, path)) {
+                return checkDomainExclusionsAndType(request);
             }
-            final String full = fqdn + path;
-            if (target.getRegexPattern().matcher(full).find()) {
-                return checkDomainExclusionsAndType(fqdn, contentType);
-            };
         }
         return false;
     }
 
     public boolean matchesFqdn(String fqdn) {
-        if (target.hasDomainRegex() && target.getDomainPattern().matcher(fqdn).find()) {
-            return checkDomainExclusionsAndType(fqdn, null);
+        // without a content type, only the domain exclusions apply
+        if (target.hasDomainRegex() && target.getDomainMatcher().find(fqdn)) {
+            return checkDomainExclusions(fqdn);
 
         } else if (target.hasRegex()) {
-            if (target.getRegexPattern().matcher(fqdn).find()) {
-                return checkDomainExclusionsAndType(fqdn, null);
+            if (target.getRegexMatcher().find(fqdn)) {
+                return checkDomainExclusions(fqdn);
             };
         }
         return false;
     }
 
     public boolean checkDomainExclusionsAndType(String fqdn, String contentType) {
+        return checkDomainExclusionsAndType(new DecisionRequest(fqdn, null, contentType, null, false));
+    }
+
+    public boolean checkDomainExclusionsAndType(DecisionRequest request) {
+        if (!checkDomainExclusions(request.getFqdn())) return false;
+        if (empty(request.getContentType()) || (typeExclusions == null && typeMatches == null)) return true;
+        final int contentTypeMask = request.getContentTypeMask();
+        if ((contentTypeMask & typeExclusionMask) != 0) return false;
+        return typeMatches == null || (contentTypeMask & typeMatchMask) != 0;
+    }
+
+    private boolean checkDomainExclusions(String fqdn) {
         if (domainExclusions != null) {
             for (String domain : domainExclusions) {
                 if (domain.equals(fqdn)) return false;
             }
         }
-        if (!empty(contentType)) {
-            if (typeExclusions != null) {
-                for (String type : typeExclusions) {
-                    switch (type) {
-                        case OPT_SCRIPT:
-                            if (contentType.equals(HttpContentTypes.APPLICATION_JAVASCRIPT)) return false;
-                            break;
-                        case OPT_IMAGE:
-                            if (contentType.startsWith(HttpContentTypes.IMAGE_PREFIX)) return false;
-                            break;
-                        case OPT_STYLESHEET:
-                            if (contentType.equals(HttpContentTypes.TEXT_CSS)) return false;
-                            break;
-                    }
-                }
-            }
-            if (typeMatches != null) {
-                for (String type : typeMatches) {
-                    switch (type) {
-                        case OPT_SCRIPT:
-                            if (contentType.equals(HttpContentTypes.APPLICATION_JAVASCRIPT)) return true;
-                            break;
-                        case OPT_IMAGE:
-                            if (contentType.startsWith(HttpContentTypes.IMAGE_PREFIX)) return true;
-                            break;
-                        case OPT_STYLESHEET:
-                            if (contentType.equals(HttpContentTypes.TEXT_CSS)) return true;
-                            break;
-                    }
-                }
-                return false;
-            }
-        }
         return true;
     }
 
@@ -0,0 +1,183 @@
+package bubble.abp;
+
+import bubble.abp.selector.BlockSelector;
+import bubble.abp.selector.SelectorAttribute;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares identical parts between specs, within a list and across lists: one BlockTarget (and so one compiled
+ * Pattern) per distinct target, one list per distinct set of options, one BlockSelector tree per distinct selector,
+ * and one BlockSpec per distinct rule. Lists that repeat each other's rules, like EasyList and its regional
+ * variants, then cost little more than one of them.
+ *
+ * Canonical instances are held weakly, so a single interner can serve every tenant for the life of the process:
+ * once no list holds a rule, the interner forgets it. Safe to use from several parse threads at once.
+ */
+public class BlockSpecInterner {
+
+    public static final BlockSpecInterner SHARED = new BlockSpecInterner();
+
+    // rough sizes on a 64-bit JVM with compressed references and compact strings
+    private static final int SPEC_BYTES = 48;
+    private static final int TARGET_BYTES = 48 + 2 * 16;  // plus the holders of its two lazy patterns
+    private static final int SELECTOR_BYTES = 40;
+    private static final int ATTRIBUTE_BYTES = 32;
+    private static final int CONDITION_BYTES = 24;
+
+    // the same line always parses to the same specs, one per target
+    private final WeakInterner<BlockSpec> specs = new WeakInterner<>(
+            s -> 31 * s.getLine().hashCode() + targetHash(s.getTarget()),
+            (a, b) -> a.getLine().equals(b.getLine()) && sameTarget(a.getTarget(), b.getTarget()));
+    private final WeakInterner<BlockTarget> targets = new WeakInterner<>(BlockSpecInterner::targetHash, BlockSpecInterner::sameTarget);
+    private final WeakInterner<List<String>> optionLists = new WeakInterner<>(List::hashCode, List::equals);
+    private final WeakInterner<BlockSelector> selectors = new WeakInterner<>(BlockSelector::hashCode, BlockSelector::equals);
+
+    private final LongAdder specCount = new LongAdder();
+    private final LongAdder duplicateSpecs = new LongAdder();
+    private final LongAdder duplicateTargets = new LongAdder();
+    private final LongAdder duplicateOptionLists = new LongAdder();
+    private final LongAdder duplicateSelectors = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public List<BlockSpec> intern(List<BlockSpec> specs) {
+        final List<BlockSpec> interned = new ArrayList<>(specs.size());
+        for (BlockSpec spec : specs) interned.add(intern(spec));
+        return interned;
+    }
+
+    /**
+     * @return the canonical spec equal to spec, made of canonical parts
+     */
+    public BlockSpec intern(BlockSpec spec) {
+        final BlockSpec existing = specs.find(spec);
+        // already canonical, e.g. a parsed spec being merged into another list: nothing to count
+        if (existing == spec) return spec;
+
+        specCount.increment();
+        if (existing != null) {
+            duplicateSpecs.increment();
+            bytesSaved.add(size(spec));
+            return existing;
+        }
+        final BlockTarget target = intern(spec.getTarget());
+        final BlockSelector selector = intern(spec.getSelector());
+        final List<String> domainExclusions = internOptions(spec.getDomainExclusions());
+        final List<String> typeMatches = internOptions(spec.getTypeMatches());
+        final List<String> typeExclusions = internOptions(spec.getTypeExclusions());
+        final List<String> otherOptions = internOptions(spec.getOtherOptions());
+        final BlockSpec candidate = target == spec.getTarget() && selector == spec.getSelector()
+                && domainExclusions == spec.getDomainExclusions() && typeMatches == spec.getTypeMatches()
+                && typeExclusions == spec.getTypeExclusions() && otherOptions == spec.getOtherOptions()
+                ? spec
+                : new BlockSpec(spec, target, selector, domainExclusions, typeMatches, typeExclusions, otherOptions);
+
+        final BlockSpec canonical = specs.intern(candidate);
+        if (canonical != candidate) {
+            // another thread interned the same rule first; the parts were counted as they collapsed
+            duplicateSpecs.increment();
+            bytesSaved.add(SPEC_BYTES + size(spec.getLine()));
+        }
+        return canonical;
+    }
+
+    private BlockTarget intern(BlockTarget target) {
+        final BlockTarget canonical = targets.intern(target);
+        if (canonical != target) {
+            duplicateTargets.increment();
+            bytesSaved.add(size(target));
+        }
+        return canonical;
+    }
+
+    private List<String> internOptions(List<String> options) {
+        if (options == null) return null;
+        final List<String> canonical = optionLists.intern(options);
+        if (canonical != options) {
+            duplicateOptionLists.increment();
+            bytesSaved.add(size(options));
+        }
+        return canonical;
+    }
+
+    private BlockSelector intern(BlockSelector selector) {
+        if (selector == null) return null;
+        final BlockSelector canonical = selectors.intern(selector);
+        if (canonical != selector) {
+            duplicateSelectors.increment();
+            bytesSaved.add(size(selector));
+        }
+        return canonical;
+    }
+
+    public BlockSpecInternerStats getStats() {
+        return new BlockSpecInternerStats()
+                .setSpecs(specCount.sum())
+                .setDuplicateSpecs(duplicateSpecs.sum())
+                .setDuplicateTargets(duplicateTargets.sum())
+                .setDuplicateOptionLists(duplicateOptionLists.sum())
+                .setDuplicateSelectors(duplicateSelectors.sum())
+                .setCanonicalSpecs(specs.size())
+                .setEstimatedBytesSaved(bytesSaved.sum());
+    }
+
+    // every field, unlike BlockTarget.equals, which only compares the regexes
+    private static boolean sameTarget(BlockTarget a, BlockTarget b) {
+        return Objects.equals(a.getRegex(), b.getRegex())
+                && Objects.equals(a.getDomainRegex(), b.getDomainRegex())
+                && Objects.equals(a.getDomain(), b.getDomain())
+                && Objects.equals(a.getFullDomainBlock(), b.getFullDomainBlock())
+                && Objects.equals(a.getPartialDomainBlock(), b.getPartialDomainBlock())
+                && Objects.equals(a.getLiteral(), b.getLiteral())
+                && a.isLiteralAtStart() == b.isLiteralAtStart()
+                && a.isLiteralAtEnd() == b.isLiteralAtEnd()
+                && Arrays.equals(a.getConditions(), b.getConditions());
+    }
+
+    private static int targetHash(BlockTarget t) {
+        int hash = Objects.hashCode(t.getRegex());
+        hash = 31 * hash + Objects.hashCode(t.getDomainRegex());
+        hash = 31 * hash + Objects.hashCode(t.getPartialDomainBlock());
+        return hash;
+    }
+
+    private static long size(BlockSpec spec) {
+        long size = SPEC_BYTES + size(spec.getLine()) + size(spec.getTarget()) + size(spec.getSelector());
+        for (List<String> options : Arrays.asList(spec.getDomainExclusions(), spec.getTypeMatches(), spec.getTypeExclusions(), spec.getOtherOptions())) {
+            if (options != null) size += size(options);
+        }
+        return size;
+    }
+
+    private static long size(String s) { return s == null ? 0 : 24 + align(16 + s.length()); }
+
+    private static long size(List<String> list) {
+        long size = 24 + align(16 + 4L * list.size());
+        for (String s : list) size += size(s);
+        return size;
+    }
+
+    private static long size(BlockTarget t) {
+        long size = TARGET_BYTES + size(t.getRegex()) + size(t.getDomainRegex()) + size(t.getDomain())
+                + size(t.getFullDomainBlock()) + size(t.getPartialDomainBlock()) + size(t.getLiteral());
+        if (t.hasConditions()) {
+            for (BubbleBlockCondition c : t.getConditions()) size += CONDITION_BYTES + size(c.getValue());
+        }
+        return size;
+    }
+
+    private static long size(BlockSelector selector) {
+        long size = 0;
+        for (BlockSelector s = selector; s != null; s = s.getNext()) {
+            size += SELECTOR_BYTES + size(s.getName()) + size(s.getCls());
+            if (s.getAttributes() != null) {
+                for (SelectorAttribute a : s.getAttributes()) size += ATTRIBUTE_BYTES + size(a.getName()) + size(a.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static long align(long bytes) { return (bytes + 7) & ~7L; }
+
+}
@@ -0,0 +1,25 @@
+package bubble.abp;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class BlockSpecInternerStats {
+
+    // specs passed through the interner, and how many of them (or of their parts) were already known
+    @Getter @Setter private long specs;
+    @Getter @Setter private long duplicateSpecs;
+    @Getter @Setter private long duplicateTargets;
+    @Getter @Setter private long duplicateOptionLists;
+    @Getter @Setter private long duplicateSelectors;
+
+    // distinct specs still held by some list
+    @Getter @Setter private int canonicalSpecs;
+
+    // approximate heap not allocated, or released, thanks to the duplicates above
+    @Getter @Setter private long estimatedBytesSaved;
+
+}
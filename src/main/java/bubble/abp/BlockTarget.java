@@ -1,17 +1,21 @@
 package bubble.abp;
 
+import bubble.abp.regex.CachedRegexMatcher;
+import bubble.abp.regex.LiteralRegexMatcher;
+import bubble.abp.regex.RegexCache;
+import bubble.abp.regex.RegexEngine;
+import bubble.abp.regex.RegexMatcher;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.cobbzilla.util.collection.SingletonList;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static bubble.abp.BlockSpec.BUBBLE_BLOCK_SPEC_PREFIX;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
@@ -23,39 +27,83 @@ import static org.cobbzilla.util.string.ValidationRegexes.isHostname;
 @NoArgsConstructor @Accessors(chain=true) @EqualsAndHashCode(of={"domainRegex", "regex"})
 public class BlockTarget {
 
+    // compiles the regexes of targets parsed from here on; linear keeps a hostile rule from pinning a thread
+    private static volatile RegexEngine regexEngine = RegexEngine.linear;
+    public static RegexEngine getRegexEngine() { return regexEngine; }
+    public static void setRegexEngine(RegexEngine engine) { regexEngine = engine; }
+
     @Getter @Setter private String fullDomainBlock;
     public boolean hasFullDomainBlock () { return fullDomainBlock != null; }
 
     @Getter @Setter private String partialDomainBlock;
     public boolean hasPartialDomainBlock () { return partialDomainBlock != null; }
 
+    // the domain suffix matched by domainRegex, used to index domain targets
+    @Getter @Setter private String domain;
+    public boolean hasDomain () { return domain != null; }
+
     @Getter @Setter private String domainRegex;
     public boolean hasDomainRegex() { return !empty(domainRegex); }
-    @JsonIgnore @Getter(lazy=true) private final Pattern domainPattern = hasDomainRegex() ? Pattern.compile(getDomainRegex()) : null;
+    @JsonIgnore @Getter(lazy=true) private final RegexMatcher domainMatcher = hasDomainRegex() ? compileDomainRegex() : null;
+    @JsonIgnore public Pattern getDomainPattern() { return hasDomainRegex() ? RegexCache.getShared().pattern(domainRegex) : null; }
 
     @Getter @Setter private String regex;
     public boolean hasRegex() { return !empty(regex); }
-    @JsonIgnore @Getter(lazy=true) private final Pattern regexPattern = hasRegex() ? Pattern.compile(getRegex()) : null;
+    @JsonIgnore @Getter(lazy=true) private final RegexMatcher regexMatcher = hasRegex() ? compileRegex() : null;
+    @JsonIgnore public Pattern getRegexPattern() { return hasRegex() ? RegexCache.getShared().pattern(regex) : null; }
+
+    // a literal substring that appears in any input matched by regex, used to index regex targets
+    @JsonIgnore @Getter @Setter private String literal;
+    public boolean hasLiteral () { return !empty(literal); }
+
+    // true if a match of regex begins (or ends) exactly where the literal does
+    @JsonIgnore @Getter @Setter private boolean literalAtStart;
+    @JsonIgnore @Getter @Setter private boolean literalAtEnd;
+
+    // the regexes parseTarget builds are matched as literals where their shape allows, see LiteralRegexMatcher.
+    // either way the regex itself is compiled only when it is needed, through the shared RegexCache
+    private RegexMatcher compileDomainRegex() {
+        final RegexMatcher compiled = new CachedRegexMatcher(domainRegex, regexEngine);
+        return hasDomain() && domainRegex.equals(matchDomainOrAnySubdomains(domain))
+                ? LiteralRegexMatcher.suffix(domain, compiled) : compiled;
+    }
+
+    private RegexMatcher compileRegex() {
+        final RegexMatcher compiled = new CachedRegexMatcher(regex, regexEngine);
+        // an empty literal, as in a global element hiding rule, is still a prefix of everything
+        if (literal != null) {
+            final String quoted = jsonQuoteRegex(literal);
+            if (regex.equals("^" + quoted + "$")) return LiteralRegexMatcher.exact(literal, compiled);
+            if (regex.equals("^" + quoted + ".*")) return LiteralRegexMatcher.prefix(literal, compiled);
+        }
+        final RegexMatcher wildcard = LiteralRegexMatcher.wildcard(compiled);
+        return wildcard != null ? wildcard : compiled;
+    }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public BlockTarget validatePatterns() {
-        // force lazy-init patterns to initialize, validates regex patterns
-        if (hasRegex()) getRegexPattern();
-        if (hasDomainRegex()) getDomainPattern();
+        // literal shapes are valid regexes by construction; any other regex is compiled once, into the cache
+        if (hasRegex()) validate(getRegexMatcher());
+        if (hasDomainRegex()) validate(getDomainMatcher());
         return this;
     }
 
+    private static void validate(RegexMatcher matcher) {
+        if (matcher instanceof CachedRegexMatcher) ((CachedRegexMatcher) matcher).compile();
+    }
+
     @Getter @Setter private BubbleBlockCondition[] conditions;
     public boolean hasConditions () { return !empty(conditions); }
+    @JsonIgnore @Getter(lazy=true) private final BubbleBlockConditionPlan conditionPlan
+            = hasConditions() ? new BubbleBlockConditionPlan(conditions, hasRegex() ? getRegexMatcher() : null) : null;
 
     public boolean conditionsMatch(String fqdn, String path, String contentType, String referer) {
+        return conditionsMatch(new DecisionRequest(fqdn, path, contentType, referer, false));
+    }
+
+    public boolean conditionsMatch(DecisionRequest request) {
         if (!hasConditions()) return false;
-        if (!fqdn.equalsIgnoreCase(partialDomainBlock)) return false;
-        if (hasRegex() && !getRegexPattern().matcher(fqdn+path).matches()) return false;
-        for (BubbleBlockCondition condition : conditions) {
-            if (!condition.matches(fqdn, path, contentType, referer)) return false;
-        }
-        return true;
+        if (!request.getFqdn().equalsIgnoreCase(partialDomainBlock)) return false;
+        return getConditionPlan().matches(request);
     }
 
     public static String hostOrNull(String hostPart) {
@@ -81,6 +129,8 @@ public class BlockTarget {
     }
 
     public static List<BlockTarget> parse(String data) {
+        // nearly every rule has a single target
+        if (data.indexOf(',') == -1) return new SingletonList<>(parseTarget(data));
         final List<BlockTarget> targets = new ArrayList<>();
         for (String part : data.split(",")) {
             targets.add(parseTarget(part));
@@ -89,31 +139,41 @@ public class BlockTarget {
     }
 
     public static List<BlockTarget> parseBareLine(final String data) {
-        if (data.contains("/")) {
-            final String hostPart = data.substring(0, data.indexOf("/"));
-            return data.startsWith("/") ? parse(data) : parse(data).stream()
-                    .map(t -> t.setPartialDomainBlock(hostOrNull(hostPart)))
-                    .collect(Collectors.toList());
-        } else if (data.contains("|") || data.contains("^")) {
+        final int slash = data.indexOf('/');
+        if (slash != -1) {
+            final List<BlockTarget> targets = parse(data);
+            if (slash > 0) {
+                final String partialDomainBlock = hostOrNull(data.substring(0, slash));
+                for (BlockTarget target : targets) target.setPartialDomainBlock(partialDomainBlock);
+            }
+            return targets;
+        } else if (data.indexOf('|') != -1 || data.indexOf('^') != -1) {
             return parse(data);
         }
 
+        if (data.indexOf(',') == -1) return new SingletonList<>(domainTarget(data));
         final List<BlockTarget> targets = new ArrayList<>();
-        for (String part : data.split(",")) {
-            targets.add(new BlockTarget()
-                    .setDomainRegex(matchDomainOrAnySubdomains(part))
-                    .setFullDomainBlock(hostOrNull(part)));
-        }
+        for (String part : data.split(",")) targets.add(domainTarget(part));
         return targets;
     }
 
+    private static BlockTarget domainTarget(String part) {
+        return new BlockTarget()
+                .setDomain(part)
+                .setDomainRegex(matchDomainOrAnySubdomains(part))
+                .setFullDomainBlock(hostOrNull(part));
+    }
+
     private static BlockTarget parseTarget(String data) {
+        String domain = null;
         String domainRegex = null;
         String regex = null;
+        String literal = null;
+        boolean literalAtStart = false;
+        boolean literalAtEnd = false;
         String fullBlock = null;
         if (data.startsWith("||")) {
             final int caretPos = data.indexOf("^");
-            final String domain;
             if (caretPos != -1) {
                 // domain match
                 domain = data.substring(2, caretPos);
@@ -127,6 +187,8 @@ public class BlockTarget {
             // exact match
             final String verbatimMatch = stripScheme(data.substring(1, data.length() - 1));
             regex = "^" + jsonQuoteRegex(verbatimMatch) + "$";
+            literal = verbatimMatch;
+            literalAtStart = literalAtEnd = true;
 
         } else if (data.startsWith("/")) {
             // path match, possibly regex
@@ -138,32 +200,65 @@ public class BlockTarget {
 
             } else if (data.contains("*")) {
                 regex = parseWildcardMatch(data);
+                literal = wildcardLiteral(data);
+                literalAtStart = literal != null && data.indexOf(literal) == 0;
+                literalAtEnd = literal != null && data.indexOf(literal) + literal.length() == data.length();
             } else {
                 regex = "^" + jsonQuoteRegex(data) + ".*";
+                literal = data;
+                literalAtStart = true;
             }
 
         } else {
             if (data.contains("*")) {
                 regex = parseWildcardMatch(data);
+                literal = wildcardLiteral(data);
+                literalAtStart = literal != null && data.indexOf(literal) == 0;
+                literalAtEnd = literal != null && data.indexOf(literal) + literal.length() == data.length();
             } else {
                 regex = "^" + jsonQuoteRegex(data) + ".*";
+                literal = data;
+                literalAtStart = true;
             }
         }
         return new BlockTarget()
+                .setDomain(domain)
                 .setDomainRegex(domainRegex)
                 .setRegex(regex)
+                .setLiteral(literal)
+                .setLiteralAtStart(literalAtStart)
+                .setLiteralAtEnd(literalAtEnd)
                 .setFullDomainBlock(regex == null ? fullBlock : null)
                 .validatePatterns();
     }
 
     private static String parseWildcardMatch(String data) {
-        final StringBuilder b = new StringBuilder("^");
-        final StringTokenizer st = new StringTokenizer(data, "*", true);
-        while (st.hasMoreTokens()) {
-            final String token = st.nextToken();
-            b.append(token.equals("*") ? ".*?" : token);
+        final StringBuilder b = new StringBuilder(data.length() + 16).append('^');
+        for (int i=0; i<data.length(); i++) {
+            final char c = data.charAt(i);
+            if (c == '*') b.append(".*?"); else b.append(c);
+        }
+        return b.append('$').toString();
+    }
+
+    // wildcard tokens are not quoted, so they are regexes themselves. runs of plain characters between '*' and '.'
+    // are literals; tokens using any other regex syntax are not indexed.
+    private static final String WILDCARD_COMPLEX_CHARS = "\\()[]{}|?+";
+    private static final String WILDCARD_SEPARATOR_CHARS = "*.^$";
+
+    private static String wildcardLiteral(String data) {
+        for (int i=0; i<data.length(); i++) {
+            if (WILDCARD_COMPLEX_CHARS.indexOf(data.charAt(i)) != -1) return null;
+        }
+        int longestStart = 0, longestEnd = 0;
+        int start = 0;
+        for (int i=0; i<=data.length(); i++) {
+            if (i == data.length() || WILDCARD_SEPARATOR_CHARS.indexOf(data.charAt(i)) != -1) {
+                if (i - start > longestEnd - longestStart) { longestStart = start; longestEnd = i; }
+                start = i + 1;
+            }
         }
-        return b.append("$").toString();
+        return longestEnd == longestStart ? null : data.substring(longestStart, longestEnd);
     }
 
     private static String matchDomainOrAnySubdomains(String domain) {
@@ -47,20 +47,30 @@ public class BubbleBlockCondition {
     }
 
     public boolean matches(String fqdn, String path, String contentType, String referer) {
-        if (log.isDebugEnabled()) log.debug("matches(fqdn="+fqdn+", path="+path+", contentType="+contentType+", referer="+referer+") with field="+field+", operation="+operation);
+        return matches(new DecisionRequest(fqdn, path, contentType, referer, false));
+    }
+
+    public boolean matches(DecisionRequest request) {
+        if (log.isDebugEnabled()) log.debug("matches("+request+") with field="+field+", operation="+operation);
+        return operation.matches(input(field, request), value);
+    }
+
+    // the part of the request that field refers to
+    static String input(BubbleBlockConditionField field, DecisionRequest request) {
         switch (field) {
-            case host:         return operation.matches(fqdn, value);
-            case path:         return operation.matches(path, value);
-            case url:          return operation.matches(fqdn + path, value);
-            case content_type: return operation.matches(contentType, value);
-            case referer_host: return operation.matches(toFqdn(referer), value);
-            case referer_url:  return operation.matches(referer, value);
-            default: log.warn("matches: invalid field: "+field);
+            case host:         return request.getFqdn();
+            case path:         return request.getPath();
+            case url:          return request.getUrl();
+            case content_type: return request.getContentType();
+            case referer_host: return request.getRefererHost();
+            case referer_url:  return request.getReferer();
+            default: log.warn("input: invalid field: "+field);
         }
-        return false;
+        return null;
     }
 
-    private String toFqdn(String referer) {
+    static String refererHost(String referer) {
+        if (referer == null) return null;
         if (referer.startsWith(SCHEME_HTTPS)) {
             referer = referer.substring(SCHEME_HTTPS.length());
         } else if (referer.startsWith(SCHEME_HTTP)) {
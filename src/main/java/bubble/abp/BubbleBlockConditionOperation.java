@@ -1,39 +1,43 @@
 package bubble.abp;
 
+import bubble.abp.regex.RegexCache;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.collection.ExpirationEvictionPolicy;
-import org.cobbzilla.util.collection.ExpirationMap;
 import org.cobbzilla.util.string.ValidationRegexes;
 
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 @AllArgsConstructor @Slf4j
 public enum BubbleBlockConditionOperation {
 
-    eq       (String::equalsIgnoreCase),
-    ne       ((input, value) -> !input.equalsIgnoreCase(value)),
-    re_find  ((input, value) -> pattern(value).matcher(input).find()),
-    re_exact ((input, value) -> pattern(value).matcher(input).matches()),
-    contains ((input, value) -> value.contains(input));
+    eq       (0, String::equalsIgnoreCase),
+    ne       (0, (input, value) -> !input.equalsIgnoreCase(value)),
+    re_find  (3, (input, value) -> pattern(value).matcher(input).find()),
+    re_exact (2, (input, value) -> pattern(value).matcher(input).matches()),
+    contains (1, (input, value) -> value.contains(input));
 
-    private static final ExpirationMap<String, Pattern> PATTERN_CACHE = new ExpirationMap<>(ExpirationEvictionPolicy.atime);
+    private static final Function<String, Pattern> SAFE_PATTERN = ValidationRegexes::safePattern;
 
-    private static Pattern pattern(String value) {
-        return PATTERN_CACHE.computeIfAbsent(value, ValidationRegexes::safePattern);
-    }
+    private static Pattern pattern(String value) { return RegexCache.getShared().get(value, SAFE_PATTERN); }
 
     private interface BubbleBlockConditionComparison { boolean matches(String input, String value); }
 
+    // relative cost of a comparison, BubbleBlockConditionPlan runs the cheapest first
+    @Getter private final int cost;
     private final BubbleBlockConditionComparison comparison;
 
     @JsonCreator public static BubbleBlockConditionOperation fromString (String v) { return valueOf(v.toLowerCase()); }
 
     public boolean matches(String input, String value) {
-        final boolean matches = comparison.matches(input, value);
+        final boolean matches = compare(input, value);
         if (log.isDebugEnabled()) log.debug("matches: "+input+" "+this+" "+value+" -> "+matches);
         return matches;
     }
 
+    // as matches, without logging. a missing input (no content type or referer) equals nothing, so only ne matches it
+    boolean compare(String input, String value) { return input == null ? this == ne : comparison.matches(input, value); }
+
 }
@@ -0,0 +1,73 @@
+package bubble.abp;
+
+import bubble.abp.regex.RegexMatcher;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The conditions of a Bubble conditional target, compiled for evaluation. Conditions are sorted cheapest first,
+ * by operation and then by whether their field has to be derived (url, referer_host), so a request usually fails
+ * on an eq before any regex runs. The target's own regex, matched against fqdn+path, is placed among them as a
+ * re_exact on url. Derived fields (url, the referer host) come from the DecisionRequest, which computes them once
+ * for all the conditional specs a request is checked against.
+ *
+ * All conditions must match, and none has side effects, so the order does not change the result.
+ */
+@Slf4j
+public class BubbleBlockConditionPlan {
+
+    private static final int REGEX_COST = cost(BubbleBlockConditionField.url, BubbleBlockConditionOperation.re_exact);
+
+    private final BubbleBlockConditionField[] fields;
+    private final BubbleBlockConditionOperation[] operations;
+    private final String[] values;
+    private final RegexMatcher regex;
+    // the target's regex runs before the condition at this position
+    private final int regexAt;
+
+    public BubbleBlockConditionPlan(BubbleBlockCondition[] conditions, RegexMatcher regex) {
+        final BubbleBlockCondition[] sorted = conditions.clone();
+        // a stable sort, conditions of equal cost keep the order they were written in
+        Arrays.sort(sorted, Comparator.comparingInt(c -> cost(c.getField(), c.getOperation())));
+        fields = new BubbleBlockConditionField[sorted.length];
+        operations = new BubbleBlockConditionOperation[sorted.length];
+        values = new String[sorted.length];
+        int regexAt = sorted.length;
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            fields[i] = sorted[i].getField();
+            operations[i] = sorted[i].getOperation();
+            values[i] = sorted[i].getValue();
+            if (cost(fields[i], operations[i]) > REGEX_COST) regexAt = i;
+        }
+        this.regex = regex;
+        this.regexAt = regexAt;
+    }
+
+    private static int cost(BubbleBlockConditionField field, BubbleBlockConditionOperation operation) {
+        final boolean derived = field == BubbleBlockConditionField.url || field == BubbleBlockConditionField.referer_host;
+        return 2 * operation.getCost() + (derived ? 1 : 0);
+    }
+
+    public int size() { return fields.length; }
+
+    public boolean matches(String fqdn, String path, String contentType, String referer) {
+        return matches(new DecisionRequest(fqdn, path, contentType, referer, false));
+    }
+
+    public boolean matches(DecisionRequest request) {
+        for (int i = 0; i <= fields.length; i++) {
+            if (i == regexAt && regex != null && !regex.matches(request.getUrl())) return result(request, false);
+            if (i == fields.length) break;
+            if (!operations[i].compare(BubbleBlockCondition.input(fields[i], request), values[i])) return result(request, false);
+        }
+        return result(request, true);
+    }
+
+    private static boolean result(DecisionRequest request, boolean match) {
+        if (log.isDebugEnabled()) log.debug("matches("+request+") -> "+match);
+        return match;
+    }
+
+}
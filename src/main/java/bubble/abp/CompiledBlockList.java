@@ -0,0 +1,148 @@
+package bubble.abp;
+
+import bubble.abp.cache.DecisionCache;
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.index.BlockSpecIndex;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.index.BlockSpecTable;
+import bubble.abp.index.DomainSet;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of a BlockList, with its indexes built up front. Safe to share between threads:
+ * nothing on the decision path takes a lock, apart from the decision cache. Each snapshot has its own cache;
+ * replacing a snapshot discards its cached decisions, unless an incremental refresh carries over the unaffected ones.
+ *
+ * Use BlockList.compile to create one, and BlockListHolder to swap snapshots while requests are being served.
+ */
+public class CompiledBlockList extends BlockDecider {
+
+    @Getter private final DomainSet rejectList;
+    @JsonIgnore @Getter private final BlockSpecTable blacklistTable;
+    @JsonIgnore @Getter private final BlockSpecTable whitelistTable;
+
+    @JsonIgnore @Getter private final BlockSpecIndex blacklistIndex;
+    @JsonIgnore @Getter private final BlockSpecIndex whitelistIndex;
+    @JsonIgnore @Getter private final DecisionCacheConfig decisionCacheConfig;
+    @JsonIgnore @Getter private final DecisionCache decisionCache;
+
+    public CompiledBlockList(Set<String> rejectList,
+                             Set<BlockSpec> blacklist,
+                             Set<BlockSpec> whitelist,
+                             BlockSpecIndexMode indexMode,
+                             DecisionCacheConfig decisionCacheConfig) {
+        this.rejectList = DomainSet.of(rejectList);
+        this.blacklistTable = BlockSpecTable.of(blacklist.toArray(new BlockSpec[0]));
+        this.whitelistTable = BlockSpecTable.of(whitelist.toArray(new BlockSpec[0]));
+        this.blacklistIndex = new BlockSpecIndex(blacklistTable, indexMode);
+        this.whitelistIndex = new BlockSpecIndex(whitelistTable, indexMode);
+        this.decisionCacheConfig = decisionCacheConfig;
+        this.decisionCache = decisionCacheConfig.newCache();
+    }
+
+    // for snapshots, whose tables and indexes are loaded rather than built
+    CompiledBlockList(DomainSet rejectList,
+                      BlockSpecTable blacklistTable,
+                      BlockSpecTable whitelistTable,
+                      BlockSpecIndex blacklistIndex,
+                      BlockSpecIndex whitelistIndex,
+                      DecisionCacheConfig decisionCacheConfig) {
+        this.rejectList = rejectList;
+        this.blacklistTable = blacklistTable;
+        this.whitelistTable = whitelistTable;
+        this.blacklistIndex = blacklistIndex;
+        this.whitelistIndex = whitelistIndex;
+        this.decisionCacheConfig = decisionCacheConfig;
+        this.decisionCache = decisionCacheConfig.newCache();
+    }
+
+    /**
+     * Carry over the decisions cached by previous that none of changes could have affected, so this snapshot
+     * does not start with a cold cache. Call before this snapshot is made active.
+     */
+    void inheritDecisions(CompiledBlockList previous, BlockListChanges changes) {
+        final boolean fqdnKeysAffected = previous.whitelistIndex.isHostWide() != whitelistIndex.isHostWide();
+        previous.decisionCache.copyTo(decisionCache, changes.unaffected(fqdnKeysAffected));
+    }
+
+    public List<BlockSpec> getBlacklist() { return blacklistTable.asList(); }
+    public List<BlockSpec> getWhitelist() { return whitelistTable.asList(); }
+
+    public int getBlacklistSize() { return blacklistTable.size(); }
+    public int getWhitelistSize() { return whitelistTable.size(); }
+
+    // built on first use: most callers never ask for them
+    private volatile DomainSet fullyBlockedDomains;
+    private volatile DomainSet partiallyBlockedDomains;
+    private volatile DomainSet whitelistDomainNames;
+
+    @JsonIgnore public DomainSet getFullyBlockedDomains() {
+        DomainSet domains = fullyBlockedDomains;
+        if (domains == null) {
+            final Set<BlockSpec> whitelistDomains = getWhitelistDomains();
+            final List<String> blocked = new ArrayList<>();
+            for (BlockSpec spec : getBlacklist()) {
+                if (spec.hasSelector() || whitelistDomains.contains(spec) || !spec.getTarget().hasFullDomainBlock()) continue;
+                if (!spec.getTarget().hasConditions()) blocked.add(spec.getTarget().getFullDomainBlock());
+            }
+            fullyBlockedDomains = domains = DomainSet.of(blocked);
+        }
+        return domains;
+    }
+
+    @JsonIgnore public DomainSet getPartiallyBlockedDomains() {
+        DomainSet domains = partiallyBlockedDomains;
+        if (domains == null) {
+            final Set<BlockSpec> whitelistDomains = getWhitelistDomains();
+            final List<String> blocked = new ArrayList<>();
+            for (BlockSpec spec : getBlacklist()) {
+                if (spec.hasSelector() || whitelistDomains.contains(spec) || !spec.getTarget().hasPartialDomainBlock()) continue;
+                blocked.add(spec.getTarget().getPartialDomainBlock());
+            }
+            partiallyBlockedDomains = domains = DomainSet.of(blocked);
+        }
+        return domains;
+    }
+
+    @JsonIgnore public DomainSet getWhitelistDomainNames() {
+        DomainSet domains = whitelistDomainNames;
+        if (domains == null) {
+            final List<String> names = new ArrayList<>();
+            for (BlockSpec spec : getWhitelist()) {
+                if (spec.hasSelector()) continue;
+                final BlockTarget target = spec.getTarget();
+                if (target.hasFullDomainBlock()) names.add(target.getFullDomainBlock());
+                else if (target.hasPartialDomainBlock()) names.add(target.getPartialDomainBlock());
+            }
+            whitelistDomainNames = domains = DomainSet.of(names);
+        }
+        return domains;
+    }
+
+    private Set<BlockSpec> getWhitelistDomains() {
+        final Set<BlockSpec> domains = new HashSet<>();
+        for (BlockSpec spec : getWhitelist()) if (spec.hasNoSelector()) domains.add(spec);
+        return domains;
+    }
+
+    @Override protected void whitelistHostCandidates(String fqdn, List<BlockSpec> into) {
+        whitelistIndex.collectHostCandidates(fqdn, null, into);
+    }
+    @Override protected void whitelistPathCandidates(String fqdn, String path, List<BlockSpec> into) {
+        whitelistIndex.collectPathCandidates(fqdn, path, null, into);
+    }
+    @Override protected void blacklistHostCandidates(String fqdn, List<BlockSpec> into) {
+        blacklistIndex.collectHostCandidates(fqdn, null, into);
+    }
+    @Override protected void blacklistPathCandidates(String fqdn, String path, List<BlockSpec> into) {
+        blacklistIndex.collectPathCandidates(fqdn, path, null, into);
+    }
+
+    @Override protected List<BlockSpec> selectorSpecs() { return blacklistIndex.getSelectorSpecs(); }
+
+    @Override protected boolean isWhitelistHostWide() { return whitelistIndex.isHostWide(); }
+
+}
@@ -0,0 +1,102 @@
+package bubble.abp;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+import org.cobbzilla.util.http.HttpContentTypes;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * One request to decide, as passed to BlockDecider.getDecisions. It is also the context a decision passes to
+ * BlockSpec, BlockTarget and the Bubble conditions. What they derive from the request (fqdn+path, the referer's
+ * host, the kind of content) is computed when first asked for and then kept, so once per request rather than once
+ * per spec. Setting a field clears what was derived from it, so an instance can be reused for one request after
+ * another; an instance is not safe for concurrent use.
+ */
+@NoArgsConstructor @Accessors(chain=true) @ToString(of={"fqdn", "path", "contentType", "referer", "primary"})
+public class DecisionRequest {
+
+    // bits of getContentTypeMask
+    public static final int CONTENT_SCRIPT = 1;
+    public static final int CONTENT_IMAGE = 2;
+    public static final int CONTENT_STYLESHEET = 4;
+    public static final int CONTENT_HTML = 8;
+
+    private static final int UNKNOWN = -1;
+
+    @Getter private String fqdn;
+    @Getter private String path;
+    @Getter private String contentType;
+    @Getter private String referer;
+    @Getter private boolean primary;
+
+    private String url;
+    private String refererHost;
+    private int contentTypeMask = UNKNOWN;
+
+    public DecisionRequest(String fqdn, String path, String contentType, String referer, boolean primary) {
+        set(fqdn, path, contentType, referer, primary);
+    }
+
+    public DecisionRequest(String fqdn, String path) { this(fqdn, path, null, null, false); }
+
+    /**
+     * Reuse this instance for another request
+     */
+    public DecisionRequest set(String fqdn, String path, String contentType, String referer, boolean primary) {
+        this.fqdn = fqdn;
+        this.path = path;
+        this.contentType = contentType;
+        this.referer = referer;
+        this.primary = primary;
+        url = null;
+        refererHost = null;
+        contentTypeMask = UNKNOWN;
+        return this;
+    }
+
+    public DecisionRequest setFqdn(String fqdn) { this.fqdn = fqdn; url = null; return this; }
+    public DecisionRequest setPath(String path) { this.path = path; url = null; return this; }
+    public DecisionRequest setContentType(String contentType) { this.contentType = contentType; contentTypeMask = UNKNOWN; return this; }
+    public DecisionRequest setReferer(String referer) { this.referer = referer; refererHost = null; return this; }
+    public DecisionRequest setPrimary(boolean primary) { this.primary = primary; return this; }
+
+    /**
+     * @return fqdn+path, as the url condition and conditional targets see it
+     */
+    @JsonIgnore public String getUrl() {
+        if (url == null) url = fqdn + path;
+        return url;
+    }
+
+    /**
+     * @return the host of the referer url, or null if there is no referer
+     */
+    @JsonIgnore public String getRefererHost() {
+        if (refererHost == null) refererHost = BubbleBlockCondition.refererHost(referer);
+        return refererHost;
+    }
+
+    /**
+     * @return the CONTENT_ bits that apply to the content type; none of the type bits if it is empty
+     */
+    @JsonIgnore public int getContentTypeMask() {
+        if (contentTypeMask == UNKNOWN) contentTypeMask = contentTypeMask(contentType);
+        return contentTypeMask;
+    }
+
+    @JsonIgnore public boolean isHtml() { return (getContentTypeMask() & CONTENT_HTML) != 0; }
+
+    public static int contentTypeMask(String contentType) {
+        int mask = HttpContentTypes.isHtml(contentType) ? CONTENT_HTML : 0;
+        if (empty(contentType)) return mask;
+        if (contentType.equals(HttpContentTypes.APPLICATION_JAVASCRIPT)) mask |= CONTENT_SCRIPT;
+        if (contentType.startsWith(HttpContentTypes.IMAGE_PREFIX)) mask |= CONTENT_IMAGE;
+        if (contentType.equals(HttpContentTypes.TEXT_CSS)) mask |= CONTENT_STYLESHEET;
+        return mask;
+    }
+
+}
@@ -0,0 +1,105 @@
+package bubble.abp;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.http.HttpUtil.getUrlInputStream;
+
+/**
+ * The default fetcher. Fetches of http(s) urls send If-None-Match/If-Modified-Since when asked to, report a 304 as
+ * notModified, and follow up to maxRedirects redirects, including from http to https. Connecting and each read
+ * give up after connectTimeout/readTimeout millis. Other urls go through HttpUtil.
+ */
+@NoArgsConstructor @Accessors(chain=true) @Slf4j
+public class HttpBlockListFetcher implements BlockListFetcher {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(60);
+    public static final int DEFAULT_MAX_REDIRECTS = 5;
+
+    // how much of an error response to quote in the exception
+    private static final int MAX_ERROR_BODY = 200;
+
+    @Getter @Setter private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    @Getter @Setter private int readTimeout = DEFAULT_READ_TIMEOUT;
+    @Getter @Setter private int maxRedirects = DEFAULT_MAX_REDIRECTS;
+
+    @Override public InputStream fetch(String url) throws IOException {
+        return isHttp(url) ? fetchIfModified(url, null, null).getStream() : getUrlInputStream(url);
+    }
+
+    @Override public BlockListFetchResult fetchIfModified(String url, String etag, String lastModified) throws IOException {
+        if (!isHttp(url)) return BlockListFetcher.super.fetchIfModified(url, etag, lastModified);
+
+        URL location = new URL(url);
+        for (int hops = 0; ; hops++) {
+            final HttpURLConnection conn = (HttpURLConnection) location.openConnection();
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            // followed below, so that http->https redirects work and the hop count is ours
+            conn.setInstanceFollowRedirects(false);
+            if (!empty(etag)) conn.setRequestProperty("If-None-Match", etag);
+            if (!empty(lastModified)) conn.setRequestProperty("If-Modified-Since", lastModified);
+
+            final int status;
+            try {
+                status = conn.getResponseCode();
+            } catch (IOException e) {
+                conn.disconnect();
+                throw e;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (log.isDebugEnabled()) log.debug("fetchIfModified("+url+"): not modified");
+                conn.disconnect();
+                return BlockListFetchResult.notModified();
+            }
+            if (status / 100 == 2) {
+                return BlockListFetchResult.modified(conn.getInputStream(), conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+            }
+
+            final String redirect = status / 100 == 3 ? conn.getHeaderField("Location") : null;
+            final String errorBody = readError(conn);
+            conn.disconnect();
+            if (empty(redirect)) {
+                throw new IOException("fetchIfModified("+url+"): HTTP status "+status+(empty(errorBody) ? "" : ": "+errorBody));
+            }
+            if (hops >= maxRedirects) {
+                throw new IOException("fetchIfModified("+url+"): more than "+maxRedirects+" redirects");
+            }
+            final URL next = new URL(location, redirect);
+            if (!isHttp(next.toString())) {
+                throw new IOException("fetchIfModified("+url+"): redirect to unsupported url "+next);
+            }
+            if (log.isDebugEnabled()) log.debug("fetchIfModified("+url+"): HTTP status "+status+", following "+next);
+            location = next;
+        }
+    }
+
+    private static boolean isHttp(String url) { return url.startsWith("http://") || url.startsWith("https://"); }
+
+    // the start of an error response, to quote in the exception. the rest is left unread: the connection is dropped anyway
+    private static String readError(HttpURLConnection conn) {
+        try (InputStream err = conn.getErrorStream()) {
+            if (err == null) return null;
+            final byte[] buf = new byte[MAX_ERROR_BODY];
+            int len = 0, n;
+            while (len < buf.length && (n = err.read(buf, len, buf.length - len)) > 0) len += n;
+            final String body = new String(buf, 0, len, UTF_8).trim();
+            return body.isEmpty() ? null : body;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}
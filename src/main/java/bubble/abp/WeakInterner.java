@@ -0,0 +1,129 @@
+package bubble.abp;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.function.BiPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Canonical instances under a caller-supplied equivalence, held weakly: once nothing else refers to a canonical
+ * instance it is collected and forgotten. Striped, so parse threads rarely wait on each other.
+ */
+class WeakInterner<T> {
+
+    private static final int STRIPES = 16;
+
+    private final ToIntFunction<T> hasher;
+    private final BiPredicate<T, T> equivalence;
+    private final Stripe[] stripes;
+
+    @SuppressWarnings("unchecked")
+    WeakInterner(ToIntFunction<T> hasher, BiPredicate<T, T> equivalence) {
+        this.hasher = hasher;
+        this.equivalence = equivalence;
+        this.stripes = new WeakInterner.Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    /**
+     * @return the canonical instance equivalent to value; value itself if there was none
+     */
+    T intern(T value) {
+        final int hash = hasher.applyAsInt(value);
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)].intern(value, hash);
+    }
+
+    /**
+     * @return the canonical instance equivalent to value, or null if there is none
+     */
+    T find(T value) {
+        final int hash = hasher.applyAsInt(value);
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)].find(value, hash);
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.size();
+        return size;
+    }
+
+    private static class Ref<T> extends WeakReference<T> {
+        final int hash;
+        Ref<T> next;
+        Ref(T referent, int hash, ReferenceQueue<T> queue, Ref<T> next) {
+            super(referent, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    // a chained hash table of weak references, rehashed as it grows
+    private class Stripe {
+        private Ref<T>[] table = newTable(16);
+        private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+        private int size = 0;
+
+        synchronized T intern(T value, int hash) {
+            expunge();
+            final T canonical = find(value, hash);
+            if (canonical != null) return canonical;
+            final int i = index(hash, table.length);
+            table[i] = new Ref<>(value, hash, queue, table[i]);
+            if (++size > table.length - (table.length >>> 2)) resize();
+            return value;
+        }
+
+        synchronized T find(T value, int hash) {
+            for (Ref<T> ref = table[index(hash, table.length)]; ref != null; ref = ref.next) {
+                if (ref.hash != hash) continue;
+                final T canonical = ref.get();
+                // the same instance first: re-interning a canonical value is the common case
+                if (canonical == value || (canonical != null && equivalence.test(canonical, value))) return canonical;
+            }
+            return null;
+        }
+
+        synchronized int size() {
+            expunge();
+            return size;
+        }
+
+        private void resize() {
+            final Ref<T>[] resized = newTable(table.length * 2);
+            for (Ref<T> head : table) {
+                for (Ref<T> ref = head; ref != null; ) {
+                    final Ref<T> next = ref.next;
+                    final int i = index(ref.hash, resized.length);
+                    ref.next = resized[i];
+                    resized[i] = ref;
+                    ref = next;
+                }
+            }
+            table = resized;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void expunge() {
+            Reference<? extends T> cleared;
+            while ((cleared = queue.poll()) != null) {
+                final Ref<T> ref = (Ref<T>) cleared;
+                final int i = index(ref.hash, table.length);
+                Ref<T> prev = null;
+                for (Ref<T> r = table[i]; r != null; prev = r, r = r.next) {
+                    if (r != ref) continue;
+                    if (prev == null) table[i] = r.next; else prev.next = r.next;
+                    size--;
+                    break;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Ref<T>[] newTable(int capacity) { return (Ref<T>[]) new Ref[capacity]; }
+
+    // the low bits picked the stripe
+    private static int index(int hash, int length) { return ((hash ^ (hash >>> 16)) >>> 4) & (length - 1); }
+
+}
@@ -0,0 +1,32 @@
+package bubble.abp.cache;
+
+import bubble.abp.BlockDecision;
+
+import java.util.function.Predicate;
+
+/**
+ * Caches BlockList decisions. Implementations must be safe for concurrent use.
+ */
+public interface DecisionCache {
+
+    /**
+     * @return the cached decision, or null if there is none (or it has expired)
+     */
+    BlockDecision get(DecisionCacheKey key);
+
+    void put(DecisionCacheKey key, BlockDecision decision);
+
+    /**
+     * Remove every entry. Called whenever the BlockList changes.
+     */
+    void clear();
+
+    DecisionCacheStats getStats();
+
+    /**
+     * Copy the unexpired entries whose keys pass keep into target, so a new BlockList snapshot does not start cold.
+     * The default copies nothing.
+     */
+    default void copyTo(DecisionCache target, Predicate<DecisionCacheKey> keep) {}
+
+}
@@ -0,0 +1,29 @@
+package bubble.abp.cache;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+@NoArgsConstructor @Accessors(chain=true)
+public class DecisionCacheConfig {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_TTL = MINUTES.toMillis(10);
+    public static final int DEFAULT_STRIPES = 16;
+
+    @Getter @Setter private int maxSize = DEFAULT_MAX_SIZE;
+    @Getter @Setter private long ttl = DEFAULT_TTL;
+    @Getter @Setter private int stripes = DEFAULT_STRIPES;
+    @Getter @Setter private DecisionCacheKeyGranularity keyGranularity = DecisionCacheKeyGranularity.url;
+
+    public boolean fqdnKeys () { return keyGranularity == DecisionCacheKeyGranularity.fqdn; }
+
+    // a maxSize of zero turns caching off: decisions are made on every request, without building cache keys
+    public boolean enabled () { return maxSize > 0; }
+
+    public DecisionCache newCache () { return enabled() ? new StripedDecisionCache(this) : new NoDecisionCache(); }
+
+}
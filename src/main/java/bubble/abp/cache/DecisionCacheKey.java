@@ -0,0 +1,64 @@
+package bubble.abp.cache;
+
+import lombok.Getter;
+
+import java.util.Objects;
+
+/**
+ * A decision cache key. Comparing the request fields directly avoids building and hashing a String on every lookup.
+ */
+public class DecisionCacheKey {
+
+    @Getter private final String fqdn;
+    @Getter private final String path;
+    @Getter private final String contentType;
+    @Getter private final String referer;
+    @Getter private final boolean primary;
+    @Getter private final boolean fqdnOnly;
+    private final int hash;
+
+    private DecisionCacheKey(String fqdn, String path, String contentType, String referer, boolean primary, boolean fqdnOnly) {
+        this.fqdn = fqdn;
+        this.path = path;
+        this.contentType = contentType;
+        this.referer = referer;
+        this.primary = primary;
+        this.fqdnOnly = fqdnOnly;
+        int h = Objects.hashCode(fqdn);
+        h = 31 * h + Objects.hashCode(path);
+        h = 31 * h + Objects.hashCode(contentType);
+        h = 31 * h + Objects.hashCode(referer);
+        h = 31 * h + (primary ? 1 : 0);
+        h = 31 * h + (fqdnOnly ? 1 : 0);
+        this.hash = h;
+    }
+
+    public static DecisionCacheKey urlKey(String fqdn, String path, String contentType, String referer, boolean primary) {
+        return new DecisionCacheKey(fqdn, path, contentType, referer, primary, false);
+    }
+
+    public static DecisionCacheKey fqdnKey(String fqdn) {
+        return new DecisionCacheKey(fqdn, null, null, null, false, true);
+    }
+
+    @Override public int hashCode() { return hash; }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DecisionCacheKey)) return false;
+        final DecisionCacheKey other = (DecisionCacheKey) o;
+        return hash == other.hash
+                && primary == other.primary
+                && fqdnOnly == other.fqdnOnly
+                && Objects.equals(fqdn, other.fqdn)
+                && Objects.equals(path, other.path)
+                && Objects.equals(contentType, other.contentType)
+                && Objects.equals(referer, other.referer);
+    }
+
+    @Override public String toString() {
+        return fqdnOnly ? "DecisionCacheKey{"+fqdn+"}"
+                : "DecisionCacheKey{"+fqdn+path+", contentType="+contentType+", referer="+referer+", primary="+primary+"}";
+    }
+
+}
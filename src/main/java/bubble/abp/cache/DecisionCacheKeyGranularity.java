@@ -0,0 +1,16 @@
+package bubble.abp.cache;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+public enum DecisionCacheKeyGranularity {
+
+    // every decision is cached by fqdn, path, content type, referer and primary flag
+    url,
+
+    // decisions that hold for every path on a host (an allow or block by a domain rule) are cached by fqdn alone,
+    // all other decisions are cached as with url
+    fqdn;
+
+    @JsonCreator public static DecisionCacheKeyGranularity fromString (String v) { return valueOf(v.toLowerCase()); }
+
+}
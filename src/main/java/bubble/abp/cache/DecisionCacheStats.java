@@ -0,0 +1,24 @@
+package bubble.abp.cache;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class DecisionCacheStats {
+
+    @Getter @Setter private long hits;
+    @Getter @Setter private long misses;
+    @Getter @Setter private long evictions;
+    @Getter @Setter private long expirations;
+    @Getter @Setter private long invalidations;
+    @Getter @Setter private int size;
+
+    public double getHitRate () {
+        final long total = hits + misses;
+        return total == 0 ? 0 : ((double) hits) / total;
+    }
+
+}
@@ -0,0 +1,18 @@
+package bubble.abp.cache;
+
+import bubble.abp.BlockDecision;
+
+/**
+ * The cache of a DecisionCacheConfig whose maxSize is zero: it never holds anything.
+ */
+public class NoDecisionCache implements DecisionCache {
+
+    @Override public BlockDecision get(DecisionCacheKey key) { return null; }
+
+    @Override public void put(DecisionCacheKey key, BlockDecision decision) {}
+
+    @Override public void clear() {}
+
+    @Override public DecisionCacheStats getStats() { return new DecisionCacheStats(); }
+
+}
@@ -0,0 +1,144 @@
+package bubble.abp.cache;
+
+import bubble.abp.BlockDecision;
+import lombok.AllArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.now;
+
+/**
+ * A bounded, expiring decision cache. Keys are spread across independently locked LRU stripes,
+ * so concurrent lookups for different keys rarely contend.
+ */
+public class StripedDecisionCache implements DecisionCache {
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final long ttl;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public StripedDecisionCache(DecisionCacheConfig config) {
+        int count = 1;
+        while (count < config.getStripes()) count *= 2;
+        final int stripeSize = Math.max(1, config.getMaxSize() / count);
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) stripes[i] = new Stripe(stripeSize);
+        mask = count - 1;
+        ttl = config.getTtl();
+    }
+
+    private Stripe stripe(DecisionCacheKey key) {
+        final int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    @Override public BlockDecision get(DecisionCacheKey key) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            final CachedDecision entry = stripe.get(key);
+            if (entry != null) {
+                if (entry.expires > now()) {
+                    hits.increment();
+                    return entry.decision;
+                }
+                stripe.remove(key);
+                expirations.increment();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    @Override public void put(DecisionCacheKey key, BlockDecision decision) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, new CachedDecision(decision, now() + ttl));
+        }
+    }
+
+    private void put(DecisionCacheKey key, CachedDecision entry) {
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    @Override public void copyTo(DecisionCache target, Predicate<DecisionCacheKey> keep) {
+        final long t = now();
+        for (Stripe stripe : stripes) {
+            final List<DecisionCacheKey> keys;
+            final List<CachedDecision> entries;
+            synchronized (stripe) {
+                keys = new ArrayList<>(stripe.keySet());
+                entries = new ArrayList<>(stripe.values());
+            }
+            // least recently used first, so the target evicts in the same order
+            for (int i = 0; i < keys.size(); i++) {
+                final DecisionCacheKey key = keys.get(i);
+                final CachedDecision entry = entries.get(i);
+                if (entry.expires <= t || !keep.test(key)) continue;
+                if (target instanceof StripedDecisionCache) {
+                    ((StripedDecisionCache) target).put(key, entry);
+                } else {
+                    target.put(key, entry.decision);
+                }
+            }
+        }
+    }
+
+    @Override public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) { stripe.clear(); }
+        }
+        invalidations.increment();
+    }
+
+    @Override public DecisionCacheStats getStats() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) { size += stripe.size(); }
+        }
+        return new DecisionCacheStats()
+                .setHits(hits.sum())
+                .setMisses(misses.sum())
+                .setEvictions(evictions.sum())
+                .setExpirations(expirations.sum())
+                .setInvalidations(invalidations.sum())
+                .setSize(size);
+    }
+
+    @AllArgsConstructor
+    private static class CachedDecision {
+        final BlockDecision decision;
+        final long expires;
+    }
+
+    private class Stripe extends LinkedHashMap<DecisionCacheKey, CachedDecision> {
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<DecisionCacheKey, CachedDecision> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
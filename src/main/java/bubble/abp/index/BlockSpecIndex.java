@@ -0,0 +1,328 @@
+package bubble.abp.index;
+
+import bubble.abp.BlockSpec;
+import bubble.abp.BlockTarget;
+import lombok.Getter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+import static bubble.abp.index.SnapshotIO.*;
+import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+
+/**
+ * Indexes a collection of BlockSpecs so that a decision only needs to look at the specs that could match a request.
+ * Specs with a plain domain target live in a DomainTrie, specs whose regex requires a literal substring live in
+ * a LiteralIndex (an Aho-Corasick automaton or token buckets, per BlockSpecIndexMode), Bubble conditional specs
+ * are kept in a map by the host they apply to, and everything else is kept in a list that is always scanned.
+ * Specs are referred to by their id in a BlockSpecTable, so a built index can be written to a snapshot and read
+ * back without its specs.
+ */
+public class BlockSpecIndex {
+
+    private final BlockSpecTable table;
+    private final DomainTrie domains;
+    private final LiteralIndex literals;
+    // conditional spec ids by partialDomainBlock, which the fqdn must equal ignoring case. a TreeMap ordered by
+    // String.CASE_INSENSITIVE_ORDER (which agrees with equalsIgnoreCase), so a lookup does not fold the fqdn
+    private final Map<String, int[]> conditionHosts;
+    private final int[] unindexed;
+    private final int[] selectorIds;
+
+    @Getter private final List<BlockSpec> selectorSpecs;
+    // true if every spec is a domain spec that ignores path, content type and referer
+    @Getter private final boolean hostWide;
+
+    @Getter private final BlockSpecIndexMode mode;
+    @Getter private final int size;
+
+    public BlockSpecIndex(Collection<BlockSpec> specs) { this(specs, BlockSpecIndexMode.automaton); }
+
+    public BlockSpecIndex(Collection<BlockSpec> specs, BlockSpecIndexMode mode) {
+        this(BlockSpecTable.of(specs.toArray(new BlockSpec[0])), mode);
+    }
+
+    public BlockSpecIndex(BlockSpecTable table, BlockSpecIndexMode mode) {
+        this.table = table;
+        this.mode = mode;
+        this.domains = new DomainTrie(table);
+        this.literals = mode.newLiteralIndex(table);
+        final Map<String, List<Integer>> conditionHosts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final List<Integer> unindexed = new ArrayList<>();
+        final List<Integer> selectorIds = new ArrayList<>();
+        boolean hostWide = true;
+        for (int id = 0; id < table.size(); id++) {
+            final BlockSpec spec = table.get(id);
+            if (!isHostWide(spec)) hostWide = false;
+            if (spec.hasSelector()) selectorIds.add(id);
+            if (isDomainIndexable(spec)) {
+                domains.add(spec.getTarget().getDomain(), id);
+            } else if (isLiteralIndexable(spec)) {
+                literals.add(id);
+            } else if (isConditionIndexable(spec)) {
+                conditionHosts.computeIfAbsent(spec.getTarget().getPartialDomainBlock(), k -> new ArrayList<>()).add(id);
+            } else {
+                unindexed.add(id);
+            }
+        }
+        literals.build();
+        this.conditionHosts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<Integer>> entry : conditionHosts.entrySet()) {
+            this.conditionHosts.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        this.unindexed = toArray(unindexed);
+        this.selectorIds = toArray(selectorIds);
+        this.selectorSpecs = specs(this.selectorIds);
+        this.hostWide = hostWide;
+        size = table.size();
+    }
+
+    private BlockSpecIndex(BlockSpecTable table, BlockSpecIndexMode mode, DomainTrie domains, LiteralIndex literals,
+                           Map<String, int[]> conditionHosts, int[] unindexed, int[] selectorIds, boolean hostWide) {
+        this.table = table;
+        this.mode = mode;
+        this.domains = domains;
+        this.literals = literals;
+        this.conditionHosts = conditionHosts;
+        this.unindexed = unindexed;
+        this.selectorIds = selectorIds;
+        this.selectorSpecs = specs(selectorIds);
+        this.hostWide = hostWide;
+        this.size = table.size();
+    }
+
+    /**
+     * Write this index to a snapshot. The spec ids refer to the same BlockSpecTable, which is stored separately.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(hostWide);
+        writeInts(out, unindexed);
+        writeInts(out, selectorIds);
+        domains.write(out);
+        literals.write(out);
+        out.writeInt(conditionHosts.size());
+        for (Map.Entry<String, int[]> entry : conditionHosts.entrySet()) {
+            writeString(out, entry.getKey());
+            writeInts(out, entry.getValue());
+        }
+    }
+
+    public static BlockSpecIndex read(ByteBuffer in, BlockSpecTable table, BlockSpecIndexMode mode) {
+        final boolean hostWide = in.get() != 0;
+        final int[] unindexed = readInts(in);
+        final int[] selectorIds = readInts(in);
+        final DomainTrie domains = DomainTrie.read(in, table);
+        final LiteralIndex literals = mode.readLiteralIndex(in, table);
+        final int hostCount = in.getInt();
+        final Map<String, int[]> conditionHosts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < hostCount; i++) conditionHosts.put(readString(in), readInts(in));
+        return new BlockSpecIndex(table, mode, domains, literals, conditionHosts, unindexed, selectorIds, hostWide);
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        final int[] a = new int[ids.size()];
+        for (int i = 0; i < a.length; i++) a[i] = ids.get(i);
+        return a;
+    }
+
+    private List<BlockSpec> specs(int[] ids) {
+        return new AbstractList<BlockSpec>() {
+            @Override public BlockSpec get(int i) { return table.get(ids[i]); }
+            @Override public int size() { return ids.length; }
+        };
+    }
+
+    public static boolean isDomainIndexable(BlockSpec spec) {
+        final BlockTarget target = spec.getTarget();
+        return target.hasDomain() && target.hasDomainRegex() && !target.hasRegex() && !target.hasConditions();
+    }
+
+    public static boolean isLiteralIndexable(BlockSpec spec) {
+        final BlockTarget target = spec.getTarget();
+        return target.hasLiteral() && target.hasRegex() && !target.hasDomainRegex() && !target.hasConditions();
+    }
+
+    /**
+     * @return true if the spec is a Bubble conditional spec, which can only match an fqdn equal to its
+     * partialDomainBlock, ignoring case; see BlockTarget.conditionsMatch
+     */
+    public static boolean isConditionIndexable(BlockSpec spec) {
+        final BlockTarget target = spec.getTarget();
+        return target.hasConditions() && target.hasPartialDomainBlock();
+    }
+
+    /**
+     * @return true if the spec's decision depends on the fqdn alone: it is a domain spec without
+     * selectors or type options
+     */
+    public static boolean isHostWide(BlockSpec spec) {
+        return isDomainIndexable(spec) && spec.hasNoSelector()
+                && !spec.hasTypeMatches() && empty(spec.getTypeExclusions());
+    }
+
+    /**
+     * @return true if some host-wide spec matches the fqdn, so it matches every request to the fqdn
+     */
+    public boolean hasHostWideMatch(String fqdn) { return hasHostWideMatch(fqdn, null); }
+
+    /**
+     * As above, considering only the specs whose ids pass enabled (all of them if it is null)
+     */
+    public boolean hasHostWideMatch(String fqdn, IntPredicate enabled) {
+        final List<BlockSpec> found = new ArrayList<>();
+        collectHostCandidates(fqdn, enabled, found);
+        for (BlockSpec spec : found) {
+            if (isHostWide(spec) && spec.matchesFqdn(fqdn)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the specs with selectors whose ids pass enabled
+     */
+    public List<BlockSpec> getSelectorSpecs(IntPredicate enabled) {
+        if (enabled == null) return selectorSpecs;
+        final List<BlockSpec> found = new ArrayList<>();
+        for (int id : selectorIds) if (enabled.test(id)) found.add(table.get(id));
+        return found;
+    }
+
+    public int getDomainIndexedCount() { return domains.getSize(); }
+    public int getLiteralIndexedCount() { return literals.getSize(); }
+
+    public int getConditionIndexedCount() {
+        int count = 0;
+        for (int[] ids : conditionHosts.values()) count += ids.length;
+        return count;
+    }
+
+    /**
+     * @return bucket statistics when indexing in token_buckets mode, otherwise null
+     */
+    public TokenBucketStats getTokenBucketStats() {
+        return literals instanceof TokenBucketIndex ? ((TokenBucketIndex) literals).getStats() : null;
+    }
+    public int getUnindexedCount() { return unindexed.length; }
+
+    /**
+     * @return rule counts by type, and bucket statistics in token_buckets mode; computed on each call
+     */
+    public BlockSpecIndexStats getStats() {
+        int conditional = 0;
+        for (int id = 0; id < size; id++) if (table.get(id).getTarget().hasConditions()) conditional++;
+        return new BlockSpecIndexStats()
+                .setMode(mode)
+                .setSize(size)
+                .setDomainIndexed(getDomainIndexedCount())
+                .setLiteralIndexed(getLiteralIndexedCount())
+                .setConditionIndexed(getConditionIndexedCount())
+                .setUnindexed(getUnindexedCount())
+                .setSelectors(selectorIds.length)
+                .setConditional(conditional)
+                .setHostWide(hostWide)
+                .setTokenBuckets(getTokenBucketStats());
+    }
+
+    /**
+     * @param fqdn the hostname of the request
+     * @return every spec that could match the fqdn alone, as BlockSpec.matchesFqdn does
+     */
+    public List<BlockSpec> getCandidates(String fqdn) { return getCandidates(fqdn, null); }
+
+    /**
+     * @param fqdn the hostname of the request
+     * @param path the path of the request, may be null
+     * @return every spec that could match the request: domain specs whose domain is a suffix of the fqdn,
+     * regex specs whose literal appears in fqdn+path, conditional specs for the fqdn, plus all specs that could
+     * not be indexed
+     */
+    public List<BlockSpec> getCandidates(String fqdn, String path) { return getCandidates(fqdn, path, null); }
+
+    /**
+     * As above, keeping only the specs whose ids pass enabled (all of them if it is null). Lets several
+     * BlockListViews share one index, each seeing the specs of its own lists.
+     */
+    public List<BlockSpec> getCandidates(String fqdn, String path, IntPredicate enabled) {
+        final List<BlockSpec> candidates = new ArrayList<>(unindexed.length + 4);
+        collectHostCandidates(fqdn, enabled, candidates);
+        collectPathCandidates(fqdn, path, enabled, candidates);
+        return candidates;
+    }
+
+    /**
+     * @return the domain specs whose domain is a suffix of the fqdn, and whose ids pass enabled (all of them if
+     * it is null). With getPathCandidates, these are the candidates of getCandidates: requests to the same host
+     * can share them.
+     */
+    public List<BlockSpec> getHostCandidates(String fqdn, IntPredicate enabled) {
+        final List<BlockSpec> candidates = new ArrayList<>();
+        collectHostCandidates(fqdn, enabled, candidates);
+        return candidates;
+    }
+
+    /**
+     * @return the regex specs whose literal appears in fqdn+path, the conditional specs for the fqdn, and the
+     * specs that could not be indexed, keeping those whose ids pass enabled (all of them if it is null)
+     */
+    public List<BlockSpec> getPathCandidates(String fqdn, String path, IntPredicate enabled) {
+        final List<BlockSpec> candidates = new ArrayList<>(unindexed.length + 4);
+        collectPathCandidates(fqdn, path, enabled, candidates);
+        return candidates;
+    }
+
+    /**
+     * As getHostCandidates, adding the specs to into, so a caller can reuse one list across requests
+     */
+    public void collectHostCandidates(String fqdn, IntPredicate enabled, List<BlockSpec> into) {
+        final Collector collector = COLLECTOR.get().start(table, enabled, into);
+        domains.collect(fqdn, collector);
+        collector.finish();
+    }
+
+    /**
+     * As getPathCandidates, adding the specs to into
+     */
+    public void collectPathCandidates(String fqdn, String path, IntPredicate enabled, List<BlockSpec> into) {
+        final Collector collector = COLLECTOR.get().start(table, enabled, into);
+        literals.collect(collector, fqdn, path);
+        if (!conditionHosts.isEmpty()) {
+            final int[] ids = conditionHosts.get(fqdn);
+            if (ids != null) for (int id : ids) collector.accept(id);
+        }
+        for (int id : unindexed) collector.accept(id);
+        collector.finish();
+    }
+
+    // one per thread, so collecting candidates on the decision path allocates nothing; collecting never re-enters
+    private static final ThreadLocal<Collector> COLLECTOR = ThreadLocal.withInitial(Collector::new);
+
+    private static final class Collector implements IntConsumer {
+        private BlockSpecTable table;
+        private IntPredicate enabled;
+        private List<BlockSpec> into;
+
+        Collector start(BlockSpecTable table, IntPredicate enabled, List<BlockSpec> into) {
+            this.table = table;
+            this.enabled = enabled;
+            this.into = into;
+            return this;
+        }
+
+        // drop the references, so an idle thread does not keep a replaced list reachable
+        void finish() { start(null, null, null); }
+
+        @Override public void accept(int id) {
+            if (enabled == null || enabled.test(id)) into.add(table.get(id));
+        }
+    }
+
+}
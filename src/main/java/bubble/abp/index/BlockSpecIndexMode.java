@@ -0,0 +1,27 @@
+package bubble.abp.index;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.nio.ByteBuffer;
+
+public enum BlockSpecIndexMode {
+
+    automaton, token_buckets;
+
+    @JsonCreator public static BlockSpecIndexMode fromString (String v) { return valueOf(v.toLowerCase()); }
+
+    public LiteralIndex newLiteralIndex(BlockSpecTable table) {
+        switch (this) {
+            case token_buckets: return new TokenBucketIndex(table);
+            case automaton: default: return new LiteralAutomaton(table);
+        }
+    }
+
+    public LiteralIndex readLiteralIndex(ByteBuffer in, BlockSpecTable table) {
+        switch (this) {
+            case token_buckets: return TokenBucketIndex.read(in, table);
+            case automaton: default: return LiteralAutomaton.read(in, table);
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package bubble.abp.index;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class BlockSpecIndexStats {
+
+    @Getter @Setter private BlockSpecIndexMode mode;
+    @Getter @Setter private int size;
+
+    // where each spec is indexed: every spec is counted in exactly one of these
+    @Getter @Setter private int domainIndexed;
+    @Getter @Setter private int literalIndexed;
+    @Getter @Setter private int conditionIndexed;
+    @Getter @Setter private int unindexed;
+
+    // specs with a selector, and Bubble conditional specs, wherever they are indexed
+    @Getter @Setter private int selectors;
+    @Getter @Setter private int conditional;
+
+    @Getter @Setter private boolean hostWide;
+
+    // null unless mode is token_buckets
+    @Getter @Setter private TokenBucketStats tokenBuckets;
+
+}
@@ -0,0 +1,35 @@
+package bubble.abp.index;
+
+import bubble.abp.BlockSpec;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The specs of one list, by position. Indexes refer to specs by their id in a table, so an index can be stored
+ * and loaded without its specs, and a table is free to decode a spec only when it is first looked up.
+ */
+public interface BlockSpecTable {
+
+    BlockSpec get(int id);
+
+    int size();
+
+    /**
+     * @return a read-only view of the table; specs are looked up as they are accessed
+     */
+    default List<BlockSpec> asList() {
+        return new AbstractList<BlockSpec>() {
+            @Override public BlockSpec get(int id) { return BlockSpecTable.this.get(id); }
+            @Override public int size() { return BlockSpecTable.this.size(); }
+        };
+    }
+
+    static BlockSpecTable of(BlockSpec[] specs) {
+        return new BlockSpecTable() {
+            @Override public BlockSpec get(int id) { return specs[id]; }
+            @Override public int size() { return specs.length; }
+        };
+    }
+
+}
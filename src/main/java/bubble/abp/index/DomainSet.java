@@ -0,0 +1,227 @@
+package bubble.abp.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An immutable set of domain names, packed into a few flat buffers instead of one String and one HashMap node
+ * per domain. Each domain is stored once as UTF-8 bytes, with an offset and a 64-bit fingerprint; an open-addressed
+ * table of entry numbers, keyed on the fingerprint, gives constant-time lookups. A lookup compares fingerprints
+ * first and the bytes only on a fingerprint match, so there are no false positives.
+ *
+ * Iteration returns domains in the order they were added. A set read from a snapshot stays in the mapped file,
+ * off the heap.
+ */
+public class DomainSet extends AbstractSet<String> {
+
+    public static final DomainSet EMPTY = of(Collections.emptyList());
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int size;
+    private final ByteBuffer bytes;         // every domain's UTF-8 bytes, back to back
+    private final IntBuffer offsets;        // size+1 offsets into bytes
+    private final LongBuffer fingerprints;  // one per domain
+    private final IntBuffer slots;          // power-of-two table of domain number + 1, 0 when empty
+
+    private DomainSet(int size, ByteBuffer bytes, IntBuffer offsets, LongBuffer fingerprints, IntBuffer slots) {
+        this.size = size;
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.fingerprints = fingerprints;
+        this.slots = slots;
+    }
+
+    public static DomainSet of(Collection<String> domains) {
+        int capacity = 16;
+        while (capacity < domains.size() * 2) capacity *= 2;
+        final int mask = capacity - 1;
+        final int[] slots = new int[capacity];
+        final int[] offsets = new int[domains.size() + 1];
+        final long[] fingerprints = new long[domains.size()];
+        byte[] bytes = new byte[Math.max(16, domains.size() * 16)];
+
+        int size = 0;
+        int length = 0;
+        for (String domain : domains) {
+            final byte[] b = domain.getBytes(UTF_8);
+            final long fp = fingerprint(b);
+            int i = slot(fp) & mask;
+            boolean duplicate = false;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                final int e = slots[i] - 1;
+                if (fingerprints[e] == fp && Arrays.equals(bytes, offsets[e], offsets[e + 1], b, 0, b.length)) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate) continue;
+            if (length + b.length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + b.length));
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+            fingerprints[size] = fp;
+            slots[i] = ++size;
+            offsets[size] = length;
+        }
+        return new DomainSet(size,
+                ByteBuffer.wrap(Arrays.copyOf(bytes, length)),
+                IntBuffer.wrap(Arrays.copyOf(offsets, size + 1)),
+                LongBuffer.wrap(Arrays.copyOf(fingerprints, size)),
+                IntBuffer.wrap(slots));
+    }
+
+    @Override public int size() { return size; }
+
+    @Override public boolean contains(Object o) {
+        if (!(o instanceof String)) return false;
+        final String s = (String) o;
+        return find(s, 0, s.length()) >= 0;
+    }
+
+    /**
+     * @return true if fqdn, or any domain it is a subdomain of, is in this set. One lookup per label.
+     */
+    public boolean containsDomainOrParent(String fqdn) {
+        int start = 0;
+        while (true) {
+            if (find(fqdn, start, fqdn.length()) >= 0) return true;
+            final int dot = fqdn.indexOf('.', start);
+            if (dot == -1) return false;
+            start = dot + 1;
+        }
+    }
+
+    // ASCII domains are hashed and compared char by char, without encoding them
+    private int find(String s, int start, int end) {
+        long h = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) return find(s.substring(start, end).getBytes(UTF_8));
+            h = (h ^ c) * FNV_PRIME;
+        }
+        final long fp = mix(h);
+        final int mask = slots.limit() - 1;
+        for (int i = slot(fp) & mask; slots.get(i) != 0; i = (i + 1) & mask) {
+            final int e = slots.get(i) - 1;
+            if (fingerprints.get(e) == fp && equalsAscii(e, s, start, end)) return e;
+        }
+        return -1;
+    }
+
+    private int find(byte[] b) {
+        final long fp = fingerprint(b);
+        final int mask = slots.limit() - 1;
+        for (int i = slot(fp) & mask; slots.get(i) != 0; i = (i + 1) & mask) {
+            final int e = slots.get(i) - 1;
+            if (fingerprints.get(e) == fp && equalsBytes(e, b)) return e;
+        }
+        return -1;
+    }
+
+    private boolean equalsAscii(int e, String s, int start, int end) {
+        final int offset = offsets.get(e);
+        if (offsets.get(e + 1) - offset != end - start) return false;
+        for (int i = start; i < end; i++) {
+            if (bytes.get(offset + i - start) != (byte) s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean equalsBytes(int e, byte[] b) {
+        final int offset = offsets.get(e);
+        if (offsets.get(e + 1) - offset != b.length) return false;
+        for (int i = 0; i < b.length; i++) {
+            if (bytes.get(offset + i) != b[i]) return false;
+        }
+        return true;
+    }
+
+    private String get(int e) {
+        final int offset = offsets.get(e);
+        final byte[] b = new byte[offsets.get(e + 1) - offset];
+        for (int i = 0; i < b.length; i++) b[i] = bytes.get(offset + i);
+        return new String(b, UTF_8);
+    }
+
+    @Override public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+            @Override public boolean hasNext() { return next < size; }
+            @Override public String next() {
+                if (next >= size) throw new NoSuchElementException();
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * @return bytes used by the packed buffers
+     */
+    public long getMemoryBytes() {
+        return bytes.limit() + (long) Integer.BYTES * offsets.limit()
+                + (long) Long.BYTES * fingerprints.limit() + (long) Integer.BYTES * slots.limit();
+    }
+
+    public double getBytesPerEntry() { return size == 0 ? 0 : ((double) getMemoryBytes()) / size; }
+
+    public boolean isOffHeap() { return bytes.isDirect(); }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(bytes.limit());
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+        } else {
+            for (int i = 0; i < bytes.limit(); i++) out.writeByte(bytes.get(i));
+        }
+        for (int i = 0; i <= size; i++) out.writeInt(offsets.get(i));
+        for (int i = 0; i < size; i++) out.writeLong(fingerprints.get(i));
+        out.writeInt(slots.limit());
+        for (int i = 0; i < slots.limit(); i++) out.writeInt(slots.get(i));
+    }
+
+    /**
+     * @return a set backed by in; nothing is copied, so a set read from a mapped file stays off the heap
+     */
+    public static DomainSet read(ByteBuffer in) {
+        final int size = in.getInt();
+        final ByteBuffer bytes = slice(in, in.getInt());
+        final IntBuffer offsets = slice(in, (size + 1) * Integer.BYTES).asIntBuffer();
+        final LongBuffer fingerprints = slice(in, size * Long.BYTES).asLongBuffer();
+        final IntBuffer slots = slice(in, in.getInt() * Integer.BYTES).asIntBuffer();
+        return new DomainSet(size, bytes, offsets, fingerprints, slots);
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int length) {
+        final ByteBuffer slice = in.slice();
+        slice.limit(length);
+        in.position(in.position() + length);
+        return slice;
+    }
+
+    private static long fingerprint(byte[] b) {
+        long h = FNV_OFFSET;
+        for (byte c : b) h = (h ^ (c & 0xff)) * FNV_PRIME;
+        return mix(h);
+    }
+
+    // FNV-1a spreads poorly into the low bits the table uses; finish with the murmur3 mixer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int slot(long fp) { return (int) (fp ^ (fp >>> 32)); }
+
+}
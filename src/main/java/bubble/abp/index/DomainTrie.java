@@ -0,0 +1,212 @@
+package bubble.abp.index;
+
+import bubble.abp.BlockSpec;
+import lombok.Getter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+import static bubble.abp.index.SnapshotIO.*;
+
+/**
+ * A trie of domain suffixes, keyed on hostname labels from right to left ("com" -> "example" -> "www").
+ *
+ * A domain block target like ||example.com^ compiles to the regex .*?example\.com$, which matches any fqdn
+ * that ends with the domain -- including fqdns where the leftmost label of the domain is only a suffix of the
+ * corresponding fqdn label (badexample.com), and fqdns under a "dot domain" like .tk (foo.tk).
+ * The trie reproduces exactly that: inner labels must match whole, while the leftmost label is matched against
+ * every suffix of the fqdn label. Label suffixes are probed with a hash computed while scanning the fqdn from the end,
+ * so a lookup is a single pass over the fqdn and allocates nothing.
+ *
+ * Nodes hold spec ids, resolved through the BlockSpecTable as specs are collected.
+ */
+public class DomainTrie {
+
+    private final BlockSpecTable table;
+    private final Node root = new Node();
+
+    @Getter private int size = 0;
+
+    public DomainTrie(BlockSpecTable table) { this.table = table; }
+
+    public void add(String domain, int id) {
+        Node node = root;
+        int end = domain.length();
+        while (true) {
+            final int dot = domain.lastIndexOf('.', end - 1);
+            node = node.getOrCreateChild(domain, dot + 1, end);
+            if (dot == -1) break;
+            end = dot;
+        }
+        node.addSpec(id);
+        size++;
+    }
+
+    public void collect(String fqdn, Collection<BlockSpec> found) { collect(fqdn, id -> found.add(table.get(id))); }
+
+    /**
+     * Pass found the id of every spec whose domain is a suffix of fqdn, on a label boundary
+     */
+    public void collect(String fqdn, IntConsumer found) {
+        Node node = root;
+        int end = fqdn.length();
+        while (node != null) {
+            // the empty suffix matches every label, this handles domains that begin with a dot
+            final Node empty = node.child(0, fqdn, end, end);
+            if (empty != null) empty.collect(found);
+
+            // if the label itself is empty, the empty child is also the whole-label match
+            Node next = (end == 0 || fqdn.charAt(end - 1) == '.') ? empty : null;
+            int hash = 0;
+            int pos = end - 1;
+            while (pos >= 0 && fqdn.charAt(pos) != '.') {
+                hash = 31 * hash + fqdn.charAt(pos);
+                final Node child = node.child(hash, fqdn, pos, end);
+                if (child != null) {
+                    child.collect(found);
+                    if (pos == 0 || fqdn.charAt(pos - 1) == '.') next = child;
+                }
+                pos--;
+            }
+            if (pos < 0) break;
+            node = next;
+            end = pos;
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        write(out, root);
+    }
+
+    private static void write(DataOutput out, Node node) throws IOException {
+        writeInts(out, node.specs == null ? new int[0] : node.specs, node.specCount);
+        out.writeInt(node.childCount);
+        if (node.childCount == 0) return;
+        for (int i = 0; i < node.labels.length; i++) {
+            if (node.labels[i] == null) continue;
+            writeString(out, node.labels[i]);
+            write(out, node.children[i]);
+        }
+    }
+
+    public static DomainTrie read(ByteBuffer in, BlockSpecTable table) {
+        final DomainTrie trie = new DomainTrie(table);
+        trie.size = in.getInt();
+        read(in, trie.root);
+        return trie;
+    }
+
+    private static void read(ByteBuffer in, Node node) {
+        final int[] specs = readInts(in);
+        if (specs.length > 0) {
+            node.specs = specs;
+            node.specCount = specs.length;
+        }
+        final int childCount = in.getInt();
+        if (childCount == 0) return;
+        int capacity = 4;
+        while (childCount * 2 > capacity) capacity *= 2;
+        node.allocate(capacity);
+        for (int i = 0; i < childCount; i++) {
+            final String label = readString(in);
+            final Node child = new Node();
+            node.insert(label, labelHash(label, 0, label.length()), child);
+            read(in, child);
+        }
+    }
+
+    // computed right-to-left, to agree with the running hash in collect
+    private static int labelHash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = end - 1; i >= start; i--) hash = 31 * hash + s.charAt(i);
+        return hash;
+    }
+
+    private static int spread(int hash) { return hash ^ (hash >>> 16); }
+
+    private static class Node {
+
+        private String[] labels;
+        private int[] hashes;
+        private Node[] children;
+        private int childCount = 0;
+
+        private int[] specs;
+        private int specCount = 0;
+
+        void addSpec(int id) {
+            if (specs == null) {
+                specs = new int[1];
+            } else if (specCount == specs.length) {
+                specs = Arrays.copyOf(specs, specCount * 2);
+            }
+            specs[specCount++] = id;
+        }
+
+        void collect(IntConsumer found) {
+            for (int i = 0; i < specCount; i++) found.accept(specs[i]);
+        }
+
+        Node child(int hash, String s, int start, int end) {
+            if (labels == null) return null;
+            final int len = end - start;
+            final int mask = labels.length - 1;
+            for (int i = spread(hash) & mask; labels[i] != null; i = (i + 1) & mask) {
+                if (hashes[i] == hash && labels[i].length() == len && s.regionMatches(start, labels[i], 0, len)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(String s, int start, int end) {
+            final int hash = labelHash(s, start, end);
+            final Node existing = child(hash, s, start, end);
+            if (existing != null) return existing;
+
+            if (labels == null) {
+                allocate(4);
+            } else if ((childCount + 1) * 2 > labels.length) {
+                resize();
+            }
+            final Node child = new Node();
+            insert(s.substring(start, end), hash, child);
+            return child;
+        }
+
+        private void allocate(int capacity) {
+            labels = new String[capacity];
+            hashes = new int[capacity];
+            children = new Node[capacity];
+        }
+
+        private void insert(String label, int hash, Node child) {
+            final int mask = labels.length - 1;
+            int i = spread(hash) & mask;
+            while (labels[i] != null) i = (i + 1) & mask;
+            labels[i] = label;
+            hashes[i] = hash;
+            children[i] = child;
+            childCount++;
+        }
+
+        private void resize() {
+            final String[] oldLabels = labels;
+            final int[] oldHashes = hashes;
+            final Node[] oldChildren = children;
+            labels = new String[oldLabels.length * 2];
+            hashes = new int[oldLabels.length * 2];
+            children = new Node[oldLabels.length * 2];
+            childCount = 0;
+            for (int i = 0; i < oldLabels.length; i++) {
+                if (oldLabels[i] != null) insert(oldLabels[i], oldHashes[i], oldChildren[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+package bubble.abp.index;
+
+import bubble.abp.BlockSpec;
+import lombok.Getter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static bubble.abp.index.SnapshotIO.*;
+
+/**
+ * An Aho-Corasick automaton over the literal parts of BlockTarget regexes.
+ *
+ * Each spec is added with a literal that must appear in any input its regex matches. A single pass over the input
+ * then yields every spec whose literal occurs in it; only those specs need their regex evaluated.
+ *
+ * Transitions live in one open-addressed table keyed on (state, char), so the automaton stays compact
+ * even with hundreds of thousands of literals.
+ */
+public class LiteralAutomaton implements LiteralIndex {
+
+    private static final int ROOT = 0;
+    private static final long EMPTY_KEY = -1L;
+
+    private final BlockSpecTable table;
+
+    // transition table
+    private long[] keys = emptyKeys(1024);
+    private int[] targets = new int[1024];
+    private int transitionCount = 0;
+
+    // per-state data
+    private int[] parent = new int[64];
+    private char[] edge = new char[64];
+    private int[] depth = new int[64];
+    private int[] output = filled(new int[64], -1);
+    private int[] fail;
+    private int[] dictLink;
+    @Getter private int stateCount = 1;
+
+    // per-pattern data, patterns are the distinct literals. patternSizes is only needed until build()
+    private Map<String, Integer> patternIds = new HashMap<>();
+    private int[][] patternSpecs = new int[16][];
+    private int[] patternSizes = new int[16];
+    @Getter private int patternCount = 0;
+
+    @Getter private int size = 0;
+    private volatile boolean built = false;
+
+    public LiteralAutomaton(BlockSpecTable table) { this.table = table; }
+
+    @Override public void add(int id) { add(table.get(id).getTarget().getLiteral(), id); }
+
+    public void add(String literal, int specId) {
+        if (built) throw new IllegalStateException("add: automaton already built");
+        if (literal.length() == 0) throw new IllegalArgumentException("add: empty literal");
+        Integer id = patternIds.get(literal);
+        if (id == null) {
+            id = patternCount++;
+            patternIds.put(literal, id);
+            if (id == patternSpecs.length) {
+                patternSpecs = Arrays.copyOf(patternSpecs, id * 2);
+                patternSizes = Arrays.copyOf(patternSizes, id * 2);
+            }
+            patternSpecs[id] = new int[1];
+            int state = ROOT;
+            for (int i = 0; i < literal.length(); i++) {
+                final char c = literal.charAt(i);
+                final int next = transition(state, c);
+                state = next != -1 ? next : newState(state, c);
+            }
+            output[state] = id;
+        }
+        int[] specs = patternSpecs[id];
+        if (patternSizes[id] == specs.length) specs = patternSpecs[id] = Arrays.copyOf(specs, specs.length * 2);
+        specs[patternSizes[id]++] = specId;
+        size++;
+    }
+
+    /**
+     * Compute failure and dictionary links. Called automatically on the first search.
+     */
+    @Override public synchronized LiteralAutomaton build() {
+        if (built) return this;
+        fail = new int[stateCount];
+        dictLink = new int[stateCount];
+        output = Arrays.copyOf(output, stateCount);
+
+        // process states in order of depth, so a state's parent and all shorter suffixes are linked before it
+        for (int s : statesByDepth()) {
+            if (s == ROOT) continue;
+            final int p = parent[s];
+            if (p == ROOT) {
+                fail[s] = ROOT;
+            } else {
+                int f = fail[p];
+                int next;
+                while ((next = transition(f, edge[s])) == -1 && f != ROOT) f = fail[f];
+                fail[s] = next == -1 ? ROOT : next;
+            }
+            final int f = fail[s];
+            dictLink[s] = output[f] != -1 ? f : dictLink[f];
+        }
+        parent = null;
+        edge = null;
+        depth = null;
+        patternIds = null;
+        patternSpecs = Arrays.copyOf(patternSpecs, patternCount);
+        for (int id = 0; id < patternCount; id++) patternSpecs[id] = Arrays.copyOf(patternSpecs[id], patternSizes[id]);
+        patternSizes = null;
+        built = true;
+        return this;
+    }
+
+    @Override public void write(DataOutput out) throws IOException {
+        if (!built) build();
+        writeLongs(out, keys);
+        writeInts(out, targets);
+        out.writeInt(transitionCount);
+        out.writeInt(stateCount);
+        writeInts(out, output);
+        writeInts(out, fail);
+        writeInts(out, dictLink);
+        out.writeInt(patternCount);
+        for (int id = 0; id < patternCount; id++) writeInts(out, patternSpecs[id]);
+        out.writeInt(size);
+    }
+
+    public static LiteralAutomaton read(ByteBuffer in, BlockSpecTable table) {
+        final LiteralAutomaton a = new LiteralAutomaton(table);
+        a.keys = readLongs(in);
+        a.targets = readInts(in);
+        a.transitionCount = in.getInt();
+        a.stateCount = in.getInt();
+        a.output = readInts(in);
+        a.fail = readInts(in);
+        a.dictLink = readInts(in);
+        a.patternCount = in.getInt();
+        a.patternSpecs = new int[a.patternCount][];
+        for (int id = 0; id < a.patternCount; id++) a.patternSpecs[id] = readInts(in);
+        a.size = in.getInt();
+        a.parent = null;
+        a.edge = null;
+        a.depth = null;
+        a.patternIds = null;
+        a.patternSizes = null;
+        a.built = true;
+        return a;
+    }
+
+    @Override public void collect(IntConsumer found, String fqdn, String path) {
+        if (!built) build();
+        // a literal found in the path alone is also found in fqdn+path
+        final SeenIds seen = SeenIds.acquire(patternCount);
+        try {
+            scan(found, path, scan(found, fqdn, ROOT, seen), seen);
+        } finally {
+            seen.release();
+        }
+    }
+
+    /**
+     * Find all specs whose literal occurs in the concatenation of the given inputs.
+     * The inputs are scanned as if they were one string, without building it.
+     * @param found collection to add matching specs to. Each spec is added once per distinct literal.
+     */
+    public void collect(Collection<BlockSpec> found, CharSequence... inputs) { collect(id -> found.add(table.get(id)), inputs); }
+
+    /**
+     * As above, passing found the id of each spec
+     */
+    public void collect(IntConsumer found, CharSequence... inputs) {
+        if (!built) build();
+        final SeenIds seen = SeenIds.acquire(patternCount);
+        try {
+            int state = ROOT;
+            for (CharSequence input : inputs) state = scan(found, input, state, seen);
+        } finally {
+            seen.release();
+        }
+    }
+
+    // feed input to the automaton from state, passing found the specs of each literal not seen yet
+    private int scan(IntConsumer found, CharSequence input, int state, SeenIds seen) {
+        if (input == null) return state;
+        for (int i = 0; i < input.length(); i++) {
+            state = step(state, input.charAt(i));
+            for (int s = output[state] != -1 ? state : dictLink[state]; s != ROOT; s = dictLink[s]) {
+                final int id = output[s];
+                if (seen.add(id)) {
+                    for (int specId : patternSpecs[id]) found.accept(specId);
+                }
+            }
+        }
+        return state;
+    }
+
+    private int[] statesByDepth() {
+        int maxDepth = 0;
+        for (int s = 0; s < stateCount; s++) maxDepth = Math.max(maxDepth, depth[s]);
+        final int[] start = new int[maxDepth + 2];
+        for (int s = 0; s < stateCount; s++) start[depth[s] + 1]++;
+        for (int d = 1; d < start.length; d++) start[d] += start[d - 1];
+        final int[] order = new int[stateCount];
+        for (int s = 0; s < stateCount; s++) order[start[depth[s]]++] = s;
+        return order;
+    }
+
+    private int step(int state, char c) {
+        while (true) {
+            final int next = transition(state, c);
+            if (next != -1) return next;
+            if (state == ROOT) return ROOT;
+            state = fail[state];
+        }
+    }
+
+    private int newState(int from, char c) {
+        final int s = stateCount++;
+        if (s == parent.length) {
+            final int len = parent.length * 2;
+            parent = Arrays.copyOf(parent, len);
+            edge = Arrays.copyOf(edge, len);
+            depth = Arrays.copyOf(depth, len);
+            output = filled(Arrays.copyOf(output, len), -1, s);
+        }
+        parent[s] = from;
+        edge[s] = c;
+        depth[s] = depth[from] + 1;
+        putTransition(from, c, s);
+        return s;
+    }
+
+    private static long key(int state, char c) { return ((long) state << 16) | c; }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int transition(int state, char c) {
+        final long k = key(state, c);
+        final int mask = keys.length - 1;
+        for (int i = slot(k, mask); keys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+            if (keys[i] == k) return targets[i];
+        }
+        return -1;
+    }
+
+    private void putTransition(int state, char c, int target) {
+        if ((transitionCount + 1) * 2 > keys.length) {
+            final long[] oldKeys = keys;
+            final int[] oldTargets = targets;
+            keys = emptyKeys(oldKeys.length * 2);
+            targets = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY) insert(oldKeys[i], oldTargets[i]);
+            }
+        }
+        insert(key(state, c), target);
+        transitionCount++;
+    }
+
+    private void insert(long k, int target) {
+        final int mask = keys.length - 1;
+        int i = slot(k, mask);
+        while (keys[i] != EMPTY_KEY) i = (i + 1) & mask;
+        keys[i] = k;
+        targets[i] = target;
+    }
+
+    private static long[] emptyKeys(int size) {
+        final long[] k = new long[size];
+        Arrays.fill(k, EMPTY_KEY);
+        return k;
+    }
+
+    private static int[] filled(int[] a, int value) { return filled(a, value, 0); }
+
+    private static int[] filled(int[] a, int value, int from) {
+        Arrays.fill(a, from, a.length, value);
+        return a;
+    }
+
+}
@@ -0,0 +1,35 @@
+package bubble.abp.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.IntConsumer;
+
+/**
+ * Indexes specs by the literal of their BlockTarget, see BlockTarget.getLiteral
+ */
+public interface LiteralIndex {
+
+    /**
+     * @param id the id of the spec in the index's BlockSpecTable
+     */
+    void add(int id);
+
+    /**
+     * Finish building the index. No specs can be added afterwards.
+     */
+    LiteralIndex build();
+
+    /**
+     * Pass found the id of every spec whose regex could match the path, or fqdn+path.
+     * When path is null, only the fqdn is considered.
+     */
+    void collect(IntConsumer found, String fqdn, String path);
+
+    int getSize();
+
+    /**
+     * Write the built index to a snapshot; BlockSpecIndexMode.readLiteralIndex reads it back
+     */
+    void write(DataOutput out) throws IOException;
+
+}
@@ -0,0 +1,48 @@
+package bubble.abp.index;
+
+import java.util.Arrays;
+
+/**
+ * A set of small non-negative ints, reused by each thread so that deduplicating index matches allocates nothing.
+ * Release clears only the words that were set, so a lookup that sees few ids stays cheap however large the index.
+ */
+final class SeenIds {
+
+    private static final ThreadLocal<SeenIds> CURRENT = ThreadLocal.withInitial(SeenIds::new);
+
+    private long[] words = new long[16];
+    private int[] touched = new int[16];
+    private int touchedCount = 0;
+
+    /**
+     * @return this thread's set, able to hold ids below capacity. Call release when done; lookups must not nest.
+     */
+    static SeenIds acquire(int capacity) {
+        final SeenIds seen = CURRENT.get();
+        final int wordCount = (capacity + 63) >>> 6;
+        if (seen.words.length < wordCount) seen.words = new long[wordCount];
+        return seen;
+    }
+
+    /**
+     * @return true if id was added, false if it was already in the set
+     */
+    boolean add(int id) {
+        final int w = id >>> 6;
+        final long bit = 1L << id;
+        final long word = words[w];
+        if ((word & bit) != 0) return false;
+        if (word == 0) {
+            if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+            touched[touchedCount++] = w;
+        }
+        words[w] = word | bit;
+        return true;
+    }
+
+    void release() {
+        for (int i = 0; i < touchedCount; i++) words[touched[i]] = 0;
+        touchedCount = 0;
+    }
+
+}
@@ -0,0 +1,72 @@
+package bubble.abp.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encoding helpers for BlockList snapshots. Values are written with a DataOutput and read back from a
+ * (usually memory-mapped) ByteBuffer, both big-endian.
+ */
+public class SnapshotIO {
+
+    private static final int NULL_LENGTH = -1;
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        final byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(ByteBuffer in) {
+        final int len = in.getInt();
+        if (len == NULL_LENGTH) return null;
+        final byte[] bytes = new byte[len];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    public static void writeStrings(DataOutput out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) writeString(out, s);
+    }
+
+    public static String[] readStrings(ByteBuffer in) {
+        final String[] strings = new String[in.getInt()];
+        for (int i = 0; i < strings.length; i++) strings[i] = readString(in);
+        return strings;
+    }
+
+    public static void writeInts(DataOutput out, int[] values) throws IOException { writeInts(out, values, values.length); }
+
+    public static void writeInts(DataOutput out, int[] values, int length) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) out.writeInt(values[i]);
+    }
+
+    public static int[] readInts(ByteBuffer in) {
+        final int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    public static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long v : values) out.writeLong(v);
+    }
+
+    public static long[] readLongs(ByteBuffer in) {
+        final long[] values = new long[in.getInt()];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * Long.BYTES);
+        return values;
+    }
+
+}
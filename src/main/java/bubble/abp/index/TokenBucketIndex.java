@@ -0,0 +1,257 @@
+package bubble.abp.index;
+
+import bubble.abp.BlockSpec;
+import bubble.abp.BlockTarget;
+import lombok.Getter;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+import static bubble.abp.index.SnapshotIO.*;
+
+/**
+ * Groups specs into buckets keyed on one alphanumeric token of their literal, in the style of uBlock's filter buckets.
+ *
+ * A token is a run of ASCII letters and digits that is delimited on both sides within the literal, or that reaches
+ * a side of the literal where the regex is anchored. Such a token appears as a whole token in any URL the regex
+ * matches. Each spec is filed under the token that is rarest across the whole list, so buckets stay small.
+ * Specs without a usable token go into a single generic bucket that is checked for every request.
+ *
+ * At decision time the fqdn and path are tokenized the same way, and only the buckets for those tokens are visited.
+ */
+public class TokenBucketIndex implements LiteralIndex {
+
+    public static final int STATS_LARGEST_BUCKETS = 10;
+
+    private final BlockSpecTable table;
+
+    // spec ids added but not yet filed; null once built
+    private int[] pending = new int[16];
+
+    private int[] keys;
+    private int[][] buckets;
+    private String[] bucketTokens;
+    @Getter private int bucketCount = 0;
+    private int[] genericBucket;
+    @Getter private int size = 0;
+
+    public TokenBucketIndex(BlockSpecTable table) { this.table = table; }
+
+    @Override public void add(int id) {
+        if (pending == null) throw new IllegalStateException("add: index already built");
+        if (size == pending.length) pending = Arrays.copyOf(pending, size * 2);
+        pending[size++] = id;
+    }
+
+    @Override public synchronized TokenBucketIndex build() {
+        if (pending == null) return this;
+
+        // count how many specs could use each token
+        final Map<String, List<String>> tokensByLiteral = new HashMap<>();
+        final Map<String, Integer> frequency = new HashMap<>();
+        for (int p = 0; p < size; p++) {
+            final BlockTarget target = table.get(pending[p]).getTarget();
+            final List<String> tokens = tokens(target);
+            tokensByLiteral.put(tokenKey(target), tokens);
+            for (String token : new HashSet<>(tokens)) frequency.merge(token, 1, Integer::sum);
+        }
+
+        // file each spec under its rarest token
+        final Map<Integer, List<Integer>> byHash = new HashMap<>();
+        final Map<Integer, String> tokenNames = new HashMap<>();
+        final List<Integer> generic = new ArrayList<>();
+        for (int p = 0; p < size; p++) {
+            final int id = pending[p];
+            String best = null;
+            for (String token : tokensByLiteral.get(tokenKey(table.get(id).getTarget()))) {
+                if (best == null) {
+                    best = token;
+                    continue;
+                }
+                final int cmp = Integer.compare(frequency.get(token), frequency.get(best));
+                if (cmp < 0 || (cmp == 0 && token.length() > best.length())) best = token;
+            }
+            if (best == null) {
+                generic.add(id);
+            } else {
+                final int hash = tokenHash(best);
+                byHash.computeIfAbsent(hash, k -> new ArrayList<>()).add(id);
+                tokenNames.putIfAbsent(hash, best);
+            }
+        }
+
+        int capacity = 16;
+        while (capacity < byHash.size() * 2) capacity *= 2;
+        keys = new int[capacity];
+        buckets = new int[capacity][];
+        bucketTokens = new String[capacity];
+        for (Map.Entry<Integer, List<Integer>> entry : byHash.entrySet()) {
+            final int hash = entry.getKey();
+            final int mask = capacity - 1;
+            int i = spread(hash) & mask;
+            while (buckets[i] != null) i = (i + 1) & mask;
+            keys[i] = hash;
+            buckets[i] = toArray(entry.getValue());
+            bucketTokens[i] = tokenNames.get(hash);
+        }
+        bucketCount = byHash.size();
+        genericBucket = toArray(generic);
+        pending = null;
+        return this;
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        final int[] a = new int[ids.size()];
+        for (int i = 0; i < a.length; i++) a[i] = ids.get(i);
+        return a;
+    }
+
+    @Override public void write(DataOutput out) throws IOException {
+        if (pending != null) build();
+        writeInts(out, keys);
+        for (int[] bucket : buckets) {
+            if (bucket == null) {
+                out.writeInt(-1);
+            } else {
+                writeInts(out, bucket);
+            }
+        }
+        writeStrings(out, bucketTokens);
+        out.writeInt(bucketCount);
+        writeInts(out, genericBucket);
+        out.writeInt(size);
+    }
+
+    public static TokenBucketIndex read(ByteBuffer in, BlockSpecTable table) {
+        final TokenBucketIndex index = new TokenBucketIndex(table);
+        index.keys = readInts(in);
+        index.buckets = new int[index.keys.length][];
+        for (int i = 0; i < index.buckets.length; i++) {
+            final int mark = in.position();
+            if (in.getInt() == -1) continue;
+            in.position(mark);
+            index.buckets[i] = readInts(in);
+        }
+        index.bucketTokens = readStrings(in);
+        index.bucketCount = in.getInt();
+        index.genericBucket = readInts(in);
+        index.size = in.getInt();
+        index.pending = null;
+        return index;
+    }
+
+    @Override public void collect(IntConsumer found, String fqdn, String path) {
+        if (pending != null) build();
+        final SeenIds visited = SeenIds.acquire(keys.length);
+        try {
+            collect(found, fqdn, path, visited);
+        } finally {
+            visited.release();
+        }
+        for (int id : genericBucket) found.accept(id);
+    }
+
+    private void collect(IntConsumer found, String fqdn, String path, SeenIds visited) {
+        int hash = 0;
+        int len = 0;
+        final int fqdnLength = fqdn.length();
+        final int total = path == null ? fqdnLength : fqdnLength + path.length();
+        for (int i = 0; i <= total; i++) {
+            final char c = i == total ? 0 : i < fqdnLength ? fqdn.charAt(i) : path.charAt(i - fqdnLength);
+            if (isTokenChar(c)) {
+                hash = 31 * hash + c;
+                len++;
+                continue;
+            }
+            if (len > 0) {
+                visit(hash, found, visited);
+                hash = 0;
+                len = 0;
+            }
+        }
+        // a regex matched against the path alone sees a token boundary where the path begins
+        if (path != null && fqdnLength > 0 && path.length() > 0
+                && isTokenChar(fqdn.charAt(fqdnLength - 1)) && isTokenChar(path.charAt(0))) {
+            hash = 0;
+            for (int i = 0; i < path.length() && isTokenChar(path.charAt(i)); i++) hash = 31 * hash + path.charAt(i);
+            visit(hash, found, visited);
+        }
+    }
+
+    private void visit(int hash, IntConsumer found, SeenIds visited) {
+        final int mask = keys.length - 1;
+        for (int i = spread(hash) & mask; buckets[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == hash) {
+                if (visited.add(i)) {
+                    for (int id : buckets[i]) found.accept(id);
+                }
+                break;
+            }
+        }
+    }
+
+    public TokenBucketStats getStats() {
+        if (pending != null) build();
+        final List<Integer> bySize = new ArrayList<>();
+        int tokenized = 0;
+        int largest = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            if (buckets[i] == null) continue;
+            bySize.add(i);
+            tokenized += buckets[i].length;
+            largest = Math.max(largest, buckets[i].length);
+        }
+        bySize.sort((a, b) -> Integer.compare(buckets[b].length, buckets[a].length));
+        final Map<String, Integer> largestBuckets = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(STATS_LARGEST_BUCKETS, bySize.size()); i++) {
+            largestBuckets.put(bucketTokens[bySize.get(i)], buckets[bySize.get(i)].length);
+        }
+        return new TokenBucketStats()
+                .setBucketCount(bucketCount)
+                .setTokenizedSpecs(tokenized)
+                .setGenericBucketSize(genericBucket.length)
+                .setLargestBucketSize(largest)
+                .setMeanBucketSize(bucketCount == 0 ? 0 : ((double) tokenized) / bucketCount)
+                .setLargestBuckets(largestBuckets);
+    }
+
+    public static List<String> tokens(BlockTarget target) {
+        final String literal = target.getLiteral();
+        final List<String> tokens = new ArrayList<>();
+        final int len = literal.length();
+        int start = 0;
+        while (start < len) {
+            if (!isTokenChar(literal.charAt(start))) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < len && isTokenChar(literal.charAt(end))) end++;
+            final boolean boundedStart = start > 0 || target.isLiteralAtStart();
+            final boolean boundedEnd = end < len || target.isLiteralAtEnd();
+            if (boundedStart && boundedEnd) tokens.add(literal.substring(start, end));
+            start = end;
+        }
+        return tokens;
+    }
+
+    private static String tokenKey(BlockTarget target) {
+        return (target.isLiteralAtStart() ? "^" : "") + target.getLiteral() + (target.isLiteralAtEnd() ? "$" : "");
+    }
+
+    public static boolean isTokenChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static int tokenHash(String token) {
+        int hash = 0;
+        for (int i = 0; i < token.length(); i++) hash = 31 * hash + token.charAt(i);
+        return hash;
+    }
+
+    private static int spread(int hash) { return hash ^ (hash >>> 16); }
+
+}
@@ -0,0 +1,23 @@
+package bubble.abp.index;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+import java.util.Map;
+
+@NoArgsConstructor @Accessors(chain=true) @ToString
+public class TokenBucketStats {
+
+    @Getter @Setter private int bucketCount;
+    @Getter @Setter private int tokenizedSpecs;
+    @Getter @Setter private int genericBucketSize;
+    @Getter @Setter private int largestBucketSize;
+    @Getter @Setter private double meanBucketSize;
+
+    // token -> bucket size, largest first
+    @Getter @Setter private Map<String, Integer> largestBuckets;
+
+}
@@ -0,0 +1,54 @@
+package bubble.abp.metrics;
+
+import bubble.abp.BlockDecision;
+import bubble.abp.index.BlockSpecIndexStats;
+
+/**
+ * Receives measurements from block lists, their sources and their decisions, to be recorded in a metrics
+ * library of the caller's choice: a latency argument fits a timer or histogram, a count fits a counter.
+ * Every method does nothing by default, so an implementation overrides only what it records.
+ *
+ * Decision methods are called on the deciding thread, once per decision, so implementations must be
+ * thread-safe and cheap. NONE is the default everywhere; while it is set, decisions are not timed at all.
+ */
+public interface BlockListMetrics {
+
+    BlockListMetrics NONE = new BlockListMetrics() {};
+
+    /**
+     * A getDecision or getDecisions request was decided
+     * @param cached true if the decision came from the decision cache
+     * @param specsScanned the number of candidate specs matched against the request, 0 when cached
+     * @param nanos time taken; in a batch, the host lookup shared by a host's requests counts towards its first one
+     */
+    default void decision(BlockDecision decision, boolean cached, int specsScanned, long nanos) {}
+
+    /**
+     * A getFqdnDecision request was decided; these are never cached
+     */
+    default void fqdnDecision(BlockDecision decision, int specsScanned, long nanos) {}
+
+    /**
+     * A source downloaded and parsed its list, or parsed the lines that changed since its last refresh
+     * @param url the source's url, null for entries added directly
+     * @param lines the number of rule lines parsed, includes expanded
+     * @param errors the number of lines that failed to parse and were skipped, see parseError
+     * @param nanos time taken, including the download
+     */
+    default void listLoaded(String url, int lines, int errors, long nanos) {}
+
+    /**
+     * A rule line failed to parse and was skipped. Called on the parsing thread, which with
+     * BlockListSource.parseThreads &gt; 1 is a pool thread.
+     */
+    default void parseError(String url, int lineNumber, String line, Exception e) {}
+
+    /**
+     * A BlockList was compiled, see BlockList.compile
+     * @param blacklist rule counts by type, and bucket sizes in token_buckets mode, for the blacklist
+     * @param whitelist the same for the whitelist
+     * @param nanos time taken to build the indexes
+     */
+    default void compiled(BlockSpecIndexStats blacklist, BlockSpecIndexStats whitelist, long nanos) {}
+
+}
@@ -0,0 +1,29 @@
+package bubble.abp.metrics;
+
+import bubble.abp.BlockSpec;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * What a SpecProfiler measured for one spec. Counts are estimates, scaled up from the sampled evaluations,
+ * and exact when the sample rate is 1.
+ */
+@AllArgsConstructor @ToString(exclude="spec")
+public class SpecProfile {
+
+    @JsonIgnore @Getter private final BlockSpec spec;
+
+    // the url of the first source whose list holds the spec, or null if no sources were given or none holds it
+    @Getter private final String url;
+
+    @Getter private final long evaluations;
+    @Getter private final long matches;
+    @Getter private final long nanos;
+
+    public String getLine() { return spec.getLine(); }
+
+    public long getMeanNanos() { return evaluations == 0 ? 0 : nanos / evaluations; }
+
+}
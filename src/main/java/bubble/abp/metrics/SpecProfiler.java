@@ -0,0 +1,122 @@
+package bubble.abp.metrics;
+
+import bubble.abp.BlockListSource;
+import bubble.abp.BlockSpec;
+import bubble.abp.DecisionRequest;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finds expensive rules: for each BlockSpec, how often it was evaluated, how often it matched, and how long its
+ * matches call took. Set one on a BlockList (or any BlockDecider) to profile its decisions.
+ *
+ * Only one evaluation in sampleRate is timed and counted, scaled up by sampleRate; the others pay for a
+ * decrement of a per-thread countdown. Counters are LongAdders, so threads recording the same spec do not
+ * contend. With the default sample rate, profiling is cheap enough to leave on in a canary.
+ *
+ * Specs are keyed by equality, so the same rule parsed by two lists is profiled once. Profiles of specs that
+ * are no longer in use are kept until reset.
+ */
+public class SpecProfiler {
+
+    public static final int DEFAULT_SAMPLE_RATE = 64;
+
+    @Getter private final int sampleRate;
+
+    private final Map<BlockSpec, Counters> counters = new ConcurrentHashMap<>();
+
+    public SpecProfiler() { this(DEFAULT_SAMPLE_RATE); }
+
+    /**
+     * @param sampleRate profile one evaluation in sampleRate; 1 profiles every evaluation
+     */
+    public SpecProfiler(int sampleRate) {
+        if (sampleRate < 1) throw new IllegalArgumentException("SpecProfiler: sampleRate must be positive: "+sampleRate);
+        this.sampleRate = sampleRate;
+    }
+
+    private static class Counters {
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder matches = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    /**
+     * Evaluate spec.matches and record it as a sample
+     */
+    public boolean matches(BlockSpec spec, String fqdn, String path, String contentType, String referer) {
+        return matches(spec, new DecisionRequest(fqdn, path, contentType, referer, false));
+    }
+
+    /**
+     * Evaluate spec.matches and record it as a sample
+     */
+    public boolean matches(BlockSpec spec, DecisionRequest request) {
+        final long start = System.nanoTime();
+        final boolean matched = spec.matches(request);
+        final long nanos = System.nanoTime() - start;
+        Counters c = counters.get(spec);
+        if (c == null) c = counters.computeIfAbsent(spec, s -> new Counters());
+        c.evaluations.add(sampleRate);
+        if (matched) c.matches.add(sampleRate);
+        c.nanos.add(nanos * sampleRate);
+        return matched;
+    }
+
+    public int size() { return counters.size(); }
+
+    public void reset() { counters.clear(); }
+
+    /**
+     * @return the n specs that took the most time in total, most expensive first
+     */
+    public List<SpecProfile> top(int n) { return top(n, Collections.emptyList()); }
+
+    /**
+     * @param sources used to find the url of each spec's list
+     * @return the n specs that took the most time in total, most expensive first
+     */
+    public List<SpecProfile> top(int n, Collection<BlockListSource> sources) {
+        final List<SpecProfile> profiles = new ArrayList<>(counters.size());
+        for (Map.Entry<BlockSpec, Counters> entry : counters.entrySet()) {
+            final Counters c = entry.getValue();
+            profiles.add(new SpecProfile(entry.getKey(), null, c.evaluations.sum(), c.matches.sum(), c.nanos.sum()));
+        }
+        profiles.sort(Comparator.comparingLong(SpecProfile::getNanos).reversed());
+        final List<SpecProfile> top = new ArrayList<>(Math.min(n, profiles.size()));
+        for (SpecProfile p : profiles.subList(0, Math.min(n, profiles.size()))) {
+            top.add(new SpecProfile(p.getSpec(), urlOf(p.getSpec(), sources), p.getEvaluations(), p.getMatches(), p.getNanos()));
+        }
+        return top;
+    }
+
+    private static String urlOf(BlockSpec spec, Collection<BlockListSource> sources) {
+        for (BlockListSource source : sources) {
+            if (source.getBlockList().getBlacklist().contains(spec)
+                    || source.getBlockList().getWhitelist().contains(spec)) return source.getUrl();
+        }
+        return null;
+    }
+
+    /**
+     * @return the top n specs as a table: total millis, mean nanos, evaluations, matches, url and line
+     */
+    public String report(int n, Collection<BlockListSource> sources) {
+        final StringBuilder b = new StringBuilder(String.format("%10s %10s %12s %12s  %s%n",
+                "total_ms", "mean_ns", "evaluations", "matches", "url / line"));
+        for (SpecProfile p : top(n, sources)) {
+            b.append(String.format("%10.1f %10d %12d %12d  %s%n            %s%n", p.getNanos() / 1e6,
+                    p.getMeanNanos(), p.getEvaluations(), p.getMatches(), p.getUrl(), p.getLine()));
+        }
+        return b.toString();
+    }
+
+}
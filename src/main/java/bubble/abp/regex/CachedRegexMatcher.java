@@ -0,0 +1,45 @@
+package bubble.abp.regex;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * A regex compiled on first use, through the shared RegexCache. Keeps only a weak reference to the compiled
+ * regex: while the cache holds it, each call costs one dereference; once the cache has evicted it and it has
+ * been collected, the next call compiles it again. So a rule that stops matching anything stops holding
+ * its compiled regex.
+ */
+public class CachedRegexMatcher implements RegexMatcher {
+
+    private final String regex;
+    private final RegexEngine engine;
+
+    private volatile WeakReference<RegexMatcher> compiled;
+
+    public CachedRegexMatcher(String regex, RegexEngine engine) {
+        this.regex = regex;
+        this.engine = engine;
+    }
+
+    /**
+     * @return the compiled regex, from the cache or compiled now
+     * @throws java.util.regex.PatternSyntaxException if regex is not valid
+     */
+    public RegexMatcher compile() {
+        final WeakReference<RegexMatcher> ref = compiled;
+        RegexMatcher matcher = ref == null ? null : ref.get();
+        if (matcher == null) {
+            matcher = RegexCache.getShared().matcher(regex, engine);
+            compiled = new WeakReference<>(matcher);
+        }
+        return matcher;
+    }
+
+    @Override public String pattern() { return regex; }
+
+    @Override public boolean find(CharSequence input) { return compile().find(input); }
+
+    @Override public boolean find(String head, String tail) { return compile().find(head, tail); }
+
+    @Override public boolean matches(CharSequence input) { return compile().matches(input); }
+
+}
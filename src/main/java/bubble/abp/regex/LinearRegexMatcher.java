@@ -0,0 +1,303 @@
+package bubble.abp.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Matches in time linear in the input, whatever the regex: no backtracking. The regex is compiled to an Nfa,
+ * and on first use in each mode (find or matches) to a DFA, built by subset construction over the character
+ * classes the regex distinguishes. Each input character then costs two array lookups. A regex whose DFA would
+ * have more than MAX_DFA_STATES states runs on the NFA instead, tracking every live state at once: still linear,
+ * but slower.
+ *
+ * Inputs this engine reads differently from Pattern, which works on code points and lets $ match before a
+ * final line terminator, go to Pattern under a step budget: those with surrogate characters, and those ending
+ * in a line terminator. Neither occurs in a normal URL.
+ */
+public class LinearRegexMatcher implements RegexMatcher {
+
+    public static final int MAX_DFA_STATES = 1024;
+
+    private final String regex;
+    private final Nfa nfa;
+    private final Alphabet alphabet;
+
+    // built on first use; a race builds the same DFA twice
+    private volatile Object findDfa;
+    private volatile Object matchesDfa;
+    private volatile PatternRegexMatcher fallback;
+
+    private LinearRegexMatcher(String regex, Nfa nfa) {
+        this.regex = regex;
+        this.nfa = nfa;
+        this.alphabet = new Alphabet(nfa.sets);
+    }
+
+    /**
+     * @return a linear-time matcher, or a PatternRegexMatcher with the default step budget if the regex uses
+     * syntax this engine does not support
+     * @throws java.util.regex.PatternSyntaxException if regex is not a valid java.util.regex pattern
+     */
+    public static RegexMatcher compile(String regex) {
+        try {
+            return new LinearRegexMatcher(regex, RegexParser.parse(regex));
+        } catch (UnsupportedRegexException e) {
+            return new PatternRegexMatcher(Pattern.compile(regex), PatternRegexMatcher.DEFAULT_STEP_BUDGET);
+        }
+    }
+
+    @Override public String pattern() { return regex; }
+
+    @Override public boolean find(CharSequence input) {
+        Object dfa = findDfa;
+        if (dfa == null) findDfa = dfa = automaton(true);
+        return run(dfa, input, true);
+    }
+
+    @Override public boolean matches(CharSequence input) {
+        Object dfa = matchesDfa;
+        if (dfa == null) matchesDfa = dfa = automaton(false);
+        return run(dfa, input, false);
+    }
+
+    // a Dfa, or this engine's Nfa when the DFA is too large
+    private Object automaton(boolean find) {
+        final Dfa dfa = Dfa.build(nfa, alphabet, find);
+        return dfa != null ? dfa : nfa;
+    }
+
+    // runs the DFA across head and tail, as if they were joined
+    @Override public boolean find(String head, String tail) {
+        if (head.isEmpty()) return find(tail);
+        Object dfa = findDfa;
+        if (dfa == null) findDfa = dfa = automaton(true);
+        final char last = tail.isEmpty() ? head.charAt(head.length() - 1) : tail.charAt(tail.length() - 1);
+        if (!(dfa instanceof Dfa) || isLineTerminator(last)) return run(dfa, head + tail, true);
+        final Dfa d = (Dfa) dfa;
+        int state = d.start;
+        if (d.acceptNow[state]) return true;
+        state = step(d, head, state, true);
+        if (state >= 0) state = step(d, tail, state, true);
+        return state == SURROGATE ? fallback(head + tail, true) : accepts(d, state);
+    }
+
+    private boolean run(Object automaton, CharSequence input, boolean find) {
+        final int len = input.length();
+        if (len > 0 && isLineTerminator(input.charAt(len - 1))) return fallback(input, find);
+        if (automaton instanceof Dfa) {
+            final Dfa dfa = (Dfa) automaton;
+            if (len == 0) return dfa.emptyAccept;
+            int state = dfa.start;
+            if (find && dfa.acceptNow[state]) return true;
+            state = step(dfa, input, state, find);
+            return state == SURROGATE ? fallback(input, find) : accepts(dfa, state);
+        }
+        for (int i = 0; i < len; i++) {
+            if (Character.isSurrogate(input.charAt(i))) return fallback(input, find);
+        }
+        return simulate(input, find);
+    }
+
+    // what step returns, besides a state
+    private static final int DEAD = -1;
+    private static final int ACCEPTED = -2;
+    private static final int SURROGATE = -3;
+
+    // the state the DFA reaches from state over input; DEAD if no match is possible, ACCEPTED if find found one
+    private int step(Dfa dfa, CharSequence input, int state, boolean find) {
+        final int classes = alphabet.size;
+        final int len = input.length();
+        for (int i = 0; i < len; i++) {
+            final char c = input.charAt(i);
+            if (Character.isSurrogate(c)) return SURROGATE;
+            state = dfa.next[state * classes + alphabet.classOf(c)];
+            if (state < 0) return DEAD;
+            if (find && dfa.acceptNow[state]) return ACCEPTED;
+        }
+        return state;
+    }
+
+    private static boolean accepts(Dfa dfa, int state) {
+        return state == ACCEPTED || (state >= 0 && dfa.acceptEnd[state]);
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private boolean fallback(CharSequence input, boolean find) {
+        PatternRegexMatcher p = fallback;
+        if (p == null) fallback = p = new PatternRegexMatcher(Pattern.compile(regex), PatternRegexMatcher.DEFAULT_STEP_BUDGET);
+        return find ? p.find(input) : p.matches(input);
+    }
+
+    // runs the NFA directly, one set of live states per position
+    private boolean simulate(CharSequence input, boolean find) {
+        final int len = input.length();
+        final boolean[] seen = new boolean[nfa.size()];
+        Nfa.IntList current = new Nfa.IntList();
+        Nfa.IntList next = new Nfa.IntList();
+        nfa.closure(0, true, len == 0, seen, current);
+        for (int i = 0; i < len; i++) {
+            if (find && hasMatch(current)) return true;
+            Arrays.fill(seen, false);
+            next.clear();
+            final char c = input.charAt(i);
+            final boolean atEnd = i == len - 1;
+            for (int k = 0; k < current.size; k++) {
+                final int pc = current.values[k];
+                if (nfa.op[pc] == Nfa.SET && Nfa.contains(nfa.sets[nfa.arg1[pc]], c)) nfa.closure(pc + 1, false, atEnd, seen, next);
+            }
+            if (find) nfa.closure(0, false, atEnd, seen, next);
+            if (next.size == 0) return false;
+            final Nfa.IntList t = current;
+            current = next;
+            next = t;
+        }
+        return hasMatch(current);
+    }
+
+    private boolean hasMatch(Nfa.IntList states) {
+        for (int k = 0; k < states.size; k++) if (nfa.op[states.values[k]] == Nfa.MATCH) return true;
+        return false;
+    }
+
+    // partitions chars into classes that every set in the regex treats alike
+    static final class Alphabet {
+        // class boundaries: class i is [bounds[i], bounds[i+1])
+        private final int[] bounds;
+        private final byte[] ascii = new byte[128];
+        final int size;
+
+        Alphabet(int[][] sets) {
+            final TreeSet<Integer> b = new TreeSet<>();
+            b.add(0);
+            for (int[] set : sets) {
+                for (int i = 0; i < set.length; i += 2) {
+                    b.add(set[i]);
+                    if (set[i + 1] < Character.MAX_VALUE) b.add(set[i + 1] + 1);
+                }
+            }
+            bounds = new int[b.size()];
+            int n = 0;
+            for (int v : b) bounds[n++] = v;
+            size = bounds.length;
+            for (int c = 0; c < 128; c++) ascii[c] = (byte) search(c);
+        }
+
+        int classOf(char c) { return c < 128 && size <= 127 ? ascii[c] : search(c); }
+
+        private int search(int c) {
+            int lo = 0;
+            int hi = bounds.length - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (bounds[mid] <= c) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        char representative(int cls) { return (char) bounds[cls]; }
+    }
+
+    // a DFA over an Alphabet; states are sets of NFA instructions
+    static final class Dfa {
+        final int start;
+        final int[] next;
+        final boolean[] acceptNow;
+        final boolean[] acceptEnd;
+        final boolean emptyAccept;
+
+        private Dfa(int start, int[] next, boolean[] acceptNow, boolean[] acceptEnd, boolean emptyAccept) {
+            this.start = start;
+            this.next = next;
+            this.acceptNow = acceptNow;
+            this.acceptEnd = acceptEnd;
+            this.emptyAccept = emptyAccept;
+        }
+
+        /**
+         * @param find if true, a match may start anywhere, and a state holding MATCH accepts at once
+         * @return the DFA, or null if it would have more than MAX_DFA_STATES states
+         */
+        static Dfa build(Nfa nfa, Alphabet alphabet, boolean find) {
+            final boolean[] seen = new boolean[nfa.size()];
+            final Nfa.IntList scratch = new Nfa.IntList();
+            final Map<List<Integer>, Integer> ids = new HashMap<>();
+            final List<int[]> states = new ArrayList<>();
+
+            nfa.closure(0, true, false, seen, scratch);
+            states.add(scratch.toSortedArray());
+            ids.put(key(states.get(0)), 0);
+
+            final int classes = alphabet.size;
+            int[] next = new int[16 * classes];
+            for (int s = 0; s < states.size(); s++) {
+                if ((s + 1) * classes > next.length) next = Arrays.copyOf(next, next.length * 2);
+                final int[] state = states.get(s);
+                for (int cls = 0; cls < classes; cls++) {
+                    final char c = alphabet.representative(cls);
+                    Arrays.fill(seen, false);
+                    scratch.clear();
+                    for (int pc : state) {
+                        if (nfa.op[pc] == Nfa.SET && Nfa.contains(nfa.sets[nfa.arg1[pc]], c)) nfa.closure(pc + 1, false, false, seen, scratch);
+                    }
+                    if (find) nfa.closure(0, false, false, seen, scratch);
+                    if (scratch.size == 0) {
+                        next[s * classes + cls] = -1;
+                        continue;
+                    }
+                    final int[] target = scratch.toSortedArray();
+                    final List<Integer> key = key(target);
+                    Integer id = ids.get(key);
+                    if (id == null) {
+                        if (states.size() == MAX_DFA_STATES) return null;
+                        id = states.size();
+                        states.add(target);
+                        ids.put(key, id);
+                    }
+                    next[s * classes + cls] = id;
+                }
+            }
+
+            final boolean[] acceptNow = new boolean[states.size()];
+            final boolean[] acceptEnd = new boolean[states.size()];
+            for (int s = 0; s < states.size(); s++) {
+                acceptNow[s] = hasMatch(nfa, states.get(s));
+                acceptEnd[s] = acceptNow[s] || acceptsAtEnd(nfa, states.get(s), seen, scratch);
+            }
+            Arrays.fill(seen, false);
+            scratch.clear();
+            nfa.closure(0, true, true, seen, scratch);
+            final boolean emptyAccept = hasMatch(nfa, scratch.toSortedArray());
+            return new Dfa(0, Arrays.copyOf(next, states.size() * classes), acceptNow, acceptEnd, emptyAccept);
+        }
+
+        // past the first character, so BEGIN no longer passes
+        private static boolean acceptsAtEnd(Nfa nfa, int[] state, boolean[] seen, Nfa.IntList scratch) {
+            Arrays.fill(seen, false);
+            scratch.clear();
+            for (int pc : state) {
+                if (nfa.op[pc] == Nfa.END) nfa.closure(pc + 1, false, true, seen, scratch);
+            }
+            return hasMatch(nfa, scratch.toSortedArray());
+        }
+
+        private static boolean hasMatch(Nfa nfa, int[] state) {
+            for (int pc : state) if (nfa.op[pc] == Nfa.MATCH) return true;
+            return false;
+        }
+
+        private static List<Integer> key(int[] state) {
+            final List<Integer> key = new ArrayList<>(state.length);
+            for (int pc : state) key.add(pc);
+            return key;
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package bubble.abp.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * Finds the simple regexes BlockTarget builds from filter list lines without running them: a quoted literal the
+ * input must start with (^literal.*), equal (^literal$) or end with (.*?literal$), or wildcard tokens that must
+ * cover the input in order (^token.*?token...$), the first at its start and the last at its end. Works on a head
+ * and a tail without joining them, so a spec can search fqdn+path as it stands.
+ *
+ * Each shape reads its input exactly as the regex would. What a literal comparison cannot settle goes to the
+ * regex: inputs ending in a line terminator, before which $ also matches, and wildcards with a '.' on inputs
+ * with surrogates, where . matches a whole code point. matches() always runs the regex.
+ */
+public class LiteralRegexMatcher implements RegexMatcher {
+
+    public enum Shape { prefix, exact, suffix, wildcard }
+
+    private static final String WILDCARD = ".*?";
+
+    // a wildcard token of plain characters and '.', which matches any one character but a line terminator
+    private static final Pattern WILDCARD_TOKEN = Pattern.compile("[^\\\\^$|?*+()\\[\\]{}]*");
+
+    private final Shape shape;
+    private final String[] tokens;
+    private final boolean[] dots;
+    private final boolean anyDots;
+    private final RegexMatcher regex;
+
+    private LiteralRegexMatcher(Shape shape, String[] tokens, RegexMatcher regex) {
+        this.shape = shape;
+        this.tokens = tokens;
+        this.dots = new boolean[tokens.length];
+        boolean anyDots = false;
+        for (int i = 0; i < tokens.length; i++) {
+            dots[i] = shape == Shape.wildcard && tokens[i].indexOf('.') != -1;
+            anyDots |= dots[i];
+        }
+        this.anyDots = anyDots;
+        this.regex = regex;
+    }
+
+    /**
+     * @param regex the compiled ^literal.* regex
+     */
+    public static LiteralRegexMatcher prefix(String literal, RegexMatcher regex) {
+        return new LiteralRegexMatcher(Shape.prefix, new String[] {literal}, regex);
+    }
+
+    /**
+     * @param regex the compiled ^literal$ regex
+     */
+    public static LiteralRegexMatcher exact(String literal, RegexMatcher regex) {
+        return new LiteralRegexMatcher(Shape.exact, new String[] {literal}, regex);
+    }
+
+    /**
+     * @param regex the compiled .*?literal$ regex
+     */
+    public static LiteralRegexMatcher suffix(String literal, RegexMatcher regex) {
+        return new LiteralRegexMatcher(Shape.suffix, new String[] {literal}, regex);
+    }
+
+    /**
+     * @param regex the compiled regex
+     * @return a wildcard matcher if the regex is ^, tokens joined by .*? and $, with at least one .*? and only
+     * plain characters and '.' in the tokens; otherwise null
+     */
+    public static LiteralRegexMatcher wildcard(RegexMatcher regex) {
+        final String pattern = regex.pattern();
+        if (pattern.length() < 2 || !pattern.startsWith("^") || !pattern.endsWith("$")) return null;
+        // tokens hold no '*', so every ".*?" is a separator
+        final String[] tokens = pattern.substring(1, pattern.length() - 1).split(Pattern.quote(WILDCARD), -1);
+        if (tokens.length < 2) return null;
+        for (String token : tokens) {
+            if (!WILDCARD_TOKEN.matcher(token).matches()) return null;
+        }
+        return new LiteralRegexMatcher(Shape.wildcard, tokens, regex);
+    }
+
+    public Shape getShape() { return shape; }
+
+    @Override public String pattern() { return regex.pattern(); }
+
+    @Override public boolean find(CharSequence input) {
+        return input instanceof String ? find("", (String) input) : regex.find(input);
+    }
+
+    @Override public boolean matches(CharSequence input) { return regex.matches(input); }
+
+    @Override public boolean find(String head, String tail) {
+        final int len = head.length() + tail.length();
+        // .* may match nothing, so only the start matters
+        if (shape == Shape.prefix) return regionMatches(head, tail, 0, tokens[0], false);
+
+        if (len > 0 && LinearRegexMatcher.isLineTerminator(charAt(head, tail, len - 1))) return regex.find(head, tail);
+        switch (shape) {
+            case exact:
+                return len == tokens[0].length() && regionMatches(head, tail, 0, tokens[0], false);
+            case suffix:
+                return len >= tokens[0].length() && regionMatches(head, tail, len - tokens[0].length(), tokens[0], false);
+            default:
+                return findWildcard(head, tail, len);
+        }
+    }
+
+    private boolean findWildcard(String head, String tail, int len) {
+        final int last = tokens.length - 1;
+        int from = tokens[0].length();
+        final int limit = len - tokens[last].length();
+        // a '.' takes at least one character, and from the start each lines up with one in Pattern too
+        if (limit < from) return false;
+        try {
+            if (!regionMatches(head, tail, 0, tokens[0], dots[0])) return false;
+            if (placeTokens(head, tail, from, limit)) {
+                // the match spans the input, and nothing in the regex matches a line terminator
+                for (int i = 0; i < len; i++) {
+                    if (LinearRegexMatcher.isLineTerminator(charAt(head, tail, i))) return false;
+                }
+                return true;
+            }
+        } catch (Undecided e) {
+            return regex.find(head, tail);
+        }
+        // where Pattern's . takes a surrogate pair, the later tokens line up differently
+        return anyDots && hasSurrogate(head, tail) && regex.find(head, tail);
+    }
+
+    // the last token at limit, and the others in order between from and limit
+    private boolean placeTokens(String head, String tail, int from, int limit) {
+        final int last = tokens.length - 1;
+        if (!regionMatches(head, tail, limit, tokens[last], dots[last])) return false;
+        // the leftmost place for each token leaves the most room for the rest
+        for (int i = 1; i < last; i++) {
+            if (tokens[i].isEmpty()) continue;
+            final int at = indexOf(head, tail, tokens[i], dots[i], from, limit);
+            if (at == -1) return false;
+            from = at + tokens[i].length();
+        }
+        return true;
+    }
+
+    private static boolean hasSurrogate(String head, String tail) {
+        for (int i = 0; i < head.length(); i++) if (Character.isSurrogate(head.charAt(i))) return true;
+        for (int i = 0; i < tail.length(); i++) if (Character.isSurrogate(tail.charAt(i))) return true;
+        return false;
+    }
+
+    // thrown when a '.' meets a surrogate, so the regex has to decide
+    private static final class Undecided extends RuntimeException {
+        Undecided() { super(null, null, false, false); }
+    }
+    private static final Undecided UNDECIDED = new Undecided();
+
+    private static char charAt(String head, String tail, int i) {
+        return i < head.length() ? head.charAt(i) : tail.charAt(i - head.length());
+    }
+
+    // true if token occurs in head+tail at pos; with dots, a '.' in token matches any character
+    private static boolean regionMatches(String head, String tail, int pos, String token, boolean dots) {
+        final int hlen = head.length();
+        final int len = token.length();
+        if (pos < 0 || pos + len > hlen + tail.length()) return false;
+        if (!dots) {
+            if (pos + len <= hlen) return head.startsWith(token, pos);
+            if (pos >= hlen) return tail.startsWith(token, pos - hlen);
+            final int split = hlen - pos;
+            return head.regionMatches(pos, token, 0, split) && tail.regionMatches(0, token, split, len - split);
+        }
+        for (int i = 0; i < len; i++) {
+            final char t = token.charAt(i);
+            final char c = charAt(head, tail, pos + i);
+            if (t == '.') {
+                // Pattern's . takes both halves of a surrogate pair
+                if (Character.isSurrogate(c)) throw UNDECIDED;
+            } else if (t != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the first position at or after from where token occurs in head+tail and ends by limit, or -1
+    private static int indexOf(String head, String tail, String token, boolean dots, int from, int limit) {
+        final int last = limit - token.length();
+        if (!dots) {
+            final int hlen = head.length();
+            if (from < hlen) {
+                final int inHead = head.indexOf(token, from);
+                if (inHead != -1) return inHead <= last ? inHead : -1;
+                for (int pos = Math.max(from, hlen - token.length() + 1); pos < hlen && pos <= last; pos++) {
+                    if (regionMatches(head, tail, pos, token, false)) return pos;
+                }
+            }
+            final int inTail = tail.indexOf(token, Math.max(0, from - hlen));
+            return inTail != -1 && inTail + hlen <= last ? inTail + hlen : -1;
+        }
+        for (int pos = from; pos <= last; pos++) {
+            if (regionMatches(head, tail, pos, token, true)) return pos;
+        }
+        return -1;
+    }
+
+}
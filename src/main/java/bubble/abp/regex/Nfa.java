@@ -0,0 +1,140 @@
+package bubble.abp.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Thompson NFA, compiled by RegexParser: a program of instructions, each at an index (pc).
+ *
+ * SET consumes one character in sets[arg1] and continues at pc + 1. SPLIT continues at both arg1 and arg2,
+ * JMP at arg1. BEGIN continues only at the start of the input, END only at its end. MATCH accepts.
+ */
+final class Nfa {
+
+    static final int SET = 0;
+    static final int SPLIT = 1;
+    static final int JMP = 2;
+    static final int BEGIN = 3;
+    static final int END = 4;
+    static final int MATCH = 5;
+
+    // past this, a regex is left to Pattern rather than expanded
+    static final int MAX_INSTRUCTIONS = 4096;
+
+    final int[] op;
+    final int[] arg1;
+    final int[] arg2;
+
+    // each set is sorted, non-overlapping inclusive ranges: lo0, hi0, lo1, hi1, ...
+    final int[][] sets;
+
+    Nfa(int[] op, int[] arg1, int[] arg2, int[][] sets) {
+        this.op = op;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.sets = sets;
+    }
+
+    int size() { return op.length; }
+
+    static boolean contains(int[] ranges, char c) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (c < ranges[i]) return false;
+            if (c <= ranges[i + 1]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds to into the SET, END and MATCH instructions reachable from pc without consuming a character.
+     * BEGIN is passed only atStart and END only atEnd; an END not passed is kept, to be passed at the end
+     * of the input. seen is cleared by the caller.
+     */
+    void closure(int pc, boolean atStart, boolean atEnd, boolean[] seen, IntList into) {
+        while (true) {
+            if (seen[pc]) return;
+            seen[pc] = true;
+            switch (op[pc]) {
+                case JMP:
+                    pc = arg1[pc];
+                    continue;
+                case SPLIT:
+                    closure(arg1[pc], atStart, atEnd, seen, into);
+                    pc = arg2[pc];
+                    continue;
+                case BEGIN:
+                    if (!atStart) return;
+                    pc++;
+                    continue;
+                case END:
+                    if (!atEnd) {
+                        into.add(pc);
+                        return;
+                    }
+                    pc++;
+                    continue;
+                default:
+                    into.add(pc);
+                    return;
+            }
+        }
+    }
+
+    // a growable int array, reused between steps
+    static final class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        void clear() { size = 0; }
+
+        int[] toSortedArray() {
+            final int[] a = Arrays.copyOf(values, size);
+            Arrays.sort(a);
+            return a;
+        }
+    }
+
+    // assembles a program
+    static final class Builder {
+        private final List<int[]> sets = new ArrayList<>();
+        private int[] op = new int[64];
+        private int[] arg1 = new int[64];
+        private int[] arg2 = new int[64];
+        private int size;
+
+        int pc() { return size; }
+
+        int emit(int o, int a1, int a2) {
+            if (size == MAX_INSTRUCTIONS) throw new UnsupportedRegexException("too many instructions");
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                arg1 = Arrays.copyOf(arg1, size * 2);
+                arg2 = Arrays.copyOf(arg2, size * 2);
+            }
+            op[size] = o;
+            arg1[size] = a1;
+            arg2[size] = a2;
+            return size++;
+        }
+
+        int set(int[] ranges) {
+            sets.add(ranges);
+            return sets.size() - 1;
+        }
+
+        void patch1(int pc, int target) { arg1[pc] = target; }
+        void patch2(int pc, int target) { arg2[pc] = target; }
+
+        Nfa build() {
+            return new Nfa(Arrays.copyOf(op, size), Arrays.copyOf(arg1, size), Arrays.copyOf(arg2, size),
+                    sets.toArray(new int[0][]));
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package bubble.abp.regex;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.regex.Pattern;
+
+/**
+ * A RegexMatcher backed by java.util.regex.Pattern. With a step budget, a match that reads more than
+ * stepBudget + STEPS_PER_CHAR * input length characters is abandoned and treated as no match, so a rule
+ * that backtracks catastrophically costs a bounded amount of time per request instead of a thread.
+ */
+@Slf4j
+public class PatternRegexMatcher implements RegexMatcher {
+
+    public static final int DEFAULT_STEP_BUDGET = 10_000;
+    public static final int STEPS_PER_CHAR = 200;
+
+    private final Pattern pattern;
+    private final int stepBudget;
+    private volatile boolean exceeded;
+
+    /**
+     * @param stepBudget the base budget of each match, or 0 for no limit
+     */
+    public PatternRegexMatcher(Pattern pattern, int stepBudget) {
+        this.pattern = pattern;
+        this.stepBudget = stepBudget;
+    }
+
+    @Override public String pattern() { return pattern.pattern(); }
+
+    @Override public boolean find(CharSequence input) {
+        if (stepBudget <= 0) return pattern.matcher(input).find();
+        try {
+            return pattern.matcher(budgeted(input)).find();
+        } catch (BudgetExceeded e) {
+            return budgetExceeded(input);
+        }
+    }
+
+    @Override public boolean matches(CharSequence input) {
+        if (stepBudget <= 0) return pattern.matcher(input).matches();
+        try {
+            return pattern.matcher(budgeted(input)).matches();
+        } catch (BudgetExceeded e) {
+            return budgetExceeded(input);
+        }
+    }
+
+    private CharSequence budgeted(CharSequence input) {
+        return new BudgetedCharSequence(input, stepBudget + (long) STEPS_PER_CHAR * input.length());
+    }
+
+    private boolean budgetExceeded(CharSequence input) {
+        if (!exceeded) {
+            exceeded = true;
+            log.warn("budgetExceeded: regex took too long, treating as no match (logged once per regex): "+pattern.pattern()+" on input of length "+input.length());
+        }
+        return false;
+    }
+
+    private static final class BudgetExceeded extends RuntimeException {
+        BudgetExceeded() { super(null, null, false, false); }
+    }
+    private static final BudgetExceeded BUDGET_EXCEEDED = new BudgetExceeded();
+
+    // counts every character Pattern reads, and gives up once the budget is spent
+    private static final class BudgetedCharSequence implements CharSequence {
+        private final CharSequence input;
+        private long steps;
+
+        BudgetedCharSequence(CharSequence input, long steps) {
+            this.input = input;
+            this.steps = steps;
+        }
+
+        @Override public int length() { return input.length(); }
+
+        @Override public char charAt(int index) {
+            if (--steps < 0) throw BUDGET_EXCEEDED;
+            return input.charAt(index);
+        }
+
+        @Override public CharSequence subSequence(int start, int end) { return input.subSequence(start, end); }
+
+        @Override public String toString() { return input.toString(); }
+    }
+
+}
@@ -0,0 +1,140 @@
+package bubble.abp.regex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded cache of compiled regexes, shared by BlockTarget, BubbleBlockConditionOperation and the selector
+ * classes, so a regex that many rules use is compiled once, and regexes that are no longer used are evicted
+ * rather than held for the life of the list. Keys are spread across independently locked LRU stripes, as in
+ * StripedDecisionCache. A regex that does not compile is not cached: each lookup throws again.
+ */
+public class RegexCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final int DEFAULT_STRIPES = 16;
+
+    private static volatile RegexCache shared = new RegexCache(DEFAULT_MAX_SIZE, DEFAULT_STRIPES);
+    public static RegexCache getShared() { return shared; }
+    public static void setShared(RegexCache cache) { shared = cache; }
+
+    private static final Function<String, Pattern> PATTERN = Pattern::compile;
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public RegexCache(int maxSize, int stripeCount) {
+        int count = 1;
+        while (count < stripeCount) count *= 2;
+        final int stripeSize = Math.max(1, maxSize / count);
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) stripes[i] = new Stripe(stripeSize);
+        mask = count - 1;
+    }
+
+    /**
+     * @return the regex compiled with Pattern.compile
+     * @throws java.util.regex.PatternSyntaxException if regex is not valid
+     */
+    public Pattern pattern(String regex) { return get(regex, PATTERN, PATTERN); }
+
+    /**
+     * @return the regex compiled by engine
+     * @throws java.util.regex.PatternSyntaxException if regex is not valid
+     */
+    public RegexMatcher matcher(String regex, RegexEngine engine) { return get(regex, engine, engine::compile); }
+
+    /**
+     * @param compile compiles regex, and is part of the key: pass the same instance (a constant) every time
+     * @return what compile made of regex, compiling it only if it is not cached
+     */
+    public <T> T get(String regex, Function<String, T> compile) { return get(regex, compile, compile); }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String regex, Object kind, Function<String, T> compile) {
+        final Key key = new Key(regex, kind);
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            final Object found = stripe.get(key);
+            if (found != null) {
+                hits.increment();
+                return (T) found;
+            }
+        }
+        misses.increment();
+        // compile outside the lock; a race compiles the same regex twice and keeps the first
+        final T compiled = compile.apply(regex);
+        synchronized (stripe) {
+            final Object found = stripe.putIfAbsent(key, compiled);
+            return found != null ? (T) found : compiled;
+        }
+    }
+
+    private Stripe stripe(Key key) {
+        final int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) { size += stripe.size(); }
+        }
+        return size;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) { stripe.clear(); }
+        }
+    }
+
+    private static final class Key {
+        private final String regex;
+        private final Object kind;
+        private final int hash;
+
+        Key(String regex, Object kind) {
+            this.regex = regex;
+            this.kind = kind;
+            this.hash = 31 * regex.hashCode() + System.identityHashCode(kind);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return kind == other.kind && regex.equals(other.regex);
+        }
+
+        @Override public int hashCode() { return hash; }
+    }
+
+    private class Stripe extends LinkedHashMap<Key, Object> {
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package bubble.abp.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * How BlockTarget compiles the regexes that filter lists supply, see BlockTarget.setRegexEngine.
+ * The default is linear; BlockTarget.setRegexEngine(RegexEngine.java) restores the old Pattern-based matching.
+ */
+public enum RegexEngine {
+
+    // java.util.regex.Pattern, without limits: a pathological rule can backtrack for a very long time
+    java {
+        @Override public RegexMatcher compile(String regex) { return new PatternRegexMatcher(Pattern.compile(regex), 0); }
+    },
+
+    // a linear-time automaton for the regex syntax filter lists use; anything else runs on Pattern with a
+    // step budget per match, see PatternRegexMatcher
+    linear {
+        @Override public RegexMatcher compile(String regex) { return LinearRegexMatcher.compile(regex); }
+    };
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if regex is not a valid java.util.regex pattern
+     */
+    public abstract RegexMatcher compile(String regex);
+
+}
@@ -0,0 +1,28 @@
+package bubble.abp.regex;
+
+/**
+ * A compiled regex, as used by BlockTarget. Implementations are immutable and safe to share between threads.
+ */
+public interface RegexMatcher {
+
+    /**
+     * @return the regex this was compiled from
+     */
+    String pattern();
+
+    /**
+     * @return true if some substring of input matches, as Pattern.matcher(input).find() would
+     */
+    boolean find(CharSequence input);
+
+    /**
+     * @return true if some substring of head+tail matches; implementations may do so without joining the two
+     */
+    default boolean find(String head, String tail) { return find(head.isEmpty() ? tail : head + tail); }
+
+    /**
+     * @return true if all of input matches, as Pattern.matcher(input).matches() would
+     */
+    boolean matches(CharSequence input);
+
+}
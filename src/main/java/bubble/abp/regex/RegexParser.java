@@ -0,0 +1,379 @@
+package bubble.abp.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles the subset of java.util.regex syntax that filter lists use into an Nfa: literals and escapes,
+ * \Q...\E quoting, ., character classes with ranges and negation, \d \w \s and their negations, groups,
+ * non-capturing groups, alternation, greedy and lazy * + ? {n} {n,} {n,m}, and ^ and $.
+ *
+ * Anything else, such as backreferences, lookaround, flags, \b or possessive quantifiers, throws
+ * UnsupportedRegexException, and so does anything Pattern might read differently: this parser accepts only
+ * regexes it is sure Pattern would compile to the same language. Laziness does not change whether a regex
+ * matches, so lazy quantifiers compile like greedy ones.
+ */
+final class RegexParser {
+
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+    private static final int MAX_REPEAT = 1000;
+
+    private static final int EMPTY = 0;
+    private static final int CHARS = 1;
+    private static final int CONCAT = 2;
+    private static final int ALT = 3;
+    private static final int REPEAT = 4;
+    private static final int BEGIN = 5;
+    private static final int END = 6;
+
+    private static final class Node {
+        final int kind;
+        final int[] ranges;
+        final List<Node> kids;
+        final int min;
+        final int max;
+
+        Node(int kind, int[] ranges, List<Node> kids, int min, int max) {
+            this.kind = kind;
+            this.ranges = ranges;
+            this.kids = kids;
+            this.min = min;
+            this.max = max;
+        }
+
+        static Node of(int kind) { return new Node(kind, null, null, 0, 0); }
+        static Node chars(int[] ranges) { return new Node(CHARS, ranges, null, 0, 0); }
+        static Node list(int kind, List<Node> kids) { return new Node(kind, null, kids, 0, 0); }
+        static Node repeat(Node kid, int min, int max) { return new Node(REPEAT, null, List.of(kid), min, max); }
+    }
+
+    private static final int[] DOT = complement(ranges('\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029));
+    private static final int[] DIGIT = ranges('0', '9');
+    private static final int[] WORD = ranges('0', '9', 'A', 'Z', '_', '_', 'a', 'z');
+    private static final int[] SPACE = ranges('\t', '\r', ' ', ' ');
+
+    private final String s;
+    private int pos;
+
+    private RegexParser(String s) { this.s = s; }
+
+    static Nfa parse(String regex) {
+        final RegexParser parser = new RegexParser(regex);
+        final Node root = parser.parseAlt();
+        if (parser.pos != regex.length()) throw new UnsupportedRegexException("unexpected "+regex.charAt(parser.pos));
+        final Nfa.Builder b = new Nfa.Builder();
+        emit(root, b);
+        b.emit(Nfa.MATCH, 0, 0);
+        return b.build();
+    }
+
+    private boolean more() { return pos < s.length(); }
+    private char peek() { return s.charAt(pos); }
+    private boolean peekIs(char c) { return more() && peek() == c; }
+
+    private Node parseAlt() {
+        final List<Node> alternatives = new ArrayList<>();
+        alternatives.add(parseConcat());
+        while (peekIs('|')) {
+            pos++;
+            alternatives.add(parseConcat());
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : Node.list(ALT, alternatives);
+    }
+
+    private Node parseConcat() {
+        final List<Node> items = new ArrayList<>();
+        while (more() && peek() != '|' && peek() != ')') {
+            final boolean quoted = s.startsWith("\\Q", pos);
+            Node atom = parseAtom();
+            if (more() && isQuantifier(peek())) {
+                // Pattern cuts short a repetition whose pass matched nothing, which anchors make observable
+                if (hasAnchor(atom) || quoted) throw new UnsupportedRegexException("quantified anchor or quote");
+                atom = parseQuantifier(atom);
+                if (more() && isQuantifier(peek())) throw new UnsupportedRegexException("repeated quantifier");
+            }
+            items.add(atom);
+        }
+        if (items.isEmpty()) return Node.of(EMPTY);
+        return items.size() == 1 ? items.get(0) : Node.list(CONCAT, items);
+    }
+
+    private static boolean hasAnchor(Node node) {
+        if (node.kind == BEGIN || node.kind == END) return true;
+        if (node.kids != null) for (Node kid : node.kids) if (hasAnchor(kid)) return true;
+        return false;
+    }
+
+    private static boolean isQuantifier(char c) { return c == '*' || c == '+' || c == '?' || c == '{'; }
+
+    private Node parseQuantifier(Node atom) {
+        final char c = s.charAt(pos++);
+        final Node repeated;
+        switch (c) {
+            case '*': repeated = Node.repeat(atom, 0, -1); break;
+            case '+': repeated = Node.repeat(atom, 1, -1); break;
+            case '?': repeated = Node.repeat(atom, 0, 1); break;
+            default: {
+                final int min = parseCount();
+                int max = min;
+                if (peekIs(',')) {
+                    pos++;
+                    max = peekIs('}') ? -1 : parseCount();
+                }
+                if (!peekIs('}')) throw new UnsupportedRegexException("bad repetition");
+                pos++;
+                if (max != -1 && max < min) throw new UnsupportedRegexException("bad repetition range");
+                repeated = Node.repeat(atom, min, max);
+            }
+        }
+        if (peekIs('?')) {
+            pos++;
+        } else if (peekIs('+')) {
+            throw new UnsupportedRegexException("possessive quantifier");
+        }
+        return repeated;
+    }
+
+    private int parseCount() {
+        final int start = pos;
+        while (more() && peek() >= '0' && peek() <= '9' && pos - start < 4) pos++;
+        if (pos == start || (more() && peek() >= '0' && peek() <= '9')) throw new UnsupportedRegexException("bad count");
+        final int n = Integer.parseInt(s.substring(start, pos));
+        if (n > MAX_REPEAT) throw new UnsupportedRegexException("count too large");
+        return n;
+    }
+
+    private Node parseAtom() {
+        final char c = s.charAt(pos++);
+        switch (c) {
+            case '(': {
+                if (peekIs('?')) {
+                    if (!s.startsWith("?:", pos)) throw new UnsupportedRegexException("special group");
+                    pos += 2;
+                }
+                final Node inner = parseAlt();
+                if (!peekIs(')')) throw new UnsupportedRegexException("unclosed group");
+                pos++;
+                return inner;
+            }
+            case '[': return Node.chars(parseClass());
+            case '.': return Node.chars(DOT);
+            case '^': return Node.of(BEGIN);
+            case '$': return Node.of(END);
+            case '\\': return parseEscape();
+            case '*': case '+': case '?': case '{':
+                throw new UnsupportedRegexException("dangling "+c);
+            default:
+                return Node.chars(literal(c));
+        }
+    }
+
+    private Node parseEscape() {
+        if (!more()) throw new UnsupportedRegexException("trailing backslash");
+        final char c = s.charAt(pos++);
+        if (c == 'Q') {
+            final int end = s.indexOf("\\E", pos);
+            final String quoted = s.substring(pos, end == -1 ? s.length() : end);
+            pos = end == -1 ? s.length() : end + 2;
+            final List<Node> chars = new ArrayList<>();
+            for (int i = 0; i < quoted.length(); i++) chars.add(Node.chars(literal(quoted.charAt(i))));
+            if (chars.isEmpty()) return Node.of(EMPTY);
+            return chars.size() == 1 ? chars.get(0) : Node.list(CONCAT, chars);
+        }
+        final int[] set = escapeSet(c);
+        if (set != null) return Node.chars(set);
+        return Node.chars(literal(escapeChar(c)));
+    }
+
+    // \d \D \w \W \s \S, or null
+    private static int[] escapeSet(char c) {
+        switch (c) {
+            case 'd': return DIGIT;
+            case 'D': return complement(DIGIT);
+            case 'w': return WORD;
+            case 'W': return complement(WORD);
+            case 's': return SPACE;
+            case 'S': return complement(SPACE);
+            default: return null;
+        }
+    }
+
+    // the character an escape stands for: a control escape, \xhh, \\uhhhh, or a quoted ascii symbol
+    private char escapeChar(char c) {
+        switch (c) {
+            case 't': return '\t';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 'f': return '\f';
+            case 'a': return '\u0007';
+            case 'e': return '\u001b';
+            case 'x': return hex(2);
+            case 'u': return hex(4);
+            default:
+                if (c < 128 && !Character.isLetterOrDigit(c)) return c;
+                throw new UnsupportedRegexException("escape \\"+c);
+        }
+    }
+
+    private char hex(int digits) {
+        if (pos + digits > s.length()) throw new UnsupportedRegexException("bad hex escape");
+        int v = 0;
+        for (int i = 0; i < digits; i++) {
+            final int d = Character.digit(s.charAt(pos++), 16);
+            if (d == -1) throw new UnsupportedRegexException("bad hex escape");
+            v = v * 16 + d;
+        }
+        return (char) v;
+    }
+
+    private static int[] literal(char c) {
+        if (Character.isSurrogate(c)) throw new UnsupportedRegexException("surrogate");
+        return new int[] {c, c};
+    }
+
+    // called after '['
+    private int[] parseClass() {
+        boolean negated = false;
+        if (peekIs('^')) {
+            negated = true;
+            pos++;
+        }
+        if (peekIs(']')) throw new UnsupportedRegexException("class starting with ]");
+        final List<int[]> parts = new ArrayList<>();
+        while (true) {
+            if (!more()) throw new UnsupportedRegexException("unclosed class");
+            final char c = s.charAt(pos++);
+            if (c == ']') break;
+            if (c == '[' || (c == '&' && peekIs('&'))) throw new UnsupportedRegexException("class operator");
+            final int lo;
+            if (c == '\\') {
+                if (!more()) throw new UnsupportedRegexException("trailing backslash");
+                final char e = s.charAt(pos++);
+                if (e == 'Q') throw new UnsupportedRegexException("quote in class");
+                final int[] set = escapeSet(e);
+                if (set != null) {
+                    parts.add(set);
+                    continue;
+                }
+                lo = escapeChar(e);
+            } else {
+                lo = c;
+            }
+            if (Character.isSurrogate((char) lo)) throw new UnsupportedRegexException("surrogate");
+            if (peekIs('-') && pos + 1 < s.length() && s.charAt(pos + 1) != ']') {
+                pos++;
+                final char h = s.charAt(pos++);
+                final int hi;
+                if (h == '\\') {
+                    if (!more()) throw new UnsupportedRegexException("trailing backslash");
+                    final char e = s.charAt(pos++);
+                    if (escapeSet(e) != null || e == 'Q') throw new UnsupportedRegexException("class in range");
+                    hi = escapeChar(e);
+                } else if (h == '[' || h == '&') {
+                    throw new UnsupportedRegexException("class operator");
+                } else {
+                    hi = h;
+                }
+                if (hi < lo || Character.isSurrogate((char) hi)) throw new UnsupportedRegexException("bad range");
+                parts.add(new int[] {lo, hi});
+            } else {
+                parts.add(new int[] {lo, lo});
+            }
+        }
+        final int[] set = union(parts);
+        return negated ? complement(set) : set;
+    }
+
+    private static int[] ranges(int... bounds) { return union(List.of(bounds)); }
+
+    // sorted, merged ranges covering every range in parts
+    private static int[] union(List<int[]> parts) {
+        final List<int[]> pairs = new ArrayList<>();
+        for (int[] part : parts) {
+            for (int i = 0; i < part.length; i += 2) pairs.add(new int[] {part[i], part[i + 1]});
+        }
+        pairs.sort((a, b) -> Integer.compare(a[0], b[0]));
+        final int[] out = new int[pairs.size() * 2];
+        int n = 0;
+        for (int[] p : pairs) {
+            if (n > 0 && p[0] <= out[n - 1] + 1) {
+                out[n - 1] = Math.max(out[n - 1], p[1]);
+            } else {
+                out[n++] = p[0];
+                out[n++] = p[1];
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] complement(int[] set) {
+        final int[] out = new int[set.length + 2];
+        int n = 0;
+        int next = 0;
+        for (int i = 0; i < set.length; i += 2) {
+            if (set[i] > next) {
+                out[n++] = next;
+                out[n++] = set[i] - 1;
+            }
+            next = set[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            out[n++] = next;
+            out[n++] = MAX_CHAR;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static void emit(Node node, Nfa.Builder b) {
+        switch (node.kind) {
+            case EMPTY:
+                return;
+            case CHARS:
+                b.emit(Nfa.SET, b.set(node.ranges), 0);
+                return;
+            case BEGIN:
+                b.emit(Nfa.BEGIN, 0, 0);
+                return;
+            case END:
+                b.emit(Nfa.END, 0, 0);
+                return;
+            case CONCAT:
+                for (Node kid : node.kids) emit(kid, b);
+                return;
+            case ALT: {
+                final int[] jumps = new int[node.kids.size() - 1];
+                for (int i = 0; i < node.kids.size() - 1; i++) {
+                    final int split = b.emit(Nfa.SPLIT, b.pc() + 1, 0);
+                    emit(node.kids.get(i), b);
+                    jumps[i] = b.emit(Nfa.JMP, 0, 0);
+                    b.patch2(split, b.pc());
+                }
+                emit(node.kids.get(node.kids.size() - 1), b);
+                for (int jump : jumps) b.patch1(jump, b.pc());
+                return;
+            }
+            case REPEAT: {
+                final Node kid = node.kids.get(0);
+                for (int i = 0; i < node.min; i++) emit(kid, b);
+                if (node.max == -1) {
+                    final int split = b.emit(Nfa.SPLIT, b.pc() + 1, 0);
+                    emit(kid, b);
+                    b.emit(Nfa.JMP, split, 0);
+                    b.patch2(split, b.pc());
+                } else {
+                    final int[] splits = new int[node.max - node.min];
+                    for (int i = 0; i < splits.length; i++) {
+                        splits[i] = b.emit(Nfa.SPLIT, b.pc() + 1, 0);
+                        emit(kid, b);
+                    }
+                    for (int split : splits) b.patch2(split, b.pc());
+                }
+                return;
+            }
+            default:
+                throw new IllegalStateException("emit: unknown node kind: "+node.kind);
+        }
+    }
+
+}
@@ -0,0 +1,6 @@
+package bubble.abp.regex;
+
+// thrown by RegexParser for syntax it leaves to java.util.regex
+class UnsupportedRegexException extends RuntimeException {
+    UnsupportedRegexException(String message) { super(message, null, false, false); }
+}
@@ -0,0 +1,386 @@
+package bubble.abp.spec;
+
+import bubble.abp.*;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.*;
+
+public class BlockListSourceTest {
+
+    public static BlockListSource stringSource(String data) {
+        return new BlockListSource() {
+            @Override public InputStream urlInputStream() { return new ByteArrayInputStream(data.getBytes(UTF_8)); }
+        };
+    }
+
+    @Test public void testLineReader () throws Exception {
+        // tiny buffer, to exercise refills and a \r\n split across reads
+        final BlockListLineReader r = new BlockListLineReader(new StringReader("a\r\n\r\n b\rc\n\n  d  "), 2);
+        final String[][] expected = {{"1", "a"}, {"3", "b"}, {"4", "c"}, {"6", "d"}};
+        for (String[] e : expected) {
+            assertEquals("wrong line", e[1], r.nextLine().toString());
+            assertEquals("wrong line number", Integer.parseInt(e[0]), r.getLineNumber());
+        }
+        assertNull("expected end of input", r.nextLine());
+    }
+
+    @Test public void testMetadata () throws Exception {
+        final BlockListSource source = stringSource("[Adblock Plus 2.0]\r\n! Title: My List\r\n"
+                + "!Description:  a list \r\n\r\n! comment\r\n||example.com^\r\n  @@||example.org^  \n").download();
+        assertEquals("wrong format", "Adblock Plus 2.0", source.getFormat());
+        assertEquals("wrong title", "My List", source.getTitle());
+        assertEquals("wrong description", "a list", source.getDescription());
+        assertEquals("wrong whitelist size", 1, source.getBlockList().getWhitelist().size());
+    }
+
+    @Test public void testParallelParsing () throws Exception {
+        final StringBuilder b = new StringBuilder("! Title: parallel\n");
+        for (int i=0; i<2000; i++) {
+            switch (i % 5) {
+                case 0: b.append("||host").append(i).append(".example.com^\n"); break;
+                case 1: b.append("/ads/").append(i).append("/*.gif\n"); break;
+                case 2: b.append("@@||ok").append(i).append(".example.com^\n"); break;
+                case 3: b.append("example.com##.ad-").append(i).append("\n"); break;
+                case 4: b.append("~~reject").append(i).append(".example.com\n"); break;
+            }
+        }
+        final BlockListSource sequential = stringSource(b.toString()).download();
+        final BlockListSource parallel = stringSource(b.toString()).setParseThreads(4).setParseChunkSize(100).download();
+        assertEquals("blacklists differ", new ArrayList<>(sequential.getBlockList().getBlacklist()), new ArrayList<>(parallel.getBlockList().getBlacklist()));
+        assertEquals("whitelists differ", new ArrayList<>(sequential.getBlockList().getWhitelist()), new ArrayList<>(parallel.getBlockList().getWhitelist()));
+        assertEquals("reject lists differ", new ArrayList<>(sequential.getBlockList().getRejectList()), new ArrayList<>(parallel.getBlockList().getRejectList()));
+        assertEquals("wrong whitelist size", 400, parallel.getBlockList().getWhitelist().size());
+    }
+
+    public static final String TEST_URL_PREFIX = "test://lists/";
+
+    // serves TEST_URL_PREFIX urls from a local directory
+    public static BlockListFetcher directoryFetcher(File dir) {
+        return url -> new FileInputStream(new File(dir, url.substring(TEST_URL_PREFIX.length())));
+    }
+
+    // deleted with everything in it after each test
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    private File listDir(String... nameAndContents) throws IOException {
+        final File dir = temp.newFolder();
+        for (int i=0; i<nameAndContents.length; i+=2) {
+            final File f = new File(dir, nameAndContents[i]);
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), nameAndContents[i+1].getBytes(UTF_8));
+        }
+        return dir;
+    }
+
+    @Test public void testSharedIncludes () throws Exception {
+        final File dir = listDir(
+                "one.txt", "||one.example.com^\n!#include common/shared.txt\n!#include extra.txt\n||one-after.example.com^\n",
+                "two.txt", "!#include common/shared.txt\n||two.example.com^\n",
+                "extra.txt", "! Title: Extra\n||extra.example.com^\n",
+                "common/shared.txt", "||shared.example.com^\n!#include nested.txt\n",
+                "common/nested.txt", "@@||nested.example.com^\n");
+        final BlockListFetcher fetcher = directoryFetcher(dir);
+        try (BlockListIncludes includes = new BlockListIncludes(fetcher, 2)) {
+            final BlockListSource one = new BlockListSource().setUrl(TEST_URL_PREFIX+"one.txt").setFetcher(fetcher).setIncludes(includes).download();
+            final BlockListSource two = new BlockListSource().setUrl(TEST_URL_PREFIX+"two.txt").setFetcher(fetcher).setIncludes(includes).download();
+            assertEquals("wrong title from include", "Extra", one.getTitle());
+            assertEquals("includes not expanded in file order",
+                    "[one.example.com, shared.example.com, extra.example.com, one-after.example.com]",
+                    one.getBlockList().getBlacklist().stream().map(BlockSpec::getTarget).map(BlockTarget::getDomain).filter(d -> d.endsWith(".example.com")).collect(toList()).toString());
+            assertEquals("wrong nested whitelist", 1, two.getBlockList().getWhitelist().size());
+            assertEquals("wrong blacklist", 2, two.getBlockList().getBlacklist().size());
+            assertEquals("common includes should be fetched once", 3, includes.getFetchCount());
+        }
+    }
+
+    @Test public void testIncludeCycle () throws Exception {
+        final File dir = listDir(
+                "a.txt", "||a.example.com^\n!#include b.txt\n",
+                "b.txt", "||b.example.com^\n!#include a.txt\n");
+        try {
+            new BlockListSource().setUrl(TEST_URL_PREFIX+"a.txt").setFetcher(directoryFetcher(dir)).download();
+            fail("expected include cycle to be detected");
+        } catch (IOException e) {
+            assertTrue("wrong error: "+e.getMessage(), e.getMessage().contains("include cycle"));
+        }
+    }
+
+    // serves body at /list.txt, with etag if it is set
+    public static HttpServer listServer(AtomicReference<String> body, AtomicReference<String> etag, AtomicInteger requests) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/list.txt", exchange -> {
+            requests.incrementAndGet();
+            final String tag = etag.get();
+            if (tag != null && tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                final byte[] data = body.get().getBytes(UTF_8);
+                if (tag != null) exchange.getResponseHeaders().set("ETag", tag);
+                exchange.sendResponseHeaders(200, data.length);
+                exchange.getResponseBody().write(data);
+            }
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    public static String listUrl(HttpServer server) { return "http://127.0.0.1:"+server.getAddress().getPort()+"/list.txt"; }
+
+    @Test public void testConditionalRefresh () throws Exception {
+        final AtomicReference<String> body = new AtomicReference<>("||one.example.com^\n");
+        final AtomicReference<String> etag = new AtomicReference<>("\"v1\"");
+        final AtomicInteger requests = new AtomicInteger();
+        final HttpServer server = listServer(body, etag, requests);
+        try {
+            final BlockListSource source = new BlockListSource().setUrl(listUrl(server));
+            assertTrue("first refresh should load the list", source.refresh());
+            final BlockList loaded = source.getBlockList();
+            assertEquals("wrong blacklist size", 1, loaded.getBlacklist().size());
+
+            assertFalse("304 should not reload the list", source.refresh());
+            assertSame("304 should keep the block list", loaded, source.getBlockList());
+
+            // new validator but the same bytes: fetched, not parsed
+            etag.set("\"v2\"");
+            assertFalse("same content should not be parsed again", source.refresh());
+            assertSame("same content should keep the block list", loaded, source.getBlockList());
+            assertEquals("wrong request count", 3, requests.get());
+
+            etag.set("\"v3\"");
+            body.set("! Expires: 2 days (update frequency)\n||one.example.com^\n||two.example.com^\n");
+            assertTrue("changed content should be parsed", source.refresh());
+            assertEquals("wrong blacklist size", 2, source.getBlockList().getBlacklist().size());
+            assertEquals("wrong expires", Long.valueOf(TimeUnit.DAYS.toMillis(2)), source.getExpires());
+
+            // not expired: no request at all
+            assertFalse("unexpired list should not be fetched", source.refresh());
+            final BlockListHolder holder = new BlockListHolder();
+            final CompiledBlockList compiled = holder.refresh(source);
+            assertSame("unchanged sources should keep the active snapshot", compiled, holder.refresh(source));
+            assertEquals("wrong request count", 4, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testFetchRedirects () throws Exception {
+        final AtomicReference<String> etag = new AtomicReference<>("\"v1\"");
+        final HttpServer server = listServer(new AtomicReference<>("||one.example.com^\n"), etag, new AtomicInteger());
+        server.createContext("/moved", exchange -> {
+            exchange.getResponseHeaders().set("Location", "/list.txt");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.createContext("/loop", exchange -> {
+            exchange.getResponseHeaders().set("Location", "/loop");
+            exchange.sendResponseHeaders(301, -1);
+            exchange.close();
+        });
+        server.createContext("/gone", exchange -> {
+            final byte[] data = "no such list".getBytes(UTF_8);
+            exchange.sendResponseHeaders(404, data.length);
+            exchange.getResponseBody().write(data);
+            exchange.close();
+        });
+        try {
+            final String base = "http://127.0.0.1:"+server.getAddress().getPort();
+            final HttpBlockListFetcher fetcher = new HttpBlockListFetcher().setConnectTimeout(5000).setReadTimeout(5000);
+            final BlockListSource source = new BlockListSource().setUrl(base+"/moved").setFetcher(fetcher);
+            assertTrue("redirect should be followed", source.refresh());
+            assertEquals("wrong blacklist size", 1, source.getBlockList().getBlacklist().size());
+            assertTrue("redirected 304 should be notModified", fetcher.fetchIfModified(base+"/moved", "\"v1\"", null).isNotModified());
+
+            try {
+                fetcher.fetch(base+"/loop");
+                fail("redirect loop should fail");
+            } catch (IOException e) {
+                assertTrue("wrong error: "+e.getMessage(), e.getMessage().contains("redirects"));
+            }
+            try {
+                fetcher.fetch(base+"/gone");
+                fail("404 should fail");
+            } catch (IOException e) {
+                assertTrue("wrong error: "+e.getMessage(), e.getMessage().contains("404: no such list"));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testIncrementalRefresh () throws Exception {
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<20; i++) b.append("||d").append(i).append(".example.com^\n");
+        final String common = b.toString();
+        final AtomicReference<String> body = new AtomicReference<>(common
+                + "||d1.example.com^\n||dup.example.com^\ndup.example.com\n~~rejected.example.com\n");
+        final HttpServer server = listServer(body, new AtomicReference<>(), new AtomicInteger());
+        try {
+            final BlockListSource source = new BlockListSource().setUrl(listUrl(server));
+            final BlockListHolder holder = new BlockListHolder();
+            final CompiledBlockList before = holder.refresh(source);
+            assertNull("first refresh should parse the whole list", source.getLastChanges());
+            assertEquals(BlockDecisionType.block, before.getDecision("d1.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.block, before.getDecision("d5.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.allow, before.getDecision("other.example.org", "/").getDecisionType());
+            assertEquals(BlockDecisionType.allow, before.getDecision("new.example.com", "/").getDecisionType());
+            final BlockList loaded = source.getBlockList();
+
+            // d1 loses a duplicate line, and the first dup line goes but the second still produces the same spec:
+            // only the reject line and the new line change anything
+            body.set(common + "dup.example.com\n||new.example.com^\n");
+            final CompiledBlockList after = holder.refresh(source);
+            final BlockListChanges changes = source.getLastChanges();
+            assertNotNull("small change should be applied incrementally", changes);
+            assertSame("incremental update should keep the block list", loaded, source.getBlockList());
+            assertEquals("wrong removed blacklist", 1, changes.getRemovedBlacklist().size());
+            assertEquals("wrong added blacklist", 1, changes.getAddedBlacklist().size());
+            assertEquals("wrong removed reject list", singletonList("rejected.example.com"), changes.getRemovedRejectList());
+
+            assertEquals("only unaffected decisions should be carried over", 3, after.getDecisionCacheStats().getSize());
+            assertEquals(BlockDecisionType.block, after.getDecision("d1.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.block, after.getDecision("dup.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.block, after.getDecision("new.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.allow, after.getDecision("rejected.example.com", "/").getDecisionType());
+
+            // the same result as parsing the new list from scratch
+            final BlockListSource full = stringSource(body.get()).download();
+            assertEquals("incremental and full parse differ", new HashSet<>(full.getBlockList().getBlacklist()), new HashSet<>(source.getBlockList().getBlacklist()));
+            assertEquals("incremental and full parse differ", full.getBlockList().getRejectList(), source.getBlockList().getRejectList());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test public void testFailedRefresh () throws Exception {
+        final String listUrl = TEST_URL_PREFIX+"list.txt";
+        final Map<String, String> lists = new ConcurrentHashMap<>();
+        final AtomicReference<String> etag = new AtomicReference<>("\"v1\"");
+        final AtomicBoolean includesDown = new AtomicBoolean();
+        final BlockListFetcher fetcher = new BlockListFetcher() {
+            @Override public InputStream fetch(String url) throws IOException {
+                if (!url.equals(listUrl) && includesDown.get()) throw new IOException("fetch("+url+"): unavailable");
+                return new ByteArrayInputStream(lists.get(url).getBytes(UTF_8));
+            }
+            @Override public BlockListFetchResult fetchIfModified(String url, String ifNoneMatch, String lastModified) throws IOException {
+                if (etag.get().equals(ifNoneMatch)) return BlockListFetchResult.notModified();
+                return BlockListFetchResult.modified(fetch(url), etag.get(), null);
+            }
+        };
+        final StringBuilder b = new StringBuilder();
+        for (int i=0; i<20; i++) b.append("||d").append(i).append(".example.com^\n");
+        final String common = b.toString();
+        lists.put(listUrl, common);
+        lists.put(TEST_URL_PREFIX+"inc.txt", "||included.example.com^\n");
+
+        final BlockListSource source = new BlockListSource().setUrl(listUrl).setFetcher(fetcher);
+        assertTrue("first refresh should load the list", source.refresh());
+        final BlockList loaded = source.getBlockList();
+        final String hash = source.getContentHash();
+
+        // a small change, parsed incrementally, whose new include fails: nothing about the source changes
+        etag.set("\"v2\"");
+        lists.put(listUrl, common + "!#include inc.txt\n||new.example.com^\n");
+        includesDown.set(true);
+        assertRefreshFails(source);
+        assertSame("failed refresh should keep the block list", loaded, source.getBlockList());
+        assertEquals("failed refresh should keep the etag", "\"v1\"", source.getEtag());
+        assertEquals("failed refresh should keep the hash", hash, source.getContentHash());
+        assertEquals("failed refresh should keep the rules", 20, loaded.getBlacklist().size());
+
+        // the old validator is sent, so the list is fetched again rather than answered with a 304
+        includesDown.set(false);
+        assertTrue("refresh after a failure should load the list", source.refresh());
+        assertEquals("wrong etag", "\"v2\"", source.getEtag());
+        final BlockList updated = source.getBlockList();
+        assertEquals(BlockDecisionType.block, updated.getDecision("included.example.com", "/").getDecisionType());
+        assertEquals(BlockDecisionType.block, updated.getDecision("new.example.com", "/").getDecisionType());
+
+        // a whole new list, parsed in full, failing the same way
+        etag.set("\"v3\"");
+        lists.put(listUrl, "!#include inc.txt\n||other.example.com^\n");
+        includesDown.set(true);
+        assertRefreshFails(source);
+        assertSame("failed refresh should keep the block list", updated, source.getBlockList());
+        assertEquals(BlockDecisionType.block, source.getBlockList().getDecision("d1.example.com", "/").getDecisionType());
+        includesDown.set(false);
+        assertTrue("refresh after a failure should load the list", source.refresh());
+        assertEquals(BlockDecisionType.allow, source.getBlockList().getDecision("d1.example.com", "/").getDecisionType());
+        assertEquals(BlockDecisionType.block, source.getBlockList().getDecision("other.example.com", "/").getDecisionType());
+    }
+
+    private static void assertRefreshFails(BlockListSource source) {
+        try {
+            source.refresh();
+            fail("expected refresh to fail");
+        } catch (IOException expected) {}
+    }
+
+    @Test public void testSpecInterning () throws Exception {
+        final BlockSpecInterner interner = new BlockSpecInterner();
+        final BlockListSource one = stringSource("||example.com^\n/ads/*$image\na.example.org##.ad\n").setInterner(interner).download();
+        final BlockListSource two = stringSource("example.com\n/ads/*$image\nb.example.org##.ad\n||other.example.com^$image\n").setInterner(interner).download();
+        final List<BlockSpec> first = new ArrayList<>(one.getBlockList().getBlacklist());
+        final List<BlockSpec> second = new ArrayList<>(two.getBlockList().getBlacklist());
+
+        assertSame("same rule in two lists should be one spec", first.get(1), second.get(1));
+        assertSame("equivalent rules should share a target", first.get(0).getTarget(), second.get(0).getTarget());
+        assertSame("equal selectors should be shared", first.get(2).getSelector(), second.get(2).getSelector());
+        assertSame("equal options should be shared", first.get(1).getTypeMatches(), second.get(3).getTypeMatches());
+
+        final BlockSpecInternerStats stats = interner.getStats();
+        assertEquals("wrong spec count", 7, stats.getSpecs());
+        assertEquals("wrong duplicate specs", 1, stats.getDuplicateSpecs());
+        assertEquals("wrong duplicate targets", 1, stats.getDuplicateTargets());
+        assertEquals("wrong duplicate selectors", 1, stats.getDuplicateSelectors());
+        assertEquals("wrong duplicate option lists", 1, stats.getDuplicateOptionLists());
+        assertTrue("expected some bytes saved", stats.getEstimatedBytesSaved() > 0);
+
+        // merging already interned specs counts nothing new, and decisions are unchanged
+        final BlockList merged = new BlockList().setInterner(interner);
+        merged.merge(one.getBlockList());
+        merged.merge(two.getBlockList());
+        assertEquals("merge should not re-count interned specs", 7, interner.getStats().getSpecs());
+        assertEquals(BlockDecisionType.block, merged.getDecision("www.example.com", "/").getDecisionType());
+        assertEquals(BlockDecisionType.block, merged.getDecision("cdn.example.net", "/ads/1.png", "image/png", null, true).getDecisionType());
+
+        // a full re-parse on refresh keeps the block list's interner for later merges
+        final AtomicReference<String> body = new AtomicReference<>("||one.example.com^\n");
+        final HttpServer server = listServer(body, new AtomicReference<>(), new AtomicInteger());
+        try {
+            final BlockListSource refreshed = new BlockListSource().setUrl(listUrl(server));
+            refreshed.getBlockList().setInterner(interner);
+            assertTrue("first refresh should load the list", refreshed.refresh());
+            body.set("||two.example.com^\n");
+            assertTrue("changed list should load", refreshed.refresh());
+            assertNull("a whole new list should be parsed in full", refreshed.getLastChanges());
+            assertSame("full re-parse should keep the interner", interner, refreshed.getBlockList().getInterner());
+            final BlockSpec spec = BlockSpec.parse("/ads/*$image").get(0);
+            refreshed.getBlockList().addToBlacklist(spec);
+            final List<BlockSpec> added = new ArrayList<>(refreshed.getBlockList().getBlacklist());
+            assertSame("later additions should be interned", first.get(1), added.get(added.size() - 1));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+}
@@ -3,13 +3,54 @@ package bubble.abp.spec;
 import bubble.abp.BlockDecision;
 import bubble.abp.BlockDecisionType;
 import bubble.abp.BlockList;
+import bubble.abp.BlockListHolder;
+import bubble.abp.BlockListSnapshot;
+import bubble.abp.BlockListStore;
+import bubble.abp.BlockListView;
+import bubble.abp.BlockListSource;
 import bubble.abp.BlockSpec;
+import bubble.abp.BlockTarget;
+import bubble.abp.CompiledBlockList;
+import bubble.abp.DecisionRequest;
+import bubble.abp.cache.DecisionCacheConfig;
+import bubble.abp.cache.DecisionCacheKeyGranularity;
+import bubble.abp.cache.DecisionCacheStats;
+import bubble.abp.index.BlockSpecIndexMode;
+import bubble.abp.index.BlockSpecIndexStats;
+import bubble.abp.index.DomainSet;
+import bubble.abp.index.TokenBucketStats;
+import bubble.abp.metrics.BlockListMetrics;
+import bubble.abp.metrics.SpecProfile;
+import bubble.abp.metrics.SpecProfiler;
+import bubble.abp.regex.LinearRegexMatcher;
+import bubble.abp.regex.LiteralRegexMatcher;
+import bubble.abp.regex.RegexCache;
+import bubble.abp.regex.RegexEngine;
+import bubble.abp.regex.RegexMatcher;
+import org.cobbzilla.util.http.HttpContentTypes;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
 
 import static bubble.abp.BlockListSource.WHITELIST_PREFIX;
+import static java.util.Collections.singletonList;
+import static org.cobbzilla.util.io.StreamUtil.loadResourceAsStream;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class BlockListTest {
 
@@ -190,6 +231,87 @@ public class BlockListTest {
         }
     }
 
+    @Test public void testConditionPlan () throws Exception {
+        final BlockList blockList = new BlockList()
+                .setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+        blockList.addToBlacklist(BlockSpec.parse("~foo.bar.com/ads~[\"path re_find ^/ads/[0-9]+\", \"referer_host eq bar.com\", \"content_type eq text/html\"]"));
+        blockList.addToBlacklist(BlockSpec.parse("~baz.com~[\"url re_exact baz[.]com/track/.*\"]"));
+        blockList.addToBlacklist(BlockSpec.parse("~qux.com~[\"referer_host eq bar.com\"]"));
+        blockList.addToBlacklist(BlockSpec.parse("~quux.com~[\"referer_host ne bar.com\", \"content_type ne text/html\"]"));
+        final CompiledBlockList compiled = blockList.compile();
+
+        // conditional specs are found by host, and no longer scanned for every request
+        final BlockSpecIndexStats stats = compiled.getBlacklistIndex().getStats();
+        assertEquals(4, stats.getConditionIndexed());
+        assertEquals(0, stats.getUnindexed());
+        // the host lookup ignores case, as BlockTarget.conditionsMatch does
+        assertEquals(1, compiled.getBlacklistIndex().getPathCandidates("Qux.COM", "/", id -> true).size());
+
+        final String[][] tests = {
+                // fqdn          // path      // content type  // referer              // expect
+                {"foo.bar.com",  "/ads/1",    "text/html",     "https://bar.com/page", BLOCK},
+                {"foo.bar.com",  "/ads/x",    "text/html",     "https://bar.com/page", ALLOW},
+                {"foo.bar.com",  "/ads/1",    "image/png",     "https://bar.com/page", ALLOW},
+                {"foo.bar.com",  "/ads/1",    "text/html",     "https://baz.com/page", ALLOW},
+                // a missing field fails an eq or re_ condition, wherever that condition was written
+                {"foo.bar.com",  "/ads/1",    "text/html",     null,                   ALLOW},
+                {"foo.bar.com",  "/ads/1",    null,            "https://bar.com/page", ALLOW},
+                {"www.bar.com",  "/ads/1",    "text/html",     "https://bar.com/page", ALLOW},
+                {"baz.com",      "/track/1",  null,            null,                   BLOCK},
+                {"baz.com",      "/other",    null,            null,                   ALLOW},
+                {"qux.com",      "/",         null,            "https://bar.com/page", BLOCK},
+                {"qux.com.evil", "/",         null,            "https://bar.com/page", ALLOW},
+                // ...except ne: a missing field is not equal to anything
+                {"quux.com",     "/",         null,            null,                   BLOCK},
+                {"quux.com",     "/",         "image/png",     "https://baz.com/page", BLOCK},
+                {"quux.com",     "/",         null,            "https://bar.com/page", ALLOW},
+                {"quux.com",     "/",         "text/html",     null,                   ALLOW},
+        };
+        for (String[] test : tests) {
+            assertEquals("expected "+test[4]+" for "+Arrays.toString(test),
+                    BlockDecisionType.fromString(test[4]),
+                    compiled.getDecision(test[0], test[1], test[2], test[3], true).getDecisionType());
+        }
+    }
+
+    @Test public void testDecisionRequest () throws Exception {
+        final DecisionRequest request = new DecisionRequest("www.example.com", "/a", null, "https://ref.example.org/page", true);
+        assertEquals("www.example.com/a", request.getUrl());
+        assertEquals("ref.example.org", request.getRefererHost());
+        assertEquals(0, request.getContentTypeMask());
+
+        // setting a field clears what was derived from it, so one instance serves request after request
+        request.setPath("/b").setReferer(null).setContentType(HttpContentTypes.IMAGE_PREFIX+"png");
+        assertEquals("www.example.com/b", request.getUrl());
+        assertNull(request.getRefererHost());
+        assertEquals(DecisionRequest.CONTENT_IMAGE, request.getContentTypeMask());
+        request.set("x.example.com", "/c", HttpContentTypes.TEXT_CSS, null, false);
+        assertEquals("x.example.com/c", request.getUrl());
+        assertEquals(DecisionRequest.CONTENT_STYLESHEET, request.getContentTypeMask());
+
+        final BlockList blockList = new BlockList()
+                .setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+        blockList.addToBlacklist(BlockSpec.parse("||script.example.com^$script"));
+        blockList.addToBlacklist(BlockSpec.parse("||image.example.com^$~image"));
+        blockList.addToBlacklist(BlockSpec.parse("||css.example.com^$stylesheet,~script"));
+        final String[] contentTypes = {null, "", HttpContentTypes.APPLICATION_JAVASCRIPT,
+                HttpContentTypes.IMAGE_PREFIX+"png", HttpContentTypes.TEXT_CSS, "text/plain"};
+        final String[][] tests = {
+                // fqdn               // expected, by content type
+                {"script.example.com", BLOCK, BLOCK, BLOCK, ALLOW, ALLOW, ALLOW},
+                {"image.example.com",  BLOCK, BLOCK, BLOCK, ALLOW, BLOCK, BLOCK},
+                {"css.example.com",    BLOCK, BLOCK, ALLOW, ALLOW, BLOCK, ALLOW},
+        };
+        for (String[] test : tests) {
+            for (int i = 0; i < contentTypes.length; i++) {
+                final BlockDecisionType expected = BlockDecisionType.fromString(test[i+1]);
+                final String message = "expected "+expected+" for "+test[0]+" with content type "+contentTypes[i];
+                assertEquals(message, expected, blockList.getDecision(test[0], "/", contentTypes[i], null, false).getDecisionType());
+                assertEquals(message, expected, blockList.getDecision(request.set(test[0], "/", contentTypes[i], null, false)).getDecisionType());
+            }
+        }
+    }
+
     public static final String[][][] WHITELIST_CONDITIONAL_SPECS = {
     // rules
     {
@@ -230,4 +352,529 @@ public class BlockListTest {
                     blockList.getDecision(fqdn, path, null, referer, true).getDecisionType());
         }
     }
+
+    public static final String[] DOMAIN_INDEX_RULES = {
+            "||example.com^", "||.tk^", "ads.example.org", "||sub.example.net^$image", "||example.com^/path",
+    };
+    public static final String[] DOMAIN_INDEX_FQDNS = {
+            "example.com", "www.example.com", "badexample.com", "example.com.evil.com", "tk", "foo.tk", "foo..tk",
+            "ads.example.org", "x.ads.example.org", "pads.example.org", "example.org",
+            "sub.example.net", "a.sub.example.net", "example.net", "",
+    };
+
+    @Test public void testDomainIndexAgreesWithRegex () throws Exception {
+        for (String rule : DOMAIN_INDEX_RULES) {
+            final BlockList blockList = new BlockList();
+            final List<BlockSpec> specs = BlockSpec.parse(rule);
+            blockList.addToBlacklist(specs);
+            for (String fqdn : DOMAIN_INDEX_FQDNS) {
+                final boolean expected = specs.stream().anyMatch(s -> s.matches(fqdn, "/", null, null));
+                assertEquals("domain index disagrees with regex for rule="+rule+", fqdn="+fqdn,
+                        expected ? BlockDecisionType.block : BlockDecisionType.allow,
+                        blockList.getDecision(fqdn, "/").getDecisionType());
+                final boolean expectedFqdn = specs.stream().anyMatch(s -> s.matchesFqdn(fqdn));
+                assertEquals("domain index disagrees with regex for rule="+rule+", fqdn="+fqdn,
+                        expectedFqdn ? BlockDecisionType.block : BlockDecisionType.allow,
+                        blockList.getFqdnDecision(fqdn).getDecisionType());
+            }
+        }
+    }
+
+    public static final String[] LITERAL_INDEX_RULES = {
+            "/foo", "/foo/*/img", "|example.com/|", "ads.js", "*banner*", "ad*.gif", "/ad[0-9]/", "|http://foo*",
+            "example.com/track", "/pixel^", "**", "foo.bar*baz$image",
+    };
+    public static final String[][] LITERAL_INDEX_URLS = {
+            {"example.com", "/"}, {"example.com", "/foo"}, {"example.com", "/foo/bar/img"}, {"example.com", "/xfoo"},
+            {"cdn.net", "/static/ads.js"}, {"cdn.net", "/static/adsXjs"}, {"cdn.net", "/top-banner.png"},
+            {"cdn.net", "/ad123.gif"}, {"cdn.net", "/ad1/x"}, {"example.com", "/track/1"}, {"www.example.com", "/track"},
+            {"cdn.net", "/pixel^"}, {"foo.bar", "/baz"}, {"fooXbar", "/baz"}, {"", ""},
+    };
+
+    @Test public void testLiteralIndexAgreesWithRegex () throws Exception {
+        for (BlockSpecIndexMode mode : BlockSpecIndexMode.values()) testLiteralIndex(mode);
+    }
+
+    private void testLiteralIndex(BlockSpecIndexMode mode) {
+        for (String rule : LITERAL_INDEX_RULES) {
+            final BlockList blockList = new BlockList().setIndexMode(mode);
+            final List<BlockSpec> specs = BlockSpec.parse(rule);
+            blockList.addToBlacklist(specs);
+            for (String[] url : LITERAL_INDEX_URLS) {
+                final String fqdn = url[0];
+                final String path = url[1];
+                final boolean expected = specs.stream().anyMatch(s -> s.matches(fqdn, path, null, null));
+                assertEquals(mode+" index disagrees with regex for rule="+rule+", url="+fqdn+path,
+                        expected ? BlockDecisionType.block : BlockDecisionType.allow,
+                        blockList.getDecision(fqdn, path).getDecisionType());
+                final boolean expectedFqdn = specs.stream().anyMatch(s -> s.matchesFqdn(fqdn));
+                assertEquals(mode+" index disagrees with regex for rule="+rule+", fqdn="+fqdn,
+                        expectedFqdn ? BlockDecisionType.block : BlockDecisionType.allow,
+                        blockList.getFqdnDecision(fqdn).getDecisionType());
+            }
+        }
+    }
+
+    @Test public void testTokenBucketStats () throws Exception {
+        final BlockList blockList = new BlockList().setIndexMode(BlockSpecIndexMode.token_buckets);
+        for (String rule : new String[] {"/ads/banner/", "/ads/popup/", "/ads/track.gif", "/foo", "|http://example.com/|"}) {
+            blockList.addToBlacklist(BlockSpec.parse(rule));
+        }
+        final TokenBucketStats stats = blockList.getBlacklistIndex().getTokenBucketStats();
+        assertEquals("expected 5 tokenized or generic specs", 5, stats.getTokenizedSpecs() + stats.getGenericBucketSize());
+        assertEquals("expected /foo in generic bucket", 1, stats.getGenericBucketSize());
+        assertEquals("expected rarest tokens to be used", 4, stats.getBucketCount());
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.com", "/ads/popup/1").getDecisionType());
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("example.com", "/ads/popups/1").getDecisionType());
+    }
+
+    @Test public void testDecisionCache () throws Exception {
+        final BlockList blockList = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig()
+                .setMaxSize(2).setStripes(1).setKeyGranularity(DecisionCacheKeyGranularity.fqdn));
+        blockList.addToBlacklist(BlockSpec.parse("||example.com^"));
+        blockList.addToBlacklist(BlockSpec.parse("/ads/"));
+
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.com", "/foo").getDecisionType());
+        // host-wide block was cached by fqdn, so any path on the host is a hit
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.com", "/bar").getDecisionType());
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("example.org", "/foo").getDecisionType());
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.org", "/ads/1").getDecisionType());
+        DecisionCacheStats stats = blockList.getDecisionCacheStats();
+        assertEquals("expected 1 hit", 1, stats.getHits());
+        assertEquals("expected 1 eviction", 1, stats.getEvictions());
+
+        // adding a whitelist rule invalidates the cache
+        blockList.addToWhitelist(BlockSpec.parse("example.com/ok"));
+        assertEquals("expected empty cache", 0, blockList.getDecisionCacheStats().getSize());
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("example.com", "/ok").getDecisionType());
+        // with a path-specific whitelist, blocks are no longer host-wide
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.com", "/foo").getDecisionType());
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("example.com", "/ok").getDecisionType());
+    }
+
+    @Test public void testCompiledSnapshotIsImmutable () throws Exception {
+        final BlockList blockList = new BlockList();
+        blockList.addToBlacklist(BlockSpec.parse("||example.com^"));
+        final BlockListHolder holder = new BlockListHolder(blockList.compile());
+        final CompiledBlockList before = holder.get();
+
+        blockList.addToBlacklist(BlockSpec.parse("||example.org^"));
+        assertEquals(BlockDecisionType.allow, before.getDecision("example.org", "/").getDecisionType());
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.org", "/").getDecisionType());
+
+        holder.swap(blockList.compile());
+        assertEquals(BlockDecisionType.block, holder.get().getDecision("example.org", "/").getDecisionType());
+        assertEquals(BlockDecisionType.allow, before.getDecision("example.org", "/").getDecisionType());
+
+        // changes go through the mutators, which discard the cached snapshot; the sets themselves are read-only
+        try {
+            blockList.getBlacklist().clear();
+            fail("expected the blacklist to be read-only");
+        } catch (UnsupportedOperationException expected) {}
+        assertEquals(BlockDecisionType.block, blockList.getDecision("example.org", "/").getDecisionType());
+    }
+
+    @Test public void testSnapshotRoundTrip () throws Exception {
+        for (BlockSpecIndexMode mode : BlockSpecIndexMode.values()) {
+            final BlockList blockList = new BlockListSource() {
+                @Override public InputStream urlInputStream() { return loadResourceAsStream("AntiMalwareABP.txt"); }
+            }.download().getBlockList().setIndexMode(mode);
+            for (String[] test : BLOCK_TESTS) blockList.addToBlacklist(BlockSpec.parse(test[0]));
+            for (String[] test : CONDITIONAL_SPECS) blockList.addToBlacklist(BlockSpec.parse(test[0]));
+            for (String[] rule : WHITELIST_CONDITIONAL_SPECS[0]) {
+                if (rule[0].startsWith(WHITELIST_PREFIX)) blockList.addToWhitelist(BlockSpec.parse(rule[0].substring(WHITELIST_PREFIX.length())));
+            }
+            blockList.addToRejectList("rejected.example.com");
+
+            final File file = File.createTempFile("abp-snapshot", ".bin");
+            file.deleteOnExit();
+            final CompiledBlockList compiled = blockList.compile();
+            BlockListSnapshot.write(compiled, file);
+            final CompiledBlockList loaded = BlockListSnapshot.load(file);
+
+            final List<String[]> urls = new ArrayList<>(Arrays.asList(LITERAL_INDEX_URLS));
+            for (String[] test : BLOCK_TESTS) urls.add(new String[] {test[1], test[2]});
+            for (String[] test : WHITELIST_CONDITIONAL_SPECS[1]) urls.add(new String[] {test[0], test[1], test[2]});
+            urls.add(new String[] {"rejected.example.com", "/"});
+            for (String[] url : urls) {
+                final String referer = url.length > 2 ? url[2] : null;
+                final BlockDecision expected = compiled.getDecision(url[0], url[1], null, referer, true);
+                final BlockDecision actual = loaded.getDecision(url[0], url[1], null, referer, true);
+                assertEquals(mode+" snapshot decision differs for "+Arrays.toString(url), expected.getDecisionType(), actual.getDecisionType());
+                assertEquals(mode+" snapshot specs differ for "+Arrays.toString(url), expected.getSpecs(), actual.getSpecs());
+            }
+            assertEquals("snapshot specs differ", compiled.getBlacklist(), loaded.getBlacklist());
+            assertEquals("snapshot specs differ", compiled.getWhitelist(), loaded.getWhitelist());
+            assertEquals("snapshot reject list differs", compiled.getRejectList(), loaded.getRejectList());
+            assertTrue("snapshot reject list should stay in the mapped file", loaded.getRejectList().isOffHeap());
+
+            // a flipped byte or another format version is rejected, never half-loaded
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.seek(f.length() / 2);
+                final int b = f.read();
+                f.seek(f.length() / 2);
+                f.write(b ^ 0xff);
+            }
+            assertLoadFails(file, "checksum");
+            BlockListSnapshot.write(compiled, file);
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.seek(4);
+                f.writeInt(BlockListSnapshot.FORMAT_VERSION + 1);
+            }
+            assertLoadFails(file, "version");
+        }
+    }
+
+    private void assertLoadFails(File file, String reason) {
+        try {
+            BlockListSnapshot.load(file);
+            fail("expected load to fail: "+reason);
+        } catch (IOException e) {
+            assertTrue("wrong error: "+e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    @Test public void testDomainSet () throws Exception {
+        final List<String> domains = new ArrayList<>();
+        for (int i=0; i<10000; i++) domains.add("host"+i+".example.com");
+        domains.add("example.org");
+        domains.add("b\u00fccher.example");
+        domains.add("host5.example.com");
+        final DomainSet set = DomainSet.of(domains);
+        assertEquals("duplicates should be dropped", 10002, set.size());
+        assertEquals("iteration should follow insertion order", domains.subList(0, 10002), new ArrayList<>(set));
+        assertTrue(set.contains("host9999.example.com"));
+        assertTrue(set.contains("b\u00fccher.example"));
+        assertFalse(set.contains("host10000.example.com"));
+        assertFalse(set.contains("example.com"));
+        assertTrue(set.containsDomainOrParent("a.b.example.org"));
+        assertTrue(set.containsDomainOrParent("www.b\u00fccher.example"));
+        assertFalse(set.containsDomainOrParent("badexample.org"));
+        assertTrue("packed set should be smaller than a HashSet, was "+set.getBytesPerEntry()+" bytes per entry", set.getBytesPerEntry() < 64);
+
+        final BlockList blockList = new BlockList();
+        blockList.addToBlacklist(BlockSpec.parse("||example.com^"));
+        blockList.addToBlacklist(BlockSpec.parse("||example.org^$domain=~www.example.org"));
+        blockList.addToBlacklist(BlockSpec.parse("example.net##.ad"));
+        blockList.addToWhitelist(BlockSpec.parse("||example.org^$domain=~www.example.org"));
+        final Set<String> blocked = blockList.getFullyBlockedDomains();
+        assertEquals("wrong fully blocked domains", new ArrayList<>(Arrays.asList("example.com")), new ArrayList<>(blocked));
+        assertTrue("domain sets should be built once per snapshot", blocked == blockList.getFullyBlockedDomains());
+        assertEquals("wrong whitelist domains", 1, blockList.getWhitelistDomainNames().size());
+    }
+
+    public static final String[] BATCH_RULES = {
+            "||ads.example.net^", "/banner/", "||cdn.net/track$image", "example.org##.ad", "##.sponsored",
+            "@@||ok.example.net^", "@@/banner/ok",
+    };
+
+    @Test public void testBatchDecisions () throws Exception {
+        for (DecisionCacheKeyGranularity granularity : DecisionCacheKeyGranularity.values()) {
+            final BlockList batch = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig().setKeyGranularity(granularity));
+            final BlockList single = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig().setKeyGranularity(granularity));
+            for (String rule : BATCH_RULES) {
+                for (BlockList list : new BlockList[] {batch, single}) {
+                    if (rule.startsWith(WHITELIST_PREFIX)) {
+                        list.addToWhitelist(BlockSpec.parse(rule.substring(WHITELIST_PREFIX.length())));
+                    } else {
+                        list.addToBlacklist(BlockSpec.parse(rule));
+                    }
+                }
+            }
+            final List<DecisionRequest> requests = new ArrayList<>();
+            for (String fqdn : new String[] {"ads.example.net", "ok.example.net", "example.org", "cdn.net"}) {
+                for (String path : new String[] {"/", "/banner/1", "/banner/ok", "/track/1", "/"}) {
+                    requests.add(new DecisionRequest(fqdn, path));
+                    requests.add(new DecisionRequest(fqdn, path, "image/png", null, true));
+                    requests.add(new DecisionRequest(fqdn, path, "text/html", "https://example.org/", true));
+                }
+            }
+            // interleave hosts, so grouping has to put each decision back in place
+            requests.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+
+            for (int pass = 0; pass < 2; pass++) {
+                final BlockDecision[] decisions = batch.getDecisions(requests);
+                assertEquals("wrong number of decisions", requests.size(), decisions.length);
+                for (int i = 0; i < decisions.length; i++) {
+                    final DecisionRequest r = requests.get(i);
+                    final BlockDecision e = single.getDecision(r.getFqdn(), r.getPath(), r.getContentType(), r.getReferer(), r.isPrimary());
+                    assertEquals("batch differs ("+granularity+", pass "+pass+") for "+r, e.getDecisionType(), decisions[i].getDecisionType());
+                    assertEquals("batch specs differ ("+granularity+", pass "+pass+") for "+r, e.getSpecs(), decisions[i].getSpecs());
+                }
+            }
+            assertEquals("batch should cache what per-call decisions cache",
+                    single.getDecisionCacheStats().getSize(), batch.getDecisionCacheStats().getSize());
+        }
+    }
+
+    @Test public void testSharedDecisions () throws Exception {
+        // caching off, so every call below is decided afresh
+        final BlockList blockList = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+        blockList.addToBlacklist(BlockSpec.parse("||ads.example.net^"));
+        blockList.addToBlacklist(BlockSpec.parse("example.org##.ad"));
+        blockList.addToBlacklist(BlockSpec.parse("##.sponsored"));
+
+        final BlockDecision all = blockList.getDecision("example.com", "/");
+        assertEquals(BlockDecisionType.filter, all.getDecisionType());
+        assertEquals("expected every selector", 2, all.getSpecs().size());
+        assertTrue("expected the all-selectors decision to be shared", all == blockList.getDecision("example.org", "/page"));
+        assertTrue("expected selectors to be built once", all.getSelectors() == all.getSelectors());
+
+        final BlockDecision primary = blockList.getDecision("example.org", "/a", true);
+        assertEquals(BlockDecisionType.filter, primary.getDecisionType());
+        assertEquals("expected both selectors to match", 2, primary.getSpecs().size());
+        assertTrue("expected the same specs to share a decision", primary == blockList.getDecision("example.org", "/b", true));
+        assertTrue("expected the same specs to share a decision",
+                blockList.getDecision("www.example.org", "/", true) == blockList.getDecision("example.com", "/", true));
+
+        final BlockList noSelectors = new BlockList().setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+        noSelectors.addToBlacklist(BlockSpec.parse("||ads.example.net^"));
+        assertTrue("expected no matches to be NO_MATCH", BlockDecision.NO_MATCH == noSelectors.getDecision("example.com", "/", true));
+        assertEquals(BlockDecisionType.allow, BlockDecision.NO_MATCH.getDecisionType());
+
+        for (BlockDecision decision : new BlockDecision[] {all, primary, BlockDecision.BLOCK, BlockDecision.ALLOW}) {
+            try {
+                decision.add(BlockSpec.parse("##.other").get(0));
+                fail("expected "+decision+" to be immutable");
+            } catch (IllegalStateException expected) {}
+        }
+        assertEquals("a new decision should still be mutable", BlockDecisionType.filter,
+                new BlockDecision().add(BlockSpec.parse("##.other").get(0)).getDecisionType());
+    }
+
+    @Test public void testSharedStore () throws Exception {
+        final Map<String, BlockList> lists = new LinkedHashMap<>();
+        for (int i=0; i<3; i++) lists.put("list"+i, new BlockList());
+        for (int i=0; i<BLOCK_TESTS.length; i++) {
+            // some rules are in two lists
+            lists.get("list"+(i % 3)).addToBlacklist(BlockSpec.parse(BLOCK_TESTS[i][0]));
+            if (i % 4 == 0) lists.get("list"+((i+1) % 3)).addToBlacklist(BlockSpec.parse(BLOCK_TESTS[i][0]));
+        }
+        lists.get("list1").addToWhitelist(BlockSpec.parse("foo.example.com/ok"));
+        lists.get("list2").addToRejectList("rejected.example.com");
+        lists.get("list0").addToBlacklist(BlockSpec.parse("dup.example.com##.ad"));
+        final BlockListStore store = new BlockListStore(lists);
+
+        final BlockList merged = new BlockList();
+        for (BlockList list : lists.values()) merged.merge(list);
+        assertEquals("each distinct spec should be stored once", merged.getBlacklist().size(), store.getBlacklistTable().size());
+
+        final BlockList custom = new BlockList();
+        custom.addToBlacklist(BlockSpec.parse("||custom.example.net^"));
+        // private rules that shared lists also have
+        custom.addToBlacklist(BlockSpec.parse(BLOCK_TESTS[0][0]));
+        custom.addToBlacklist(BlockSpec.parse("dup.example.com##.ad"));
+        // the last is listed out of store order: specs come in store order, so only compare them as sets
+        final List<List<String>> combinations = Arrays.asList(
+                Arrays.asList("list0"), Arrays.asList("list1", "list2"), Arrays.asList("list0", "list1", "list2"),
+                Arrays.asList("list2", "list0"));
+        for (List<String> combination : combinations) {
+            for (boolean withCustom : new boolean[] {false, true}) {
+                final BlockList expected = new BlockList();
+                for (String name : combination) expected.merge(lists.get(name));
+                if (withCustom) expected.merge(custom);
+                final BlockListView view = store.view(combination, withCustom ? custom : null);
+                final List<String[]> urls = new ArrayList<>(Arrays.asList(LITERAL_INDEX_URLS));
+                for (String[] test : BLOCK_TESTS) urls.add(new String[] {test[1], test[2]});
+                urls.add(new String[] {"foo.example.com", "/ok"});
+                urls.add(new String[] {"www.custom.example.net", "/"});
+                urls.add(new String[] {"dup.example.com", "/"});
+                for (String[] url : urls) {
+                    for (boolean primary : new boolean[] {false, true}) {
+                        final BlockDecision e = expected.getDecision(url[0], url[1], primary);
+                        final BlockDecision a = view.getDecision(url[0], url[1], primary);
+                        assertEquals("view "+combination+" custom="+withCustom+" differs for "+Arrays.toString(url), e.getDecisionType(), a.getDecisionType());
+                        final String specsDiffer = "view "+combination+" custom="+withCustom+" specs differ for "+Arrays.toString(url);
+                        assertEquals(specsDiffer, e.hasSpecs() ? e.getSpecs().size() : 0, a.hasSpecs() ? a.getSpecs().size() : 0);
+                        if (e.hasSpecs()) assertEquals(specsDiffer, new HashSet<>(e.getSpecs()), new HashSet<>(a.getSpecs()));
+                    }
+                    assertEquals(expected.getFqdnDecision(url[0]).getDecisionType(), view.getFqdnDecision(url[0]).getDecisionType());
+                }
+                assertEquals("wrong reject list", combination.contains("list2"), view.isRejected("rejected.example.com"));
+            }
+        }
+
+        final BlockListView view = store.view(Arrays.asList("list0", "list2"), custom);
+        final BlockListView moved = view.forStore(new BlockListStore(lists));
+        assertEquals("wrong lists after moving store", Arrays.asList("list0", "list2"), moved.getListNames());
+        assertEquals(BlockDecisionType.block, moved.getDecision("custom.example.net", "/").getDecisionType());
+        try {
+            store.view(Arrays.asList("list3"));
+            fail("expected unknown list to be rejected");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    private static class RecordingMetrics implements BlockListMetrics {
+        final List<String> events = new ArrayList<>();
+        int decisions, cachedDecisions, specsScanned, lines, errors;
+        BlockSpecIndexStats blacklistStats;
+
+        @Override public void decision(BlockDecision decision, boolean cached, int scanned, long nanos) {
+            decisions++;
+            if (cached) cachedDecisions++;
+            specsScanned += scanned;
+            assertTrue("negative latency", nanos >= 0);
+        }
+        @Override public void listLoaded(String url, int lines, int errors, long nanos) {
+            this.lines += lines;
+            this.errors += errors;
+        }
+        @Override public void parseError(String url, int lineNumber, String line, Exception e) { events.add(line); }
+        @Override public void compiled(BlockSpecIndexStats blacklist, BlockSpecIndexStats whitelist, long nanos) {
+            blacklistStats = blacklist;
+        }
+    }
+
+    @Test public void testMetrics () throws Exception {
+        final RecordingMetrics metrics = new RecordingMetrics();
+        final BlockListSource source = new BlockListSource().setMetrics(metrics);
+        source.addEntries(new String[] {"||example.com^", "/ads/", "example.org##.ad", "~broken.example.com", "! comment"});
+        assertEquals("expected 4 rule lines", 4, metrics.lines);
+        assertEquals("expected 1 error", 1, metrics.errors);
+        assertEquals("wrong parse error", singletonList("~broken.example.com"), metrics.events);
+
+        final BlockList blockList = source.getBlockList().setMetrics(metrics);
+        blockList.getDecision("example.com", "/");
+        assertEquals("expected 1 blacklist domain spec", 1, metrics.blacklistStats.getDomainIndexed());
+        assertEquals("expected 1 selector", 1, metrics.blacklistStats.getSelectors());
+        assertEquals("expected 1 uncached decision", 1, metrics.decisions);
+        assertEquals(0, metrics.cachedDecisions);
+        assertTrue("expected specs to be scanned", metrics.specsScanned > 0);
+
+        blockList.getDecision("example.com", "/");
+        blockList.getDecisions(Arrays.asList(new DecisionRequest("example.com", "/"), new DecisionRequest("www.example.net", "/ads/1")));
+        assertEquals("expected 4 decisions", 4, metrics.decisions);
+        assertEquals("expected 2 cached decisions", 2, metrics.cachedDecisions);
+
+        // the default records nothing, and a snapshot keeps the metrics of its list
+        assertTrue(BlockListMetrics.NONE == new BlockList().getCompiled().getMetrics());
+        assertTrue(metrics == blockList.getCompiled().getMetrics());
+    }
+
+    @Test public void testSpecProfiler () throws Exception {
+        final BlockListSource source = new BlockListSource().setUrl("https://example.com/list.txt");
+        source.addEntries(new String[] {"||ads.example.com^", "/banner/*/img"});
+        final SpecProfiler profiler = new SpecProfiler(1);
+        final BlockList blockList = source.getBlockList()
+                .setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0))
+                .setProfiler(profiler);
+        for (int i=0; i<10; i++) {
+            assertEquals(BlockDecisionType.block, blockList.getDecision("ads.example.com", "/").getDecisionType());
+            assertEquals(BlockDecisionType.block, blockList.getDecision("www.example.net", "/banner/"+i+"/img").getDecisionType());
+        }
+        final List<SpecProfile> top = profiler.top(10, singletonList(source));
+        assertEquals("expected both specs profiled", 2, top.size());
+        for (SpecProfile p : top) {
+            assertEquals("wrong url", "https://example.com/list.txt", p.getUrl());
+            assertEquals("wrong evaluations for "+p.getLine(), 10, p.getEvaluations());
+            assertEquals("wrong matches for "+p.getLine(), 10, p.getMatches());
+        }
+        assertTrue("expected report to show lines", profiler.report(1, singletonList(source)).contains(top.get(0).getLine()));
+
+        // sampling: one evaluation in 4 is recorded, scaled by 4
+        final SpecProfiler sampled = new SpecProfiler(4);
+        blockList.setProfiler(sampled);
+        for (int i=0; i<40; i++) blockList.getDecision("ads.example.com", "/");
+        assertEquals(40, sampled.top(1).get(0).getEvaluations());
+
+        blockList.setProfiler(null);
+        blockList.getDecision("ads.example.com", "/");
+        assertEquals(40, sampled.top(1).get(0).getEvaluations());
+    }
+
+    @Test public void testLinearRegex () throws Exception {
+        assertEquals(RegexEngine.linear, BlockTarget.getRegexEngine());
+        final BlockListSource source = new BlockListSource().setUrl("https://example.com/list.txt");
+        source.addEntries(new String[] {"/(a+)+b/", "/(ad|track)s?\\.js/", "/(ad)\\1/"});
+        final BlockList blockList = source.getBlockList()
+                .setDecisionCacheConfig(new DecisionCacheConfig().setMaxSize(0));
+
+        // backtracking would take 2^40 steps here
+        final StringBuilder path = new StringBuilder("/");
+        for (int i=0; i<40; i++) path.append('a');
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("www.example.com", path+"c").getDecisionType());
+        assertEquals(BlockDecisionType.block, blockList.getDecision("www.example.com", path+"b").getDecisionType());
+        assertEquals(BlockDecisionType.block, blockList.getDecision("www.example.com", "/js/tracks.js").getDecisionType());
+
+        // a backreference is left to Pattern, under a step budget
+        assertEquals(BlockDecisionType.block, blockList.getDecision("www.example.com", "/adad").getDecisionType());
+        assertEquals(BlockDecisionType.allow, blockList.getDecision("www.example.com", "/ad/ad").getDecisionType());
+
+        final String[] regexes = {"^/banner/.*?/img$", ".*?\\Qads.example.com\\E$", "[^/]+\\.(gif|png){1,2}", "^\\d{2,}-x?$"};
+        final String[] inputs = {"", "/banner/1/img", "/banner//img/", "www.ads.example.com", "ads.example.comx", "a.gifpng", ".png", "12-x", "1-x", "123-"};
+        for (String regex : regexes) {
+            final RegexMatcher linear = LinearRegexMatcher.compile(regex);
+            assertTrue("expected linear matcher for "+regex, linear instanceof LinearRegexMatcher);
+            final RegexMatcher java = RegexEngine.java.compile(regex);
+            for (String input : inputs) {
+                assertEquals("find "+regex+" in "+input, java.find(input), linear.find(input));
+                assertEquals("match "+regex+" to "+input, java.matches(input), linear.matches(input));
+            }
+        }
+    }
+
+    @Test public void testLiteralTargets () throws Exception {
+        final String[][] shapes = {
+                {"||ads.example.com^", "suffix"},
+                {"/ads/banner", "prefix"},
+                {"|/ads/exact.js|", "exact"},
+                {"/banner/*/img.*.gif", "wildcard"},
+                {"/banner(1|2)\\.gif/", null},
+        };
+        final String[] fqdns = {"ads.example.com", "badads.example.com", "www.example.com", "ads.example.com.evil"};
+        final String[] paths = {"/", "/ads/banner", "/ads/banner/x", "/ads/exact.js", "/ads/exact.js\n", "/banner/1/img.x.gif",
+                "/banner/img.gif", "/banner/\ud83d\ude00/img.\ud83d\ude00.gif", "/banner/1/img.x.gif\u2028x", "/banner1.gif"};
+        for (String[] shape : shapes) {
+            final BlockSpec spec = BlockSpec.parse(shape[0]).get(0);
+            final BlockTarget target = spec.getTarget();
+            final RegexMatcher matcher = target.hasDomainRegex() ? target.getDomainMatcher() : target.getRegexMatcher();
+            if (shape[1] == null) {
+                assertFalse("expected regex for "+shape[0], matcher instanceof LiteralRegexMatcher);
+                continue;
+            }
+            assertEquals("wrong shape for "+shape[0], shape[1], ((LiteralRegexMatcher) matcher).getShape().name());
+            final RegexMatcher java = RegexEngine.java.compile(matcher.pattern());
+            for (String fqdn : fqdns) {
+                assertEquals("find "+shape[0]+" in "+fqdn, java.find(fqdn), matcher.find(fqdn));
+                for (String path : paths) {
+                    assertEquals("find "+shape[0]+" in "+path, java.find(path), matcher.find(path));
+                    assertEquals("find "+shape[0]+" in "+fqdn+path, java.find(fqdn+path), matcher.find(fqdn, path));
+                }
+            }
+        }
+    }
+
+    @Test public void testRegexCache () throws Exception {
+        final RegexCache shared = RegexCache.getShared();
+        try {
+            final RegexCache cache = new RegexCache(2, 1);
+            RegexCache.setShared(cache);
+
+            // literal shapes never compile their regex
+            BlockSpec.parse("/ads/banner");
+            BlockSpec.parse("||ads.example.com^");
+            assertEquals(0, cache.getSize());
+
+            // a real regex is checked at load, and compiled once for every rule that uses it
+            final BlockSpec first = BlockSpec.parse("/banner(1|2)\\.gif/").get(0);
+            final BlockSpec second = BlockSpec.parse("/banner(1|2)\\.gif/$image").get(0);
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertTrue(first.matches("www.example.com", "/banner2.gif", null, null));
+            assertTrue(second.matches("www.example.com", "/banner1.gif", null, null));
+            try {
+                BlockSpec.parse("/banner(1|2.gif/");
+                fail("expected invalid regex to be rejected");
+            } catch (PatternSyntaxException expected) {}
+
+            // the cache is bounded, and a rule whose regex was evicted compiles it again when needed
+            cache.pattern("a+");
+            cache.pattern("b+");
+            assertEquals(2, cache.getSize());
+            assertTrue(cache.getEvictions() > 0);
+            assertTrue(first.matches("www.example.com", "/banner2.gif", null, null));
+        } finally {
+            RegexCache.setShared(shared);
+        }
+    }
 }